@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.staminaframework.mojo;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark full archive assembly: <code>.esa</code> addons and distributions,
+ * for every supported archive type.
+ *
+ * @author Stamina Framework developers
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+public class ArchiveBenchmark {
+    @Param({"esa", "zip", "tar.gz", "tar.xz", "tar.zst"})
+    public String archiveType;
+    @Param({"10", "100"})
+    public int bundleCount;
+    @Param({"1", "4"})
+    public int threads;
+
+    private File dir;
+    private File template;
+    private File manifestFile;
+    private File outputFile;
+    private final List<File> bundles = new ArrayList<>();
+    private CompressionOptions compression;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("stamina-bench").toFile();
+        for (int i = 0; i < bundleCount; ++i) {
+            // A few large bundles, as in real addons.
+            bundles.add(BenchmarkFixtures.createBundle(dir, "io.staminaframework.bench" + i,
+                    i % 20 == 0 ? BenchmarkFixtures.BundleKind.LARGE : BenchmarkFixtures.BundleKind.SMALL));
+        }
+        if (!"esa".equals(archiveType)) {
+            template = BenchmarkFixtures.createTemplate(dir, archiveType);
+        }
+        manifestFile = new File(dir, "SUBSYSTEM.MF");
+        try (final OutputStream out = new FileOutputStream(manifestFile)) {
+            out.write("Subsystem-ManifestVersion: 1\r\nSubsystem-SymbolicName: bench\r\n\r\n".getBytes("UTF-8"));
+        }
+        outputFile = new File(dir, "output." + archiveType);
+        compression = new CompressionOptions(threads, 131072, -1, 4194304,
+                CompressionPolicy.create(null, -1), OutputTimestamp.DISABLED);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        TemplateCache.deleteDirectory(dir);
+    }
+
+    @Benchmark
+    public long assemble() throws IOException {
+        if ("esa".equals(archiveType)) {
+            final Map<String, File> entries = new TreeMap<>();
+            entries.put(ManifestReader.SUBSYSTEM_MANIFEST, manifestFile);
+            for (final File bundle : bundles) {
+                entries.put(bundle.getName(), bundle);
+            }
+            try (final ParallelZipWriter writer = new ParallelZipWriter(outputFile, compression)) {
+                writer.addDirectory("OSGI-INF/", manifestFile.lastModified());
+                for (final Map.Entry<String, File> e : entries.entrySet()) {
+                    writer.addFile(e.getValue(), e.getKey());
+                }
+            }
+        } else {
+            try (final DistributionWriter writer = "zip".equals(archiveType)
+                    ? new ZipDistributionWriter(outputFile, compression)
+                    : new TarDistributionWriter(outputFile, archiveType, compression)) {
+                writer.copyTemplate(template, BenchmarkFixtures.TEMPLATE_ROOT, "bench/");
+                for (final File bundle : bundles) {
+                    writer.addFile(bundle, "bench/addons/" + bundle.getName());
+                }
+            }
+        }
+        return outputFile.length();
+    }
+}
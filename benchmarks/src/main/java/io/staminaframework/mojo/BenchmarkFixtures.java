@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.mojo;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.apache.maven.model.Dependency;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+/**
+ * Create synthetic bundles, subsystems and distribution templates used by benchmarks.
+ * Generated content only depends on fixture parameters: fixtures are the same
+ * between runs, so that results can be compared between releases.
+ *
+ * @author Stamina Framework developers
+ */
+final class BenchmarkFixtures {
+    static final String TEMPLATE_ROOT = "io.staminaframework.runtime-0.1.0/";
+
+    private BenchmarkFixtures() {
+    }
+
+    /**
+     * Kind of generated bundle.
+     */
+    enum BundleKind {
+        /**
+         * Bundle with a few small entries.
+         */
+        SMALL(20, 1024, false),
+        /**
+         * Bundle with many entries, such as a library bundle embedding its dependencies.
+         */
+        LARGE(10000, 1024, false),
+        /**
+         * Signed bundle: its manifest includes a digest section for each entry.
+         */
+        SIGNED(500, 2048, true);
+
+        final int entries;
+        final int entrySize;
+        final boolean signed;
+
+        BundleKind(int entries, int entrySize, boolean signed) {
+            this.entries = entries;
+            this.entrySize = entrySize;
+            this.signed = signed;
+        }
+    }
+
+    /**
+     * Create an OSGi bundle.
+     */
+    static File createBundle(File dir, String symbolicName, BundleKind kind) throws IOException {
+        final File file = new File(dir, symbolicName + "-1.0.0.jar");
+        final Random random = new Random(symbolicName.hashCode());
+
+        final Manifest man = new Manifest();
+        final Attributes atts = man.getMainAttributes();
+        atts.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        atts.putValue("Bundle-ManifestVersion", "2");
+        atts.putValue("Bundle-SymbolicName", symbolicName + ";singleton:=true");
+        atts.putValue("Bundle-Version", "1.0.0." + Integer.toHexString(random.nextInt()));
+        atts.putValue("Export-Package", symbolicName + ";version=\"1.0.0\"");
+        atts.putValue("Import-Package", "org.osgi.framework;version=\"[1.8,2)\"");
+        final List<String> entryNames = new ArrayList<>(kind.entries);
+        for (int i = 0; i < kind.entries; ++i) {
+            entryNames.add(symbolicName.replace('.', '/') + "/Class" + i + ".class");
+        }
+        if (kind.signed) {
+            for (final String entryName : entryNames) {
+                final Attributes digest = new Attributes();
+                digest.putValue("SHA-256-Digest", randomDigest(random));
+                man.getEntries().put(entryName, digest);
+            }
+        }
+
+        try (final JarOutputStream out = new JarOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)), man)) {
+            if (kind.signed) {
+                out.putNextEntry(new JarEntry("META-INF/BENCH.SF"));
+                out.write(randomData(random, 64 * kind.entries));
+                out.closeEntry();
+                out.putNextEntry(new JarEntry("META-INF/BENCH.RSA"));
+                out.write(randomData(random, 2048));
+                out.closeEntry();
+            }
+            for (final String entryName : entryNames) {
+                out.putNextEntry(new JarEntry(entryName));
+                out.write(randomData(random, kind.entrySize));
+                out.closeEntry();
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Create an OSGi subsystem, embedding bundles.
+     */
+    static File createSubsystem(File dir, String symbolicName, List<File> bundles) throws IOException {
+        final File file = new File(dir, symbolicName + "-1.0.0.esa");
+        try (final ZipArchiveOutputStream out = new ZipArchiveOutputStream(file)) {
+            out.putArchiveEntry(new ZipArchiveEntry(ManifestReader.SUBSYSTEM_MANIFEST));
+            out.write(("Subsystem-ManifestVersion: 1\r\n"
+                    + "Subsystem-SymbolicName: " + symbolicName + "\r\n"
+                    + "Subsystem-Version: 1.0.0\r\n"
+                    + "Subsystem-Type: osgi.subsystem.feature\r\n\r\n").getBytes("UTF-8"));
+            out.closeArchiveEntry();
+            for (final File bundle : bundles) {
+                out.putArchiveEntry(new ZipArchiveEntry(bundle, bundle.getName()));
+                try (final InputStream in = new FileInputStream(bundle)) {
+                    copy(in, out);
+                }
+                out.closeArchiveEntry();
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Create a distribution template, with the same layout as the Stamina runtime distribution.
+     *
+     * @param type template type: <code>zip</code>, <code>tar.gz</code>, <code>tar.xz</code> or <code>tar.zst</code>
+     */
+    static File createTemplate(File dir, String type) throws IOException {
+        final File file = new File(dir, "template." + type);
+        final Random random = new Random(42);
+        final List<String> names = new ArrayList<>();
+        final List<byte[]> contents = new ArrayList<>();
+        names.add("bin/stamina");
+        contents.add("#!/bin/sh\nexec java -jar \"$(dirname \"$0\")/../lib/launcher.jar\" \"$@\"\n".getBytes("UTF-8"));
+        for (int i = 0; i < 20; ++i) {
+            names.add("etc/config" + i + ".cfg");
+            contents.add(("key" + i + " = value" + i + "\n").getBytes("UTF-8"));
+        }
+        for (int i = 0; i < 30; ++i) {
+            names.add("lib/runtime" + i + ".jar");
+            contents.add(randomData(random, 256 * 1024));
+        }
+
+        if ("zip".equals(type)) {
+            try (final ZipArchiveOutputStream out = new ZipArchiveOutputStream(file)) {
+                for (int i = 0; i < names.size(); ++i) {
+                    final ZipArchiveEntry entry = new ZipArchiveEntry(TEMPLATE_ROOT + names.get(i));
+                    entry.setUnixMode(i == 0 ? 0100755 : 0100644);
+                    out.putArchiveEntry(entry);
+                    out.write(contents.get(i));
+                    out.closeArchiveEntry();
+                }
+            }
+        } else {
+            final OutputStream fileOut = new BufferedOutputStream(new FileOutputStream(file));
+            try (final TarArchiveOutputStream out = new TarArchiveOutputStream(TarCompression.GZIP.equals(type)
+                    ? new GzipCompressorOutputStream(fileOut)
+                    : TarCompression.newFrameOutputStream(fileOut, type, new CompressionOptions(
+                    1, 0, -1, 0, CompressionPolicy.create(null, -1), OutputTimestamp.DISABLED)))) {
+                for (int i = 0; i < names.size(); ++i) {
+                    final TarArchiveEntry entry = new TarArchiveEntry(TEMPLATE_ROOT + names.get(i));
+                    entry.setMode(i == 0 ? 0100755 : 0100644);
+                    entry.setSize(contents.get(i).length);
+                    out.putArchiveEntry(entry);
+                    out.write(contents.get(i));
+                    out.closeArchiveEntry();
+                }
+            }
+        }
+        return file;
+    }
+
+    static Dependency newDependency(String artifactId, String type) {
+        final Dependency dep = new Dependency();
+        dep.setGroupId("io.staminaframework.benchmarks");
+        dep.setArtifactId(artifactId);
+        dep.setVersion("1.0.0");
+        dep.setType(type);
+        return dep;
+    }
+
+    /**
+     * Generate data which is about as compressible as class files.
+     */
+    private static byte[] randomData(Random random, int size) {
+        final byte[] data = new byte[size];
+        for (int i = 0; i < size; ++i) {
+            data[i] = (byte) (random.nextInt(4) == 0 ? random.nextInt(256) : 'a' + random.nextInt(8));
+        }
+        return data;
+    }
+
+    private static String randomDigest(Random random) {
+        final char[] chars = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+        final StringBuilder buf = new StringBuilder(44);
+        for (int i = 0; i < 43; ++i) {
+            buf.append(chars[random.nextInt(chars.length)]);
+        }
+        return buf.append('=').toString();
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        final byte[] buf = new byte[64 * 1024];
+        for (int bytesRead; (bytesRead = in.read(buf)) != -1; ) {
+            out.write(buf, 0, bytesRead);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.staminaframework.mojo;
+
+import org.apache.maven.model.Dependency;
+import org.apache.maven.plugin.MojoFailureException;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+
+/**
+ * Benchmark manifest extraction from bundles.
+ * Reading a manifest with {@link JarFile} is measured as a baseline.
+ *
+ * @author Stamina Framework developers
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ManifestBenchmark {
+    private static final List<String> HEADERS = Arrays.asList(
+            "Bundle-ManifestVersion", "Bundle-SymbolicName", "Bundle-Version", "Fragment-Host");
+
+    @Param({"SMALL", "LARGE", "SIGNED"})
+    public BenchmarkFixtures.BundleKind bundleKind;
+
+    private File dir;
+    private File bundle;
+    private Dependency dep;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("stamina-bench").toFile();
+        bundle = BenchmarkFixtures.createBundle(dir, "io.staminaframework.bench", bundleKind);
+        dep = BenchmarkFixtures.newDependency("io.staminaframework.bench", "jar");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        TemplateCache.deleteDirectory(dir);
+    }
+
+    @Benchmark
+    public Map<String, String> readManifest() throws IOException {
+        return ManifestReader.read(bundle, ManifestReader.BUNDLE_MANIFEST, HEADERS);
+    }
+
+    @Benchmark
+    public Attributes readManifestWithJarFile() throws IOException {
+        try (final JarFile jar = new JarFile(bundle)) {
+            return jar.getManifest().getMainAttributes();
+        }
+    }
+
+    @Benchmark
+    public String toSubsystemContentResource() throws MojoFailureException {
+        return PackageAddonMojo.toSubsystemContentResource(dep, bundle);
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.staminaframework.mojo;
+
+import org.apache.maven.model.Dependency;
+import org.apache.maven.plugin.MojoFailureException;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark building the <code>Subsystem-Content</code> header of an addon.
+ * One content item out of ten is a subsystem, other items are bundles.
+ *
+ * @author Stamina Framework developers
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SubsystemContentBenchmark {
+    @Param({"10", "100", "1000"})
+    public int contentCount;
+
+    private File dir;
+    private final List<Dependency> deps = new ArrayList<>();
+    private final List<File> depFiles = new ArrayList<>();
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("stamina-bench").toFile();
+        for (int i = 0; i < contentCount; ++i) {
+            final String name = "io.staminaframework.bench" + i;
+            final File bundle = BenchmarkFixtures.createBundle(dir, name, BenchmarkFixtures.BundleKind.SMALL);
+            if (i % 10 == 9) {
+                deps.add(BenchmarkFixtures.newDependency(name, "esa"));
+                depFiles.add(BenchmarkFixtures.createSubsystem(dir, name, Collections.singletonList(bundle)));
+            } else {
+                deps.add(BenchmarkFixtures.newDependency(name, "jar"));
+                depFiles.add(bundle);
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        TemplateCache.deleteDirectory(dir);
+    }
+
+    @Benchmark
+    public String buildSubsystemContent() throws MojoFailureException {
+        final StringBuilder buf = new StringBuilder(contentCount * 96);
+        for (int i = 0; i < deps.size(); ++i) {
+            if (buf.length() != 0) {
+                buf.append(", ");
+            }
+            buf.append(PackageAddonMojo.toSubsystemContentResource(deps.get(i), depFiles.get(i)))
+                    .append(";start-order:=").append(i + 1).append(";resolution:=mandatory");
+        }
+        return buf.toString();
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.staminaframework.mojo;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark version conversions used when building addon manifests.
+ *
+ * @author Stamina Framework developers
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class VersionBenchmark {
+    @Param({"1.2.3", "0.4.0.v20171012", "2.0.0-SNAPSHOT"})
+    public String version;
+
+    @Benchmark
+    public String toVersionRange() {
+        return PackageAddonMojo.toVersionRange(version.replace("-SNAPSHOT", ""));
+    }
+
+    @Benchmark
+    public String toSubsystemVersion() {
+        // Fixed output timestamp: SNAPSHOT qualifiers do not depend on current time.
+        return PackageAddonMojo.toSubsystemVersion(version, 1514764800000L);
+    }
+}
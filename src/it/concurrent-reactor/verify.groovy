@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.security.MessageDigest
+import java.util.zip.ZipFile
+
+def sha1(File file) {
+    return MessageDigest.getInstance("SHA-1").digest(file.bytes).encodeHex().toString()
+}
+
+// Modules with the same content must produce identical files, whatever the build order.
+def checkIdentical(String path, List<String> modules) {
+    def checksums = modules.collect { module ->
+        def file = new File(basedir, module + "/target/" + path)
+        assert file.isFile() : "Missing file: " + file
+        sha1(file)
+    } as Set
+    assert checksums.size() == 1 : "Files differ between concurrent executions: " + path + " " + checksums
+}
+
+def addons = (1..4).collect { "addon-" + it }
+def dists = (1..4).collect { "dist-" + it }
+checkIdentical("addon.esa", addons)
+checkIdentical("dist.zip", dists)
+
+// Each execution keeps its own state: fingerprints and metrics are written per module.
+addons.each { module ->
+    assert new File(basedir, module + "/target/addon.esa.fingerprint").isFile()
+    assert new File(basedir, module + "/target/stamina-addon-metrics.json").isFile()
+}
+dists.each { module ->
+    assert new File(basedir, module + "/target/dist.zip.fingerprint").isFile()
+    assert new File(basedir, module + "/target/stamina-dist-metrics.json").isFile()
+}
+
+new ZipFile(new File(basedir, "addon-1/target/addon.esa")).withCloseable { zip ->
+    assert zip.getEntry("OSGI-INF/SUBSYSTEM.MF") != null
+    assert zip.getEntry("bundle-a-1.0.0-SNAPSHOT.jar") != null
+    assert zip.getEntry("bundle-b-1.0.0-SNAPSHOT.jar") != null
+}
+new ZipFile(new File(basedir, "dist-1/target/dist.zip")).withCloseable { zip ->
+    assert zip.getEntry("dist/addons/addon.esa") != null
+    assert zip.getEntry("dist/addons/bundle-a-1.0.0-SNAPSHOT.jar") != null
+}
+
+// The shared cache was used by all executions.
+assert new File(basedir, "stamina-cache/templates").isDirectory()
+assert new File(basedir, "stamina-cache/optimized-bundles").isDirectory()
+
+def buildLog = new File(basedir, "build.log").text
+assert !buildLog.contains("[WARNING] Cannot")
+assert !buildLog.contains("is not marked @threadSafe")
+return true
@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.mojo;
+
+import org.apache.maven.artifact.ArtifactUtils;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent index of resolved release artifacts, shared between builds.
+ * <p>
+ * Each artifact coordinate is associated to its local file, file size, last
+ * modification time, checksum and metadata read from this file. An entry is
+ * only used if the local file still has the same size and modification time
+ * (or the same checksum if those attributes changed).
+ * <p>
+ * Every entry is stored in its own file, which is written to a temporary file
+ * first and then atomically moved: concurrent builds sharing the same index
+ * never read partially written entries. Entries are updated holding a file lock,
+ * after reading them again: metadata set by concurrent builds is never lost.
+ *
+ * @author Stamina Framework developers
+ */
+final class ArtifactIndex {
+    private static final String FILE = "file";
+    private static final String SIZE = "size";
+    private static final String LAST_MODIFIED = "lastModified";
+    private static final String CHECKSUM = "checksum";
+    private static final String METADATA_PREFIX = "metadata.";
+    private static final Map<String, Object> LOCKS = new ConcurrentHashMap<>();
+
+    private final File directory;
+    private final Map<String, Properties> entries = new ConcurrentHashMap<>();
+
+    ArtifactIndex(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Check if an artifact version can be indexed: only release artifacts are indexed.
+     */
+    static boolean isIndexable(String version) {
+        return version != null && !ArtifactUtils.isSnapshot(version);
+    }
+
+    /**
+     * Get the local file of an artifact, if it is still available.
+     */
+    File getFile(String coordinate) {
+        final Properties entry = loadEntry(coordinate);
+        if (entry == null) {
+            return null;
+        }
+        final File file = new File(entry.getProperty(FILE));
+        if (file.length() != Long.parseLong(entry.getProperty(SIZE))
+                || file.lastModified() != Long.parseLong(entry.getProperty(LAST_MODIFIED))) {
+            return null;
+        }
+        return file;
+    }
+
+    /**
+     * Get the checksum of an artifact file.
+     * The checksum is computed if the file is not indexed, or if the file changed.
+     */
+    String getChecksum(String coordinate, File file) throws IOException {
+        return getValidEntry(coordinate, file, true).getProperty(CHECKSUM);
+    }
+
+    /**
+     * Get a metadata value read from an artifact file.
+     *
+     * @return <code>null</code> if this metadata is not indexed, or if the file changed
+     */
+    String getMetadata(String coordinate, File file, String name) throws IOException {
+        final Properties entry = getValidEntry(coordinate, file, false);
+        return entry == null ? null : entry.getProperty(METADATA_PREFIX + name);
+    }
+
+    /**
+     * Set a metadata value read from an artifact file.
+     */
+    void putMetadata(String coordinate, File file, String name, String value) throws IOException {
+        updateEntry(coordinate, file, true, name, value);
+    }
+
+    private Properties getValidEntry(String coordinate, File file, boolean create) throws IOException {
+        final Properties entry = loadEntry(coordinate);
+        if (entry != null && isUpToDate(entry, file)) {
+            return entry;
+        }
+        if (!create && (entry == null || !file.getAbsolutePath().equals(entry.getProperty(FILE)))) {
+            return null;
+        }
+        return updateEntry(coordinate, file, create, null, null);
+    }
+
+    private static boolean isUpToDate(Properties entry, File file) {
+        return file.getAbsolutePath().equals(entry.getProperty(FILE))
+                && file.length() == Long.parseLong(entry.getProperty(SIZE))
+                && file.lastModified() == Long.parseLong(entry.getProperty(LAST_MODIFIED));
+    }
+
+    /**
+     * Update an entry, holding a lock: the entry is read again from its file,
+     * which may have been updated by a concurrent build.
+     *
+     * @param create create a new entry if there is no valid entry for this file
+     * @param name   name of a metadata value to set (may be <code>null</code>)
+     * @return <code>null</code> if there is no valid entry for this file
+     */
+    private Properties updateEntry(String coordinate, File file, boolean create,
+                                   String name, String value) throws IOException {
+        final File entryFile = toEntryFile(coordinate);
+        final File entryDir = entryFile.getParentFile();
+        entryDir.mkdirs();
+        // File locks are held by the JVM: threads from this JVM must be synchronized first.
+        final Object lock = LOCKS.computeIfAbsent(entryFile.getAbsolutePath(), k -> new Object());
+        synchronized (lock) {
+            try (final FileChannel lockChannel = FileChannel.open(
+                    new File(entryDir, entryFile.getName() + ".lock").toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                 final FileLock fileLock = lockChannel.lock()) {
+                entries.remove(coordinate);
+                final Properties entry = loadEntry(coordinate);
+                final Properties newEntry;
+                if (entry == null || !file.getAbsolutePath().equals(entry.getProperty(FILE))) {
+                    if (!create) {
+                        return null;
+                    }
+                    newEntry = newEntry(file, Checksums.sha1(file));
+                } else if (!isUpToDate(entry, file)) {
+                    // File attributes changed: entry is still valid if file content did not change.
+                    final String checksum = Checksums.sha1(file);
+                    if (checksum.equals(entry.getProperty(CHECKSUM))) {
+                        newEntry = (Properties) entry.clone();
+                        newEntry.setProperty(SIZE, String.valueOf(file.length()));
+                        newEntry.setProperty(LAST_MODIFIED, String.valueOf(file.lastModified()));
+                    } else if (create) {
+                        newEntry = newEntry(file, checksum);
+                    } else {
+                        return null;
+                    }
+                } else if (name == null) {
+                    // Entry was updated by a concurrent build.
+                    return entry;
+                } else {
+                    newEntry = (Properties) entry.clone();
+                }
+                if (name != null) {
+                    newEntry.setProperty(METADATA_PREFIX + name, value);
+                }
+                storeEntry(coordinate, newEntry);
+                return newEntry;
+            }
+        }
+    }
+
+    private static Properties newEntry(File file, String checksum) {
+        final Properties entry = new Properties();
+        entry.setProperty(FILE, file.getAbsolutePath());
+        entry.setProperty(SIZE, String.valueOf(file.length()));
+        entry.setProperty(LAST_MODIFIED, String.valueOf(file.lastModified()));
+        entry.setProperty(CHECKSUM, checksum);
+        return entry;
+    }
+
+    private Properties loadEntry(String coordinate) {
+        Properties entry = entries.get(coordinate);
+        if (entry != null) {
+            return entry;
+        }
+        final File entryFile = toEntryFile(coordinate);
+        if (!entryFile.exists()) {
+            return null;
+        }
+        entry = new Properties();
+        try (final InputStream in = new FileInputStream(entryFile)) {
+            entry.load(in);
+        } catch (IOException e) {
+            return null;
+        }
+        if (!coordinate.equals(entry.getProperty("coordinate"))
+                || entry.getProperty(FILE) == null || entry.getProperty(CHECKSUM) == null) {
+            return null;
+        }
+        try {
+            Long.parseLong(entry.getProperty(SIZE));
+            Long.parseLong(entry.getProperty(LAST_MODIFIED));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        entries.put(coordinate, entry);
+        return entry;
+    }
+
+    private void storeEntry(String coordinate, Properties entry) throws IOException {
+        entry.setProperty("coordinate", coordinate);
+        entries.put(coordinate, entry);
+
+        final File entryFile = toEntryFile(coordinate);
+        final File entryDir = entryFile.getParentFile();
+        entryDir.mkdirs();
+        final File tmpFile = File.createTempFile("entry", ".tmp", entryDir);
+        try {
+            try (final OutputStream out = new FileOutputStream(tmpFile)) {
+                entry.store(out, null);
+            }
+            try {
+                Files.move(tmpFile.toPath(), entryFile.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmpFile.toPath(), entryFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            tmpFile.delete();
+        }
+    }
+
+    private File toEntryFile(String coordinate) {
+        final String key = Checksums.sha1(coordinate);
+        return new File(new File(directory, key.substring(0, 2)), key + ".properties");
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.mojo;
+
+import java.io.*;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Fingerprint of all inputs used to build an archive.
+ * A fingerprint is made of parameters (any value affecting the archive)
+ * and entries (archive entry names, associated to the checksum of their source).
+ *
+ * @author Stamina Framework developers
+ */
+final class BuildFingerprint {
+    private static final String PARAMETER_PREFIX = "parameter.";
+    private static final String ENTRY_PREFIX = "entry.";
+
+    private final Map<String, String> parameters = new TreeMap<>();
+    private final Map<String, String> entries = new TreeMap<>();
+
+    void setParameter(String name, Object value) {
+        parameters.put(name, String.valueOf(value));
+    }
+
+    String getParameter(String name) {
+        return parameters.get(name);
+    }
+
+    void addEntry(String name, String checksum) {
+        entries.put(name, checksum);
+    }
+
+    Map<String, String> getEntries() {
+        return Collections.unmodifiableMap(entries);
+    }
+
+    boolean hasSameParameters(BuildFingerprint other) {
+        return other != null && parameters.equals(other.parameters);
+    }
+
+    boolean isSameAs(BuildFingerprint other) {
+        return hasSameParameters(other) && entries.equals(other.entries);
+    }
+
+    /**
+     * Load a fingerprint from a file.
+     *
+     * @return <code>null</code> if the file does not exist or cannot be read
+     */
+    static BuildFingerprint load(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        final Properties props = new Properties();
+        try (final InputStream in = new FileInputStream(file)) {
+            props.load(in);
+        } catch (IOException e) {
+            return null;
+        }
+        final BuildFingerprint fingerprint = new BuildFingerprint();
+        for (final String key : props.stringPropertyNames()) {
+            if (key.startsWith(PARAMETER_PREFIX)) {
+                fingerprint.parameters.put(key.substring(PARAMETER_PREFIX.length()), props.getProperty(key));
+            } else if (key.startsWith(ENTRY_PREFIX)) {
+                fingerprint.entries.put(key.substring(ENTRY_PREFIX.length()), props.getProperty(key));
+            }
+        }
+        return fingerprint;
+    }
+
+    void store(File file) throws IOException {
+        final Properties props = new Properties();
+        for (final Map.Entry<String, String> e : parameters.entrySet()) {
+            props.setProperty(PARAMETER_PREFIX + e.getKey(), e.getValue());
+        }
+        for (final Map.Entry<String, String> e : entries.entrySet()) {
+            props.setProperty(ENTRY_PREFIX + e.getKey(), e.getValue());
+        }
+        file.getParentFile().mkdirs();
+        try (final OutputStream out = new FileOutputStream(file)) {
+            props.store(out, "Stamina build fingerprint");
+        }
+    }
+}
@@ -0,0 +1,414 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.mojo;
+
+import aQute.bnd.version.Version;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Remove duplicate bundles from subsystems included in a distribution.
+ * <p>
+ * Bundles are identified by the checksum of their content. A bundle embedded in several subsystems,
+ * or embedded in a subsystem and also included as a bundle in the distribution, is stored once
+ * in a shared bundle repository: subsystems are rewritten without their own copy, which is then
+ * provisioned from the repository. The repository is described by an OSGi repository index
+ * (<code>index.xml</code>), referring to shared bundles by relative URL.
+ * <p>
+ * Rewritten subsystems still list removed bundles as content: the runtime must register the
+ * repository index as an OSGi repository, so that the subsystem implementation can provision them.
+ *
+ * @author Stamina Framework developers
+ */
+final class BundleDeduplicator {
+    private static final String INDEX_FILE = "index.xml";
+    private static final String REPOSITORY_NAMESPACE = "http://www.osgi.org/xmlns/repository/v1.0.0";
+    private static final String SERVICE_NAMESPACE = "osgi.service";
+    private static final String REPOSITORY_SERVICE = "org.osgi.service.repository.Repository";
+
+    private final File workDir;
+    private final String repositoryDir;
+    private final Map<String, List<Location>> locations = new TreeMap<>();
+    private final Map<String, String> subsystemChecksums = new HashMap<>();
+    private final Map<String, File> subsystemFiles = new HashMap<>();
+    private final Map<String, SharedBundle> sharedBundles = new TreeMap<>();
+    private final Map<String, Set<String>> removedEntries = new TreeMap<>();
+    private long savedBytes;
+
+    /**
+     * @param workDir       directory where shared bundles and rewritten subsystems are written
+     * @param repositoryDir distribution entry name of the shared bundle repository (ending with <code>/</code>)
+     */
+    BundleDeduplicator(File workDir, String repositoryDir) {
+        this.workDir = workDir;
+        this.repositoryDir = repositoryDir;
+    }
+
+    /**
+     * Add a bundle included as is in the distribution.
+     */
+    void addBundle(String entryName, File file, String checksum) {
+        addLocation(checksum, new Location(entryName, file, null, file.length(), file.length()));
+    }
+
+    /**
+     * Add a subsystem included in the distribution.
+     *
+     * @param embeddedBundles bundles embedded in this subsystem, as returned by {@link #scan(File)}
+     */
+    void addSubsystem(String entryName, File file, String checksum, List<EmbeddedBundle> embeddedBundles) {
+        subsystemChecksums.put(entryName, checksum);
+        subsystemFiles.put(entryName, file);
+        for (final EmbeddedBundle bundle : embeddedBundles) {
+            addLocation(bundle.checksum,
+                    new Location(entryName, file, bundle.name, bundle.size, bundle.compressedSize));
+        }
+    }
+
+    private void addLocation(String checksum, Location location) {
+        locations.computeIfAbsent(checksum, k -> new ArrayList<>(2)).add(location);
+    }
+
+    /**
+     * Select bundles to share, without writing any file.
+     *
+     * @return checksums of distribution entries written by this instance, indexed by entry name
+     */
+    Map<String, String> plan() {
+        sharedBundles.clear();
+        removedEntries.clear();
+        savedBytes = 0;
+        for (final Map.Entry<String, List<Location>> e : locations.entrySet()) {
+            final List<Location> bundleLocations = e.getValue();
+            if (bundleLocations.size() < 2) {
+                continue;
+            }
+            Location shared = null;
+            for (final Location loc : bundleLocations) {
+                if (loc.embeddedName == null) {
+                    shared = loc;
+                    break;
+                }
+            }
+            int removed = 0;
+            for (final Location loc : bundleLocations) {
+                if (loc.embeddedName != null) {
+                    removedEntries.computeIfAbsent(loc.entryName, k -> new TreeSet<>()).add(loc.embeddedName);
+                    savedBytes += loc.compressedSize;
+                    ++removed;
+                }
+            }
+            if (removed == 0) {
+                // Only included as plain bundles, which are not deduplicated.
+                continue;
+            }
+            final String entryName;
+            if (shared == null) {
+                // Bundle is only embedded in subsystems: a copy is stored in the repository.
+                shared = bundleLocations.get(0);
+                entryName = repositoryDir + e.getKey() + ".jar";
+                savedBytes -= shared.size;
+            } else {
+                entryName = shared.entryName;
+            }
+            sharedBundles.put(e.getKey(), new SharedBundle(entryName, shared));
+        }
+
+        final Map<String, String> checksums = new TreeMap<>();
+        final StringBuilder indexKey = new StringBuilder();
+        for (final Map.Entry<String, SharedBundle> e : sharedBundles.entrySet()) {
+            final SharedBundle shared = e.getValue();
+            if (shared.location.embeddedName != null) {
+                checksums.put(shared.entryName, e.getKey());
+            }
+            indexKey.append(e.getKey()).append('=').append(shared.entryName).append('\n');
+        }
+        for (final Map.Entry<String, Set<String>> e : removedEntries.entrySet()) {
+            checksums.put(e.getKey(), Checksums.sha1(subsystemChecksums.get(e.getKey()) + ":" + e.getValue()));
+        }
+        if (!sharedBundles.isEmpty()) {
+            checksums.put(repositoryDir + INDEX_FILE, Checksums.sha1(indexKey.toString()));
+        }
+        return checksums;
+    }
+
+    /**
+     * Write shared bundles, the repository index and rewritten subsystems.
+     * This method must be called after {@link #plan()}.
+     *
+     * @return files to include in the distribution, indexed by entry name
+     */
+    Map<String, File> write(CompressionOptions compression) throws IOException {
+        TemplateCache.deleteDirectory(workDir);
+        final File repositoryWorkDir = new File(workDir, "repository");
+        final File subsystemsWorkDir = new File(workDir, "subsystems");
+        repositoryWorkDir.mkdirs();
+        subsystemsWorkDir.mkdirs();
+
+        final Map<String, File> files = new TreeMap<>();
+        for (final Map.Entry<String, SharedBundle> e : sharedBundles.entrySet()) {
+            final SharedBundle shared = e.getValue();
+            if (shared.location.embeddedName == null) {
+                shared.file = shared.location.file;
+                continue;
+            }
+            shared.file = new File(repositoryWorkDir, e.getKey() + ".jar");
+            try (final ZipFile zip = new ZipFile(shared.location.file);
+                 final InputStream in = zip.getInputStream(zip.getEntry(shared.location.embeddedName))) {
+                Files.copy(in, shared.file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            files.put(shared.entryName, shared.file);
+        }
+        if (!sharedBundles.isEmpty()) {
+            final File indexFile = new File(repositoryWorkDir, INDEX_FILE);
+            writeIndex(indexFile);
+            files.put(repositoryDir + INDEX_FILE, indexFile);
+        }
+
+        for (final Map.Entry<String, Set<String>> e : removedEntries.entrySet()) {
+            final File source = subsystemFiles.get(e.getKey());
+            final File target = new File(subsystemsWorkDir, source.getName());
+            try (final ZipFile zip = new ZipFile(source);
+                 final ParallelZipWriter out = new ParallelZipWriter(target, compression)) {
+                for (final Enumeration<ZipArchiveEntry> i = zip.getEntriesInPhysicalOrder(); i.hasMoreElements(); ) {
+                    final ZipArchiveEntry entry = i.nextElement();
+                    if (e.getValue().contains(entry.getName())) {
+                        continue;
+                    }
+                    try (final InputStream in = zip.getRawInputStream(entry)) {
+                        out.addRawEntry(entry, in);
+                    }
+                }
+            }
+            files.put(e.getKey(), target);
+        }
+        return files;
+    }
+
+    /**
+     * Get the number of bytes saved in the distribution.
+     */
+    long getSavedBytes() {
+        return savedBytes;
+    }
+
+    int getSharedBundleCount() {
+        return sharedBundles.size();
+    }
+
+    int getRemovedBundleCount() {
+        int count = 0;
+        for (final Set<String> removed : removedEntries.values()) {
+            count += removed.size();
+        }
+        return count;
+    }
+
+    /**
+     * Check if a bundle provides an OSGi repository service,
+     * declared as an <code>osgi.service</code> capability.
+     */
+    static boolean providesRepository(BundleResource bundle) {
+        for (final BundleResource.Capability cap : bundle.getCapabilities()) {
+            if (!SERVICE_NAMESPACE.equals(cap.namespace)) {
+                continue;
+            }
+            final Object objectClass = cap.attributes.get("objectClass");
+            if (objectClass instanceof Collection
+                    ? ((Collection<?>) objectClass).contains(REPOSITORY_SERVICE) : REPOSITORY_SERVICE.equals(objectClass)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void writeIndex(File indexFile) throws IOException {
+        try (final Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(indexFile), StandardCharsets.UTF_8))) {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            out.write("<repository xmlns=\"" + REPOSITORY_NAMESPACE + "\" name=\"stamina-bundles\">\n");
+            for (final SharedBundle shared : sharedBundles.values()) {
+                final BundleResource res = BundleResource.read(shared.file);
+                if (res == null) {
+                    throw new IOException("Embedded JAR file is not a bundle: " + shared.location.embeddedName);
+                }
+                out.write("  <resource>\n");
+                for (final BundleResource.Capability cap : res.getCapabilities()) {
+                    writeCapability(out, cap.namespace, cap.attributes);
+                }
+                final Map<String, Object> content = new HashMap<>(4);
+                content.put("osgi.content", Checksums.sha256(shared.file));
+                content.put("url", Paths.get(repositoryDir).relativize(Paths.get(shared.entryName))
+                        .toString().replace(File.separatorChar, '/'));
+                content.put("size", shared.file.length());
+                content.put("mime", "application/vnd.osgi.bundle");
+                writeCapability(out, "osgi.content", content);
+                for (final BundleResource.Requirement req : res.getRequirements()) {
+                    out.write("    <requirement namespace=\"" + escape(req.namespace) + "\">\n");
+                    if (req.filter != null) {
+                        out.write("      <directive name=\"filter\" value=\"" + escape(req.filter.toString()) + "\"/>\n");
+                    }
+                    if (req.optional) {
+                        out.write("      <directive name=\"resolution\" value=\"optional\"/>\n");
+                    }
+                    out.write("    </requirement>\n");
+                }
+                out.write("  </resource>\n");
+            }
+            out.write("</repository>\n");
+        }
+    }
+
+    private static void writeCapability(Writer out, String namespace, Map<String, Object> attributes)
+            throws IOException {
+        out.write("    <capability namespace=\"" + escape(namespace) + "\">\n");
+        for (final Map.Entry<String, Object> e : new TreeMap<>(attributes).entrySet()) {
+            final Object value = e.getValue();
+            String type = null;
+            String str = String.valueOf(value);
+            if (value instanceof Version) {
+                type = "Version";
+            } else if (value instanceof Long) {
+                type = "Long";
+            } else if (value instanceof Double) {
+                type = "Double";
+            } else if (value instanceof Collection) {
+                final Collection<?> items = (Collection<?>) value;
+                final Object first = items.isEmpty() ? null : items.iterator().next();
+                type = "List<" + (first instanceof Version ? "Version" : first instanceof Long ? "Long"
+                        : first instanceof Double ? "Double" : "String") + ">";
+                final StringBuilder buf = new StringBuilder();
+                for (final Object item : items) {
+                    if (buf.length() != 0) {
+                        buf.append(',');
+                    }
+                    buf.append(item);
+                }
+                str = buf.toString();
+            }
+            out.write("      <attribute name=\"" + escape(e.getKey()) + "\""
+                    + (type == null ? "" : " type=\"" + escape(type) + "\"")
+                    + " value=\"" + escape(str) + "\"/>\n");
+        }
+        out.write("    </capability>\n");
+    }
+
+    private static String escape(String str) {
+        return str.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    /**
+     * List bundles embedded in a subsystem.
+     */
+    static List<EmbeddedBundle> scan(File subsystemFile) throws IOException {
+        final List<EmbeddedBundle> bundles = new ArrayList<>();
+        try (final ZipFile zip = new ZipFile(subsystemFile)) {
+            for (final Enumeration<ZipArchiveEntry> i = zip.getEntriesInPhysicalOrder(); i.hasMoreElements(); ) {
+                final ZipArchiveEntry entry = i.nextElement();
+                final String name = entry.getName();
+                if (entry.isDirectory() || name.indexOf('/') != -1 || !name.endsWith(".jar")) {
+                    continue;
+                }
+                final String checksum;
+                try (final InputStream in = zip.getInputStream(entry)) {
+                    checksum = Checksums.sha1(in);
+                }
+                bundles.add(new EmbeddedBundle(name, checksum, entry.getSize(), entry.getCompressedSize()));
+            }
+        }
+        return bundles;
+    }
+
+    /**
+     * Convert embedded bundles to a string, which can be stored as artifact metadata.
+     */
+    static String encode(List<EmbeddedBundle> bundles) {
+        final StringBuilder buf = new StringBuilder();
+        for (final EmbeddedBundle bundle : bundles) {
+            buf.append(bundle.checksum).append(':').append(bundle.size).append(':')
+                    .append(bundle.compressedSize).append(':').append(bundle.name).append('\n');
+        }
+        return buf.toString();
+    }
+
+    static List<EmbeddedBundle> decode(String str) {
+        final List<EmbeddedBundle> bundles = new ArrayList<>();
+        for (final String line : str.split("\n")) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            final String[] parts = line.split(":", 4);
+            bundles.add(new EmbeddedBundle(parts[3], parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2])));
+        }
+        return bundles;
+    }
+
+    /**
+     * Bundle embedded in a subsystem.
+     */
+    static final class EmbeddedBundle {
+        final String name;
+        final String checksum;
+        final long size;
+        final long compressedSize;
+
+        EmbeddedBundle(String name, String checksum, long size, long compressedSize) {
+            this.name = name;
+            this.checksum = checksum;
+            this.size = size;
+            this.compressedSize = compressedSize;
+        }
+    }
+
+    /**
+     * Location of a bundle in the distribution: a distribution entry,
+     * or an entry embedded in a subsystem.
+     */
+    private static final class Location {
+        final String entryName;
+        final File file;
+        final String embeddedName;
+        final long size;
+        final long compressedSize;
+
+        Location(String entryName, File file, String embeddedName, long size, long compressedSize) {
+            this.entryName = entryName;
+            this.file = file;
+            this.embeddedName = embeddedName;
+            this.size = size;
+            this.compressedSize = compressedSize;
+        }
+    }
+
+    private static final class SharedBundle {
+        final String entryName;
+        final Location location;
+        File file;
+
+        SharedBundle(String entryName, Location location) {
+            this.entryName = entryName;
+            this.location = location;
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.mojo;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.utils.IOUtils;
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Rewrite bundles before they are archived: class entries are stored or recompressed
+ * at a given level, debug attributes may be removed from classes, and some resources
+ * may be removed.
+ * <p>
+ * The bundle manifest and signature files are always kept. Signed bundles are only
+ * recompressed, since any other change would invalidate their signatures.
+ * Rewritten bundles are cached by input checksum and options.
+ *
+ * @author Stamina Framework developers
+ */
+final class BundleOptimizer {
+    private static final String MANIFEST = "META-INF/MANIFEST.MF";
+    private static final String CHECKSUM_EXTENSION = ".sha1";
+
+    private final Log log;
+    private final File directory;
+    private final int classLevel;
+    private final boolean stripDebugInfo;
+    private final List<String> excludes;
+    private final List<Pattern> excludePatterns;
+    private int rewrittenCount;
+    private int cachedCount;
+    private long bytesIn;
+    private long bytesOut;
+
+    /**
+     * @param directory      directory where rewritten bundles are cached
+     * @param classLevel     compression level of class entries (0: stored, -1: default level)
+     * @param stripDebugInfo remove line numbers and local variable tables from classes
+     * @param excludes       removed entries (globs, <code>null</code> to keep all entries)
+     */
+    BundleOptimizer(Log log, File directory, int classLevel, boolean stripDebugInfo, List<String> excludes) {
+        if (classLevel < -1 || classLevel > 9) {
+            throw new IllegalArgumentException("Invalid bundle class compression level: " + classLevel);
+        }
+        this.log = log;
+        this.directory = directory;
+        this.classLevel = classLevel;
+        this.stripDebugInfo = stripDebugInfo;
+        this.excludes = excludes == null ? Collections.emptyList() : new ArrayList<>(excludes);
+        this.excludePatterns = new ArrayList<>(this.excludes.size());
+        for (final String exclude : this.excludes) {
+            excludePatterns.add(CompressionRule.toRegex(exclude));
+        }
+    }
+
+    /**
+     * Get a description of optimization options, used for detecting option changes between builds.
+     */
+    String describe() {
+        return "classLevel=" + classLevel + ",stripDebugInfo=" + stripDebugInfo + ",excludes=" + excludes;
+    }
+
+    /**
+     * Get the key identifying a rewritten bundle, from the input bundle checksum.
+     */
+    String getKey(String checksum) {
+        return Checksums.sha1(checksum + ":" + describe());
+    }
+
+    /**
+     * Rewrite a bundle, unless it was already rewritten with the same options.
+     *
+     * @param bundle   bundle file
+     * @param checksum bundle checksum
+     * @return rewritten bundle
+     */
+    File optimize(File bundle, String checksum) throws IOException {
+        final String key = getKey(checksum);
+        final File optimized = new File(directory, key + ".jar");
+        if (optimized.isFile()) {
+            ++cachedCount;
+            return optimized;
+        }
+        directory.mkdirs();
+        final File tmpFile = File.createTempFile(key, ".tmp", directory);
+        try {
+            rewrite(bundle, tmpFile);
+            // Concurrent builds may rewrite the same bundle: the cached file is atomically replaced.
+            try {
+                Files.move(tmpFile.toPath(), optimized.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmpFile.toPath(), optimized.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            tmpFile.delete();
+        }
+        ++rewrittenCount;
+        bytesIn += bundle.length();
+        bytesOut += optimized.length();
+        return optimized;
+    }
+
+    /**
+     * Get the checksum of a rewritten bundle.
+     */
+    static String getChecksum(File optimized) throws IOException {
+        final File checksumFile = new File(optimized.getPath() + CHECKSUM_EXTENSION);
+        if (checksumFile.isFile() && checksumFile.lastModified() >= optimized.lastModified()) {
+            return new String(Files.readAllBytes(checksumFile.toPath()), StandardCharsets.US_ASCII).trim();
+        }
+        final String checksum = Checksums.sha1(optimized);
+        // Concurrent builds must never read a partially written checksum file.
+        final File tmpFile = File.createTempFile(optimized.getName(), ".tmp", optimized.getParentFile());
+        try {
+            Files.write(tmpFile.toPath(), checksum.getBytes(StandardCharsets.US_ASCII));
+            try {
+                Files.move(tmpFile.toPath(), checksumFile.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmpFile.toPath(), checksumFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            tmpFile.delete();
+        }
+        return checksum;
+    }
+
+    int getRewrittenCount() {
+        return rewrittenCount;
+    }
+
+    int getCachedCount() {
+        return cachedCount;
+    }
+
+    long getBytesIn() {
+        return bytesIn;
+    }
+
+    long getBytesOut() {
+        return bytesOut;
+    }
+
+    private void rewrite(File bundle, File target) throws IOException {
+        try (final ZipFile zip = new ZipFile(bundle);
+             final ZipArchiveOutputStream out = new ZipArchiveOutputStream(target)) {
+            final List<ZipArchiveEntry> entries = Collections.list(zip.getEntriesInPhysicalOrder());
+            final boolean signed = isSigned(entries);
+            if (signed && (stripDebugInfo || !excludes.isEmpty())) {
+                log.info("Signed bundle is only recompressed: " + bundle.getName());
+            }
+            for (final ZipArchiveEntry entry : entries) {
+                final String name = entry.getName();
+                if (!signed && isExcluded(name)) {
+                    continue;
+                }
+                byte[] data;
+                try (final InputStream in = zip.getInputStream(entry)) {
+                    data = IOUtils.toByteArray(in);
+                }
+                final boolean isClass = name.endsWith(".class") && !entry.isDirectory();
+                if (isClass && stripDebugInfo && !signed) {
+                    try {
+                        data = ClassDebugStripper.strip(data);
+                    } catch (IOException e) {
+                        log.debug("Cannot remove debug attributes from class: " + name + " (" + bundle + ")", e);
+                    }
+                }
+
+                final ZipArchiveEntry newEntry = new ZipArchiveEntry(name);
+                newEntry.setTime(entry.getTime());
+                if (entry.getPlatform() == ZipArchiveEntry.PLATFORM_UNIX) {
+                    newEntry.setUnixMode(entry.getUnixMode());
+                }
+                final int level = isClass ? classLevel : Deflater.DEFAULT_COMPRESSION;
+                if (entry.isDirectory() || isClass && classLevel == 0
+                        || !isClass && entry.getMethod() == ZipEntry.STORED) {
+                    final CRC32 crc = new CRC32();
+                    crc.update(data);
+                    newEntry.setMethod(ZipEntry.STORED);
+                    newEntry.setSize(data.length);
+                    newEntry.setCrc(crc.getValue());
+                } else {
+                    newEntry.setMethod(ZipEntry.DEFLATED);
+                    out.setLevel(level);
+                }
+                out.putArchiveEntry(newEntry);
+                out.write(data);
+                out.closeArchiveEntry();
+            }
+        }
+    }
+
+    private boolean isExcluded(String name) {
+        if (MANIFEST.equals(name) || isSignatureFile(name)) {
+            return false;
+        }
+        for (final Pattern p : excludePatterns) {
+            if (p.matcher(name).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isSigned(List<ZipArchiveEntry> entries) {
+        for (final ZipArchiveEntry entry : entries) {
+            final String name = entry.getName().toUpperCase(Locale.ROOT);
+            if (name.startsWith("META-INF/") && name.endsWith(".SF")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isSignatureFile(String name) {
+        final String upperName = name.toUpperCase(Locale.ROOT);
+        if (!upperName.startsWith("META-INF/") || upperName.indexOf('/', 9) != -1) {
+            return false;
+        }
+        return upperName.endsWith(".SF") || upperName.endsWith(".RSA") || upperName.endsWith(".DSA")
+                || upperName.endsWith(".EC") || upperName.startsWith("META-INF/SIG-");
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.mojo;
+
+import aQute.bnd.version.Version;
+import org.apache.felix.utils.manifest.Attribute;
+import org.apache.felix.utils.manifest.Clause;
+import org.apache.felix.utils.manifest.Parser;
+import org.osgi.framework.Constants;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * OSGi bundle, with capabilities and requirements read from its manifest.
+ * Only requirements effective at resolve time are kept.
+ *
+ * @author Stamina Framework developers
+ */
+final class BundleResource {
+    static final String PACKAGE_NAMESPACE = "osgi.wiring.package";
+    static final String BUNDLE_NAMESPACE = "osgi.wiring.bundle";
+    static final String HOST_NAMESPACE = "osgi.wiring.host";
+    static final String IDENTITY_NAMESPACE = "osgi.identity";
+    static final String TYPE_BUNDLE = "osgi.bundle";
+    static final String TYPE_FRAGMENT = "osgi.fragment";
+
+    private static final List<String> HEADERS = Arrays.asList(
+            Constants.BUNDLE_MANIFESTVERSION, Constants.BUNDLE_SYMBOLICNAME, Constants.BUNDLE_VERSION,
+            Constants.FRAGMENT_HOST, Constants.EXPORT_PACKAGE, Constants.IMPORT_PACKAGE,
+            Constants.REQUIRE_BUNDLE, Constants.REQUIRE_CAPABILITY, Constants.PROVIDE_CAPABILITY);
+
+    private final File file;
+    private final String symbolicName;
+    private final Version version;
+    private final String type;
+    private final List<Capability> capabilities = new ArrayList<>();
+    private final List<Requirement> requirements = new ArrayList<>();
+
+    private BundleResource(File file, String symbolicName, Version version, String type) {
+        this.file = file;
+        this.symbolicName = symbolicName;
+        this.version = version;
+        this.type = type;
+    }
+
+    /**
+     * Read a bundle.
+     *
+     * @return <code>null</code> if this file is not an OSGi R4+ bundle
+     */
+    static BundleResource read(File file) throws IOException {
+        return read(file, ManifestReader.read(file, ManifestReader.BUNDLE_MANIFEST, HEADERS));
+    }
+
+    /**
+     * Read a bundle from its manifest.
+     *
+     * @param file     bundle file (or bundle entry path, for a bundle embedded in another archive)
+     * @param manifest manifest content (may be <code>null</code>)
+     * @return <code>null</code> if this manifest is not an OSGi R4+ bundle manifest
+     */
+    static BundleResource read(File file, byte[] manifest) throws IOException {
+        return read(file, ManifestReader.parse(manifest, HEADERS));
+    }
+
+    private static BundleResource read(File file, Map<String, String> headers) throws IOException {
+        if (headers == null || !"2".equals(headers.get(Constants.BUNDLE_MANIFESTVERSION))
+                || headers.get(Constants.BUNDLE_SYMBOLICNAME) == null) {
+            return null;
+        }
+        try {
+            return parse(file, headers);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid bundle manifest: " + e.getMessage(), e);
+        }
+    }
+
+    private static BundleResource parse(File file, Map<String, String> headers) {
+        final String sn = Parser.parseHeader(headers.get(Constants.BUNDLE_SYMBOLICNAME))[0].getName();
+        final String rawVersion = headers.get(Constants.BUNDLE_VERSION);
+        final Version version = rawVersion == null ? Version.emptyVersion : Version.parseVersion(rawVersion.trim());
+        final String fragmentHost = headers.get(Constants.FRAGMENT_HOST);
+        final BundleResource res = new BundleResource(file, sn, version,
+                fragmentHost == null ? TYPE_BUNDLE : TYPE_FRAGMENT);
+
+        final Map<String, Object> identity = new HashMap<>(4);
+        identity.put(IDENTITY_NAMESPACE, sn);
+        identity.put("type", res.type);
+        identity.put("version", version);
+        res.capabilities.add(new Capability(IDENTITY_NAMESPACE, identity));
+        if (fragmentHost == null) {
+            final Map<String, Object> bundle = new HashMap<>(4);
+            bundle.put(BUNDLE_NAMESPACE, sn);
+            bundle.put(Constants.BUNDLE_VERSION_ATTRIBUTE, version);
+            res.capabilities.add(new Capability(BUNDLE_NAMESPACE, bundle));
+            final Map<String, Object> host = new HashMap<>(4);
+            host.put(HOST_NAMESPACE, sn);
+            host.put(Constants.BUNDLE_VERSION_ATTRIBUTE, version);
+            res.capabilities.add(new Capability(HOST_NAMESPACE, host));
+        } else {
+            final Clause host = Parser.parseHeader(fragmentHost)[0];
+            res.requirements.add(new Requirement(HOST_NAMESPACE, host.getName(),
+                    "(&(" + HOST_NAMESPACE + "=" + host.getName() + ")"
+                            + toVersionFilter(Constants.BUNDLE_VERSION_ATTRIBUTE,
+                            host.getAttribute(Constants.BUNDLE_VERSION_ATTRIBUTE)) + ")", false));
+        }
+
+        for (final Clause clause : parseHeader(headers.get(Constants.EXPORT_PACKAGE))) {
+            final Map<String, Object> attrs = toAttributes(clause);
+            attrs.remove("specification-version");
+            final String exportVersion = clause.getAttribute(Constants.VERSION_ATTRIBUTE) != null
+                    ? clause.getAttribute(Constants.VERSION_ATTRIBUTE) : clause.getAttribute("specification-version");
+            attrs.put(PACKAGE_NAMESPACE, clause.getName());
+            attrs.put(Constants.VERSION_ATTRIBUTE,
+                    exportVersion == null ? Version.emptyVersion : Version.parseVersion(exportVersion.trim()));
+            attrs.put("bundle-symbolic-name", sn);
+            attrs.put(Constants.BUNDLE_VERSION_ATTRIBUTE, version);
+            res.capabilities.add(new Capability(PACKAGE_NAMESPACE, attrs));
+        }
+        for (final Clause clause : parseHeader(headers.get(Constants.IMPORT_PACKAGE))) {
+            final String importVersion = clause.getAttribute(Constants.VERSION_ATTRIBUTE) != null
+                    ? clause.getAttribute(Constants.VERSION_ATTRIBUTE) : clause.getAttribute("specification-version");
+            final StringBuilder filter = new StringBuilder("(&(" + PACKAGE_NAMESPACE + "=" + clause.getName() + ")");
+            filter.append(toVersionFilter(Constants.VERSION_ATTRIBUTE, importVersion));
+            filter.append(toVersionFilter(Constants.BUNDLE_VERSION_ATTRIBUTE,
+                    clause.getAttribute(Constants.BUNDLE_VERSION_ATTRIBUTE)));
+            if (clause.getAttribute("bundle-symbolic-name") != null) {
+                filter.append("(bundle-symbolic-name=").append(clause.getAttribute("bundle-symbolic-name")).append(")");
+            }
+            res.requirements.add(new Requirement(PACKAGE_NAMESPACE, clause.getName(),
+                    filter.append(")").toString(), isOptional(clause)));
+        }
+        for (final Clause clause : parseHeader(headers.get(Constants.REQUIRE_BUNDLE))) {
+            res.requirements.add(new Requirement(BUNDLE_NAMESPACE, clause.getName(),
+                    "(&(" + BUNDLE_NAMESPACE + "=" + clause.getName() + ")"
+                            + toVersionFilter(Constants.BUNDLE_VERSION_ATTRIBUTE,
+                            clause.getAttribute(Constants.BUNDLE_VERSION_ATTRIBUTE)) + ")", isOptional(clause)));
+        }
+        for (final Clause clause : parseHeader(headers.get(Constants.PROVIDE_CAPABILITY))) {
+            res.capabilities.add(new Capability(clause.getName(), toAttributes(clause)));
+        }
+        for (final Clause clause : parseHeader(headers.get(Constants.REQUIRE_CAPABILITY))) {
+            final String effective = clause.getDirective(Constants.EFFECTIVE_DIRECTIVE);
+            if (effective != null && !"resolve".equals(effective)) {
+                continue;
+            }
+            res.requirements.add(new Requirement(clause.getName(), clause.getName(),
+                    clause.getDirective(Constants.FILTER_DIRECTIVE), isOptional(clause)));
+        }
+        return res;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    String getSymbolicName() {
+        return symbolicName;
+    }
+
+    Version getVersion() {
+        return version;
+    }
+
+    String getType() {
+        return type;
+    }
+
+    List<Capability> getCapabilities() {
+        return capabilities;
+    }
+
+    List<Requirement> getRequirements() {
+        return requirements;
+    }
+
+    /**
+     * Check if a requirement is satisfied by a capability of this resource.
+     */
+    boolean provides(Requirement req) {
+        for (final Capability cap : capabilities) {
+            if (req.isSatisfiedBy(cap)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return symbolicName + ";version=" + version;
+    }
+
+    /**
+     * Convert a version range to a filter, using OSGi version range syntax.
+     * A single version is a minimum version.
+     */
+    static String toVersionFilter(String attr, String range) {
+        if (range == null || range.trim().isEmpty()) {
+            return "";
+        }
+        final String r = range.trim();
+        final char first = r.charAt(0);
+        if (first != '[' && first != '(') {
+            return "(" + attr + ">=" + Version.parseVersion(r) + ")";
+        }
+        final char last = r.charAt(r.length() - 1);
+        final int comma = r.indexOf(',');
+        if (comma == -1 || (last != ']' && last != ')')) {
+            throw new IllegalArgumentException("Invalid version range: " + range);
+        }
+        final Version low = Version.parseVersion(r.substring(1, comma).trim());
+        final Version high = Version.parseVersion(r.substring(comma + 1, r.length() - 1).trim());
+        return (first == '[' ? "(" + attr + ">=" + low + ")" : "(!(" + attr + "<=" + low + "))")
+                + (last == ']' ? "(" + attr + "<=" + high + ")" : "(!(" + attr + ">=" + high + "))");
+    }
+
+    private static Clause[] parseHeader(String header) {
+        return header == null ? new Clause[0] : Parser.parseHeader(header);
+    }
+
+    private static boolean isOptional(Clause clause) {
+        return Constants.RESOLUTION_OPTIONAL.equals(clause.getDirective(Constants.RESOLUTION_DIRECTIVE));
+    }
+
+    /**
+     * Get clause attributes, converted to their declared type.
+     */
+    private static Map<String, Object> toAttributes(Clause clause) {
+        final Map<String, Object> attrs = new HashMap<>();
+        for (final Attribute attr : clause.getAttributes()) {
+            String name = attr.getName();
+            String type = "String";
+            final int typeIndex = name.indexOf(':');
+            if (typeIndex != -1) {
+                type = name.substring(typeIndex + 1).trim();
+                name = name.substring(0, typeIndex).trim();
+            }
+            attrs.put(name, toAttributeValue(attr.getValue(), type));
+        }
+        return attrs;
+    }
+
+    private static Object toAttributeValue(String value, String type) {
+        if (type.startsWith("List")) {
+            final String itemType = type.startsWith("List<") && type.endsWith(">")
+                    ? type.substring(5, type.length() - 1).trim() : "String";
+            final List<Object> items = new ArrayList<>();
+            for (final String item : value.split(",")) {
+                items.add(toAttributeValue(item.trim(), itemType));
+            }
+            return items;
+        }
+        switch (type) {
+            case "Version":
+                return Version.parseVersion(value.trim());
+            case "Long":
+                return Long.valueOf(value.trim());
+            case "Double":
+                return Double.valueOf(value.trim());
+            default:
+                return value;
+        }
+    }
+
+    /**
+     * Capability provided by a resource.
+     */
+    static final class Capability {
+        final String namespace;
+        final Map<String, Object> attributes;
+
+        Capability(String namespace, Map<String, Object> attributes) {
+            this.namespace = namespace;
+            this.attributes = attributes;
+        }
+    }
+
+    /**
+     * Requirement of a resource.
+     */
+    static final class Requirement {
+        final String namespace;
+        final String name;
+        final RequirementFilter filter;
+        final boolean optional;
+
+        /**
+         * @param name   requirement name, such as an imported package name
+         * @param filter requirement filter (<code>null</code>: any capability in this namespace)
+         */
+        Requirement(String namespace, String name, String filter, boolean optional) {
+            this.namespace = namespace;
+            this.name = name;
+            this.filter = filter == null ? null : RequirementFilter.parse(filter);
+            this.optional = optional;
+        }
+
+        boolean isSatisfiedBy(Capability cap) {
+            return namespace.equals(cap.namespace) && (filter == null || filter.matches(cap.attributes));
+        }
+
+        @Override
+        public String toString() {
+            return namespace + (filter == null ? "" : ": " + filter);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.mojo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Checksum utilities.
+ *
+ * @author Stamina Framework developers
+ */
+final class Checksums {
+    private static final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
+
+    private Checksums() {
+    }
+
+    /**
+     * Compute SHA-1 checksum of a file, as an hexadecimal string.
+     */
+    static String sha1(File file) throws IOException {
+        try (final InputStream in = new FileInputStream(file)) {
+            return sha1(in);
+        }
+    }
+
+    /**
+     * Compute SHA-1 checksum of a stream, as an hexadecimal string.
+     * The stream is not closed.
+     */
+    static String sha1(InputStream in) throws IOException {
+        return digest(in, newDigest(), null);
+    }
+
+    /**
+     * Compute SHA-1 checksum of a stream, while copying it to an output stream.
+     * Streams are not closed.
+     */
+    static String sha1(InputStream in, OutputStream out) throws IOException {
+        return digest(in, newDigest(), out);
+    }
+
+    /**
+     * Compute SHA-256 checksum of a file, as an hexadecimal string.
+     */
+    static String sha256(File file) throws IOException {
+        try (final InputStream in = new FileInputStream(file)) {
+            return digest(in, newDigest("SHA-256"), null);
+        }
+    }
+
+    private static String digest(InputStream in, MessageDigest md, OutputStream out) throws IOException {
+        final byte[] buf = new byte[8192];
+        for (int bytesRead; (bytesRead = in.read(buf)) != -1; ) {
+            md.update(buf, 0, bytesRead);
+            if (out != null) {
+                out.write(buf, 0, bytesRead);
+            }
+        }
+        return toHex(md.digest());
+    }
+
+    /**
+     * Compute SHA-1 checksum of a string, as an hexadecimal string.
+     */
+    static String sha1(String str) {
+        final MessageDigest md = newDigest();
+        return toHex(md.digest(str.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static MessageDigest newDigest() {
+        return newDigest("SHA-1");
+    }
+
+    private static MessageDigest newDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(algorithm + " algorithm is not available", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        final char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; ++i) {
+            chars[i * 2] = HEX_CHARS[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX_CHARS[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
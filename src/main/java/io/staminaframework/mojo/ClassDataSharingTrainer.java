@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.mojo;
+
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Generate a class data sharing (CDS) archive with a training run of a distribution.
+ * The distribution is started with the build JVM, and stopped once it is ready:
+ * classes loaded during the training run are then stored in the archive.
+ * <p>
+ * With Java 13 or later, a dynamic archive is written when the JVM exits
+ * (including classes loaded by bundle class loaders).
+ * With Java 10 to 12, loaded classes are recorded to a class list,
+ * which is then used to dump a static archive.
+ * A CDS archive can only be used by the JVM which created it.
+ *
+ * @author Stamina Framework developers
+ */
+final class ClassDataSharingTrainer {
+    private static final long STOP_TIMEOUT_SECONDS = 30;
+
+    private final Log log;
+    private final String launcherJar;
+    private final List<String> arguments;
+    private final Pattern readyPattern;
+    private final long timeoutSeconds;
+    private int classCount;
+
+    /**
+     * @param launcherJar    launcher JAR file, relative to the distribution directory
+     * @param arguments      launcher arguments
+     * @param readyPattern   pattern matching an output line when the distribution is ready
+     *                       (<code>null</code>: the training run exits by itself)
+     * @param timeoutSeconds maximum duration of the training run
+     */
+    ClassDataSharingTrainer(Log log, String launcherJar, List<String> arguments,
+                            Pattern readyPattern, long timeoutSeconds) {
+        this.log = log;
+        this.launcherJar = launcherJar;
+        this.arguments = arguments;
+        this.readyPattern = readyPattern;
+        this.timeoutSeconds = timeoutSeconds;
+    }
+
+    /**
+     * Get the Java feature version of the build JVM.
+     */
+    static int getJavaVersion() {
+        final String version = System.getProperty("java.specification.version");
+        final String feature = version.startsWith("1.") ? version.substring(2) : version;
+        final int dot = feature.indexOf('.');
+        return Integer.parseInt(dot == -1 ? feature : feature.substring(0, dot));
+    }
+
+    /**
+     * Run a distribution and write a CDS archive.
+     *
+     * @param distDir     distribution directory, used as working directory
+     * @param workDir     directory for training files (class list, output log)
+     * @param archiveFile CDS archive to write
+     */
+    void train(File distDir, File workDir, File archiveFile) throws IOException {
+        final int javaVersion = getJavaVersion();
+        if (javaVersion < 10) {
+            throw new IOException("Class data sharing for application classes requires Java 10 or later: "
+                    + "build JVM is Java " + javaVersion);
+        }
+        if (!new File(distDir, launcherJar).isFile()) {
+            throw new IOException("Launcher not found in distribution: " + launcherJar);
+        }
+        workDir.mkdirs();
+        archiveFile.delete();
+        final File classList = new File(workDir, "classes.lst");
+        classList.delete();
+        final File outputLog = new File(workDir, "training.log");
+
+        final List<String> cmd = new ArrayList<>();
+        cmd.add(getJavaExecutable());
+        cmd.add("-XX:DumpLoadedClassList=" + classList.getAbsolutePath());
+        if (javaVersion >= 13) {
+            cmd.add("-XX:ArchiveClassesAtExit=" + archiveFile.getAbsolutePath());
+        } else {
+            cmd.add("-Xshare:off");
+        }
+        cmd.add("-jar");
+        cmd.add(launcherJar);
+        if (arguments != null) {
+            cmd.addAll(arguments);
+        }
+        log.info("Starting class data sharing training run: " + distDir);
+        run(cmd, distDir, outputLog, readyPattern);
+        classCount = countClasses(classList);
+        log.info("Classes loaded during training run: " + classCount);
+
+        if (javaVersion < 13) {
+            final List<String> dumpCmd = new ArrayList<>();
+            dumpCmd.add(getJavaExecutable());
+            if (javaVersion == 10) {
+                dumpCmd.add("-XX:+UseAppCDS");
+            }
+            dumpCmd.add("-Xshare:dump");
+            dumpCmd.add("-XX:SharedClassListFile=" + classList.getAbsolutePath());
+            dumpCmd.add("-XX:SharedArchiveFile=" + archiveFile.getAbsolutePath());
+            dumpCmd.add("-cp");
+            dumpCmd.add(launcherJar);
+            run(dumpCmd, distDir, new File(workDir, "dump.log"), null);
+        }
+        if (!archiveFile.isFile()) {
+            throw new IOException("Class data sharing archive was not written: see " + outputLog);
+        }
+    }
+
+    int getClassCount() {
+        return classCount;
+    }
+
+    /**
+     * Get JVM options enabling a CDS archive, as a JVM argument file.
+     *
+     * @param archive     CDS archive, relative to the distribution directory
+     * @param optionsFile JVM argument file, relative to the distribution directory
+     */
+    String toJvmOptions(String archive, String optionsFile) {
+        return "# Class data sharing archive, generated with Java " + System.getProperty("java.vm.version") + "\n"
+                + "# This archive is ignored if the JVM or the class path is not the same as when it was generated.\n"
+                + "# Use this file as a JVM argument file, from the distribution directory:\n"
+                + "#   java @" + optionsFile + " -jar " + launcherJar + "\n"
+                + "# or set JDK_JAVA_OPTIONS=@" + optionsFile + " before running a launcher script.\n"
+                + "-XX:SharedArchiveFile=" + archive + "\n"
+                + "-Xshare:auto\n";
+    }
+
+    private void run(List<String> cmd, File dir, File outputLog, Pattern ready) throws IOException {
+        log.debug("Running command: " + cmd);
+        final Process proc = new ProcessBuilder(cmd).directory(dir).redirectErrorStream(true).start();
+        final CountDownLatch readyLatch = new CountDownLatch(1);
+        final Thread outputReader = new Thread(() -> {
+            try (final BufferedReader in = new BufferedReader(
+                    new InputStreamReader(proc.getInputStream(), StandardCharsets.UTF_8));
+                 final Writer out = new OutputStreamWriter(new FileOutputStream(outputLog), StandardCharsets.UTF_8)) {
+                for (String line; (line = in.readLine()) != null; ) {
+                    out.write(line);
+                    out.write('\n');
+                    log.debug("[training] " + line);
+                    if (ready != null && ready.matcher(line).find()) {
+                        readyLatch.countDown();
+                    }
+                }
+            } catch (IOException e) {
+                log.debug("Cannot read training run output", e);
+            }
+        }, "stamina-cds-training");
+        outputReader.setDaemon(true);
+        outputReader.start();
+
+        try {
+            if (ready == null) {
+                if (!proc.waitFor(timeoutSeconds, TimeUnit.SECONDS)) {
+                    throw new IOException("Training run did not exit within " + timeoutSeconds
+                            + " seconds: see " + outputLog);
+                }
+            } else {
+                final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+                while (!readyLatch.await(100, TimeUnit.MILLISECONDS)) {
+                    if (!proc.isAlive()) {
+                        throw new IOException("Training run exited before being ready (exit code "
+                                + proc.exitValue() + "): see " + outputLog);
+                    }
+                    if (System.nanoTime() > deadline) {
+                        throw new IOException("Training run was not ready within " + timeoutSeconds
+                                + " seconds: see " + outputLog);
+                    }
+                }
+                // Stop the JVM gracefully: a dynamic archive is written when the JVM exits.
+                log.info("Distribution is ready: stopping training run");
+                proc.destroy();
+                if (!proc.waitFor(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    throw new IOException("Training run did not stop within " + STOP_TIMEOUT_SECONDS + " seconds");
+                }
+            }
+            outputReader.join(TimeUnit.SECONDS.toMillis(STOP_TIMEOUT_SECONDS));
+            if (ready == null && proc.exitValue() != 0) {
+                throw new IOException("Training run failed (exit code " + proc.exitValue() + "): see " + outputLog);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Training run interrupted");
+        } finally {
+            if (proc.isAlive()) {
+                proc.destroyForcibly();
+            }
+        }
+    }
+
+    private static int countClasses(File classList) throws IOException {
+        if (!classList.exists()) {
+            return 0;
+        }
+        int count = 0;
+        for (final String line : Files.readAllLines(classList.toPath(), StandardCharsets.UTF_8)) {
+            if (!line.isEmpty() && !line.startsWith("#") && !line.startsWith("@")) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    private static String getJavaExecutable() {
+        final File javaHome = new File(System.getProperty("java.home"));
+        return new File(javaHome, "bin" + File.separator
+                + (File.separatorChar == '\\' ? "java.exe" : "java")).getAbsolutePath();
+    }
+}
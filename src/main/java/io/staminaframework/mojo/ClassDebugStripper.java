@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.mojo;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Remove debug attributes from class files: line numbers and local variable tables.
+ * Other class file structures are copied as is: constant pool entries which are
+ * only used by removed attributes are kept.
+ *
+ * @author Stamina Framework developers
+ */
+final class ClassDebugStripper {
+    private static final int MAGIC = 0xCAFEBABE;
+    private static final String CODE_ATTRIBUTE = "Code";
+    private static final Set<String> DEBUG_ATTRIBUTES = new HashSet<>(Arrays.asList(
+            "LineNumberTable", "LocalVariableTable", "LocalVariableTypeTable"));
+
+    private ClassDebugStripper() {
+    }
+
+    /**
+     * Remove debug attributes from a class file.
+     */
+    static byte[] strip(byte[] classFile) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(classFile));
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream(classFile.length);
+        final DataOutputStream out = new DataOutputStream(buf);
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a class file");
+        }
+        out.writeInt(MAGIC);
+        // Minor and major versions.
+        copy(in, out, 4);
+
+        final int constantCount = in.readUnsignedShort();
+        out.writeShort(constantCount);
+        final String[] utf8Constants = new String[constantCount];
+        for (int i = 1; i < constantCount; ++i) {
+            final int tag = in.readUnsignedByte();
+            out.writeByte(tag);
+            switch (tag) {
+                case 1:
+                    final int len = in.readUnsignedShort();
+                    final byte[] bytes = new byte[len];
+                    in.readFully(bytes);
+                    out.writeShort(len);
+                    out.write(bytes);
+                    // Attribute names are ASCII: modified UTF-8 decoding is not required.
+                    utf8Constants[i] = new String(bytes, StandardCharsets.UTF_8);
+                    break;
+                case 7:
+                case 8:
+                case 16:
+                case 19:
+                case 20:
+                    copy(in, out, 2);
+                    break;
+                case 15:
+                    copy(in, out, 3);
+                    break;
+                case 3:
+                case 4:
+                case 9:
+                case 10:
+                case 11:
+                case 12:
+                case 17:
+                case 18:
+                    copy(in, out, 4);
+                    break;
+                case 5:
+                case 6:
+                    // Long and double constants take two constant pool entries.
+                    copy(in, out, 8);
+                    ++i;
+                    break;
+                default:
+                    throw new IOException("Unsupported constant pool tag: " + tag);
+            }
+        }
+
+        // Access flags, this class and super class.
+        copy(in, out, 6);
+        final int interfaceCount = in.readUnsignedShort();
+        out.writeShort(interfaceCount);
+        copy(in, out, 2 * interfaceCount);
+        for (int members = 0; members < 2; ++members) {
+            // Fields, then methods.
+            final int memberCount = in.readUnsignedShort();
+            out.writeShort(memberCount);
+            for (int i = 0; i < memberCount; ++i) {
+                // Access flags, name and descriptor.
+                copy(in, out, 6);
+                copyAttributes(in, out, utf8Constants);
+            }
+        }
+        copyAttributes(in, out, utf8Constants);
+        if (in.read() != -1) {
+            throw new IOException("Unexpected data at end of class file");
+        }
+        out.flush();
+        return buf.toByteArray();
+    }
+
+    private static void copyAttributes(DataInputStream in, DataOutputStream out,
+                                       String[] utf8Constants) throws IOException {
+        final int count = in.readUnsignedShort();
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream(256);
+        final DataOutputStream attrOut = new DataOutputStream(buf);
+        int keptCount = 0;
+        for (int i = 0; i < count; ++i) {
+            final int nameIndex = in.readUnsignedShort();
+            final byte[] body = new byte[in.readInt()];
+            in.readFully(body);
+            final String name = nameIndex < utf8Constants.length ? utf8Constants[nameIndex] : null;
+            if (name == null) {
+                throw new IOException("Invalid attribute name index: " + nameIndex);
+            }
+            if (DEBUG_ATTRIBUTES.contains(name)) {
+                continue;
+            }
+            final byte[] newBody = CODE_ATTRIBUTE.equals(name) ? stripCode(body, utf8Constants) : body;
+            attrOut.writeShort(nameIndex);
+            attrOut.writeInt(newBody.length);
+            attrOut.write(newBody);
+            ++keptCount;
+        }
+        attrOut.flush();
+        out.writeShort(keptCount);
+        buf.writeTo(out);
+    }
+
+    private static byte[] stripCode(byte[] code, String[] utf8Constants) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(code));
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream(code.length);
+        final DataOutputStream out = new DataOutputStream(buf);
+        // Max stack and max locals.
+        copy(in, out, 4);
+        final int codeLength = in.readInt();
+        out.writeInt(codeLength);
+        copy(in, out, codeLength);
+        final int exceptionCount = in.readUnsignedShort();
+        out.writeShort(exceptionCount);
+        copy(in, out, 8 * exceptionCount);
+        copyAttributes(in, out, utf8Constants);
+        out.flush();
+        return buf.toByteArray();
+    }
+
+    private static void copy(DataInputStream in, DataOutputStream out, int len) throws IOException {
+        final byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        out.write(bytes);
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.staminaframework.mojo;
+
+/**
+ * Options used when compressing an archive.
+ *
+ * @author Stamina Framework developers
+ */
+final class CompressionOptions {
+    private final int threads;
+    private final int blockSize;
+    private final int level;
+    private final int scatterBufferSize;
+    private final CompressionPolicy policy;
+    private final long outputTimestamp;
+
+    /**
+     * Create compression options.
+     *
+     * @param threads           number of compression threads (0 or less: number of available processors)
+     * @param blockSize         size of input blocks compressed in parallel
+     * @param level             compression level (-1: default level for the compression format)
+     * @param scatterBufferSize maximum size of compressed data kept in memory for each pending entry
+     * @param policy            policy selecting how zip entries are compressed
+     * @param outputTimestamp   time set to all entries for reproducible output
+     *                          ({@link OutputTimestamp#DISABLED}: entries keep file times)
+     */
+    CompressionOptions(int threads, int blockSize, int level, int scatterBufferSize,
+                       CompressionPolicy policy, long outputTimestamp) {
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.blockSize = blockSize;
+        this.level = level;
+        this.scatterBufferSize = scatterBufferSize;
+        this.policy = policy;
+        this.outputTimestamp = outputTimestamp;
+    }
+
+    int getThreads() {
+        return threads;
+    }
+
+    int getBlockSize() {
+        return blockSize;
+    }
+
+    int getLevel() {
+        return level;
+    }
+
+    int getScatterBufferSize() {
+        return scatterBufferSize;
+    }
+
+    CompressionPolicy getPolicy() {
+        return policy;
+    }
+
+    long getOutputTimestamp() {
+        return outputTimestamp;
+    }
+
+    boolean isReproducible() {
+        return outputTimestamp != OutputTimestamp.DISABLED;
+    }
+
+    boolean isParallel() {
+        return threads > 1;
+    }
+}
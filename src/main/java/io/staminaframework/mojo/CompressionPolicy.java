@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.staminaframework.mojo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+
+/**
+ * Select how archive entries are compressed, using {@link CompressionRule} instances.
+ * The first matching rule is used: entries matching no rule are deflated.
+ *
+ * @author Stamina Framework developers
+ */
+final class CompressionPolicy {
+    private static final int TEXT_LEVEL = 9;
+    private static final String[] STORED_EXTENSIONS = {
+            "jar", "esa", "zip", "gz",
+    };
+    private static final String[] TEXT_EXTENSIONS = {
+            "cfg", "properties", "xml", "txt", "json", "yml", "yaml", "conf", "md", "sh", "bat", "cmd",
+    };
+
+    private final List<CompressionRule> rules;
+    private final int defaultLevel;
+
+    private CompressionPolicy(List<CompressionRule> rules, int defaultLevel) {
+        this.rules = rules;
+        this.defaultLevel = defaultLevel;
+    }
+
+    /**
+     * Create a compression policy.
+     *
+     * @param rules        compression rules, or <code>null</code> to use default rules
+     * @param defaultLevel compression level used when a rule does not set a level
+     */
+    static CompressionPolicy create(List<CompressionRule> rules, int defaultLevel) {
+        if (rules == null) {
+            return new CompressionPolicy(defaultRules(), defaultLevel);
+        }
+        for (final CompressionRule rule : rules) {
+            rule.validate();
+        }
+        return new CompressionPolicy(Collections.unmodifiableList(new ArrayList<>(rules)), defaultLevel);
+    }
+
+    /**
+     * Default rules: entries which are already compressed are stored,
+     * and text resources are deflated at the highest level.
+     */
+    static List<CompressionRule> defaultRules() {
+        final List<CompressionRule> rules = new ArrayList<>(STORED_EXTENSIONS.length + TEXT_EXTENSIONS.length);
+        for (final String ext : STORED_EXTENSIONS) {
+            rules.add(new CompressionRule(ext, CompressionRule.METHOD_STORED, -1));
+        }
+        for (final String ext : TEXT_EXTENSIONS) {
+            rules.add(new CompressionRule(ext, CompressionRule.METHOD_DEFLATE, TEXT_LEVEL));
+        }
+        return rules;
+    }
+
+    /**
+     * Get the zip compression method for an entry.
+     */
+    int getMethod(String entryName) {
+        final CompressionRule rule = findRule(entryName);
+        return rule != null && rule.isStored() ? ZipEntry.STORED : ZipEntry.DEFLATED;
+    }
+
+    /**
+     * Get the compression level for an entry.
+     */
+    int getLevel(String entryName) {
+        final CompressionRule rule = findRule(entryName);
+        return rule != null && rule.getLevel() != -1 ? rule.getLevel() : defaultLevel;
+    }
+
+    /**
+     * Get a description of this policy, used for detecting policy changes between builds.
+     */
+    String describe() {
+        final StringBuilder buf = new StringBuilder(256);
+        buf.append("level=").append(defaultLevel);
+        for (final CompressionRule rule : rules) {
+            buf.append(",{").append(rule.getPattern()).append("|").append(rule.getExtension())
+                    .append("|").append(rule.getMethod()).append("|").append(rule.getLevel()).append("}");
+        }
+        return buf.toString();
+    }
+
+    private CompressionRule findRule(String entryName) {
+        for (final CompressionRule rule : rules) {
+            if (rule.matches(entryName)) {
+                return rule;
+            }
+        }
+        return null;
+    }
+}
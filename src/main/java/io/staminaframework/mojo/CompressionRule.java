@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.staminaframework.mojo;
+
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Compression rule applied to archive entries.
+ * An entry matches a rule if its name matches the rule pattern (a glob, where
+ * <code>**</code> matches any directories), or if it has the rule extension.
+ *
+ * @author Stamina Framework developers
+ */
+public class CompressionRule {
+    static final String METHOD_STORED = "stored";
+    static final String METHOD_DEFLATE = "deflate";
+
+    private String pattern;
+    private String extension;
+    private String method = METHOD_DEFLATE;
+    private int level = -1;
+    private Pattern regex;
+
+    public CompressionRule() {
+    }
+
+    CompressionRule(String extension, String method, int level) {
+        this.extension = extension;
+        this.method = method;
+        this.level = level;
+    }
+
+    public String getPattern() {
+        return pattern;
+    }
+
+    public void setPattern(String pattern) {
+        this.pattern = pattern;
+        this.regex = null;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+    public void setExtension(String extension) {
+        this.extension = extension;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public void setMethod(String method) {
+        this.method = method;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+    boolean isStored() {
+        return METHOD_STORED.equalsIgnoreCase(method);
+    }
+
+    void validate() {
+        if (pattern == null && extension == null) {
+            throw new IllegalArgumentException("Compression rule requires a pattern or an extension");
+        }
+        if (!METHOD_STORED.equalsIgnoreCase(method) && !METHOD_DEFLATE.equalsIgnoreCase(method)) {
+            throw new IllegalArgumentException("Unsupported compression method: " + method
+                    + " (supported methods: " + METHOD_STORED + ", " + METHOD_DEFLATE + ")");
+        }
+        if (level < -1 || level > 9) {
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+    }
+
+    boolean matches(String entryName) {
+        if (extension != null) {
+            final String suffix = "." + extension.toLowerCase(Locale.ROOT);
+            if (entryName.toLowerCase(Locale.ROOT).endsWith(suffix)) {
+                return true;
+            }
+        }
+        if (pattern != null) {
+            if (regex == null) {
+                regex = toRegex(pattern);
+            }
+            return regex.matcher(entryName).matches();
+        }
+        return false;
+    }
+
+    static Pattern toRegex(String glob) {
+        final StringBuilder buf = new StringBuilder(glob.length() * 2);
+        for (int i = 0; i < glob.length(); ++i) {
+            final char c = glob.charAt(i);
+            if (c == '*') {
+                if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                    if (i + 2 < glob.length() && glob.charAt(i + 2) == '/') {
+                        buf.append("(.*/)?");
+                        i += 2;
+                    } else {
+                        buf.append(".*");
+                        i += 1;
+                    }
+                } else {
+                    buf.append("[^/]*");
+                }
+            } else if (c == '?') {
+                buf.append("[^/]");
+            } else {
+                buf.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(buf.toString());
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.mojo;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.artifact.repository.ArtifactRepository;
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.model.Dependency;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.project.DefaultProjectBuildingRequest;
+import org.apache.maven.project.ProjectBuildingRequest;
+import org.apache.maven.shared.artifact.DefaultArtifactCoordinate;
+import org.apache.maven.shared.artifact.resolve.ArtifactResolver;
+import org.apache.maven.shared.artifact.resolve.ArtifactResolverException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Resolve project dependencies to local files.
+ * Resolved files are memoized, so that a dependency is resolved once
+ * even if it is used at several packaging steps.
+ * When an {@link ArtifactIndex} is set, release artifacts found in this index
+ * are not resolved again, and file checksums and metadata are read from the index.
+ *
+ * @author Stamina Framework developers
+ */
+final class DependencyResolver {
+    private final ArtifactResolver artifactResolver;
+    private final ProjectBuildingRequest buildingRequest;
+    private final int threads;
+    private final Map<String, File> resolvedFiles = new ConcurrentHashMap<>();
+    private ArtifactIndex index;
+
+    DependencyResolver(ArtifactResolver artifactResolver, MavenSession session,
+                       List<ArtifactRepository> remoteRepositories, int threads) {
+        this.artifactResolver = artifactResolver;
+        this.threads = Math.max(1, threads);
+        buildingRequest = new DefaultProjectBuildingRequest(session.getProjectBuildingRequest());
+        buildingRequest.setRemoteRepositories(remoteRepositories);
+    }
+
+    void setIndex(ArtifactIndex index) {
+        this.index = index;
+    }
+
+    /**
+     * Resolve dependencies concurrently.
+     * Resolved files are then available through {@link #getFile(Dependency)}.
+     */
+    void resolve(Collection<Dependency> deps) throws MojoFailureException {
+        final Map<String, Dependency> pending = new LinkedHashMap<>(deps.size());
+        for (final Dependency dep : deps) {
+            final String key = toKey(dep);
+            if (!resolvedFiles.containsKey(key)) {
+                pending.put(key, dep);
+            }
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+        if (threads == 1 || pending.size() == 1) {
+            for (final Dependency dep : pending.values()) {
+                getFile(dep);
+            }
+            return;
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, pending.size()));
+        try {
+            final List<Future<File>> results = new ArrayList<>(pending.size());
+            for (final Dependency dep : pending.values()) {
+                results.add(executor.submit(() -> getFile(dep)));
+            }
+            for (final Future<File> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof MojoFailureException) {
+                        throw (MojoFailureException) e.getCause();
+                    }
+                    throw new MojoFailureException("Failed to resolve dependencies", e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new MojoFailureException("Dependency resolution interrupted", e);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Get a dependency file, resolving it if it was not previously resolved.
+     */
+    File getFile(Dependency dep) throws MojoFailureException {
+        final String key = toKey(dep);
+        File file = resolvedFiles.get(key);
+        if (file == null && index != null && ArtifactIndex.isIndexable(dep.getVersion())) {
+            file = index.getFile(key);
+        }
+        if (file == null) {
+            file = resolve(dep.getGroupId(), dep.getArtifactId(), dep.getVersion(),
+                    dep.getType(), dep.getClassifier());
+        }
+        resolvedFiles.put(key, file);
+        return file;
+    }
+
+    /**
+     * Get the checksum of a dependency file.
+     */
+    String getChecksum(Dependency dep) throws MojoFailureException, IOException {
+        final File file = getFile(dep);
+        if (index != null && ArtifactIndex.isIndexable(dep.getVersion())) {
+            return index.getChecksum(toKey(dep), file);
+        }
+        return Checksums.sha1(file);
+    }
+
+    /**
+     * Get the checksum of an artifact file.
+     */
+    String getChecksum(Artifact art) throws MojoFailureException, IOException {
+        final File file = getFile(art);
+        if (index != null && ArtifactIndex.isIndexable(art.getVersion())) {
+            return index.getChecksum(toKey(art), file);
+        }
+        return Checksums.sha1(file);
+    }
+
+    /**
+     * Get metadata read from a dependency file in a previous build.
+     *
+     * @return <code>null</code> if this metadata is not available
+     */
+    String getMetadata(Dependency dep, String name) throws MojoFailureException, IOException {
+        if (index != null && ArtifactIndex.isIndexable(dep.getVersion())) {
+            return index.getMetadata(toKey(dep), getFile(dep), name);
+        }
+        return null;
+    }
+
+    /**
+     * Keep metadata read from a dependency file for next builds.
+     */
+    void putMetadata(Dependency dep, String name, String value) throws MojoFailureException, IOException {
+        if (index != null && ArtifactIndex.isIndexable(dep.getVersion())) {
+            index.putMetadata(toKey(dep), getFile(dep), name, value);
+        }
+    }
+
+    /**
+     * Resolve an artifact which is not part of project dependencies.
+     */
+    File getFile(Artifact art) throws MojoFailureException {
+        final String key = toKey(art);
+        File file = resolvedFiles.get(key);
+        if (file == null && index != null && ArtifactIndex.isIndexable(art.getVersion())) {
+            file = index.getFile(key);
+        }
+        if (file == null) {
+            file = resolve(art.getGroupId(), art.getArtifactId(), art.getVersion(),
+                    art.getType(), art.getClassifier());
+        }
+        resolvedFiles.put(key, file);
+        return file;
+    }
+
+    private File resolve(String groupId, String artifactId, String version,
+                         String type, String classifier) throws MojoFailureException {
+        try {
+            final DefaultArtifactCoordinate artCoo = new DefaultArtifactCoordinate();
+            artCoo.setGroupId(groupId);
+            artCoo.setArtifactId(artifactId);
+            artCoo.setClassifier(classifier);
+            artCoo.setExtension(type);
+            artCoo.setVersion(version);
+
+            return artifactResolver.resolveArtifact(buildingRequest, artCoo).getArtifact().getFile();
+        } catch (ArtifactResolverException e) {
+            throw new MojoFailureException("Failed to resolve artifact: "
+                    + groupId + ":" + artifactId + ":" + version);
+        }
+    }
+
+    private static String toKey(Dependency dep) {
+        return toKey(dep.getGroupId(), dep.getArtifactId(), dep.getType(), dep.getClassifier(), dep.getVersion());
+    }
+
+    private static String toKey(Artifact art) {
+        return toKey(art.getGroupId(), art.getArtifactId(), art.getType(), art.getClassifier(), art.getVersion());
+    }
+
+    private static String toKey(String groupId, String artifactId, String type, String classifier, String version) {
+        return groupId + ":" + artifactId + ":" + type
+                + ":" + (classifier == null ? "" : classifier)
+                + ":" + version;
+    }
+}
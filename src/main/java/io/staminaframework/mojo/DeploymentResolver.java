@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.mojo;
+
+import org.apache.maven.plugin.MojoFailureException;
+
+import java.util.*;
+
+/**
+ * Resolve addon content against a target platform.
+ * Requirements are first satisfied by addon content, then by resources
+ * already selected from the target platform, and finally by the highest version
+ * of a target platform resource providing a matching capability.
+ * Selected resources are resolved in turn, until all mandatory requirements are satisfied.
+ * <p>
+ * This is not a complete OSGi resolver: a selected provider is never replaced
+ * (there is no backtracking), package <code>uses</code> constraints are not checked,
+ * and only bundles are resolved (subsystem requirements are unknown to this resolver).
+ *
+ * @author Stamina Framework developers
+ */
+final class DeploymentResolver {
+    /**
+     * Packages exported by the framework, when no system packages are set.
+     */
+    static final List<String> DEFAULT_SYSTEM_PACKAGES = Collections.unmodifiableList(Arrays.asList(
+            "javax.accessibility", "javax.activity", "javax.annotation.processing", "javax.crypto.*",
+            "javax.imageio.*", "javax.lang.model.*", "javax.management.*", "javax.naming.*", "javax.net.*",
+            "javax.print.*", "javax.rmi.*", "javax.script", "javax.security.*", "javax.sound.*", "javax.sql.*",
+            "javax.swing.*", "javax.tools", "javax.transaction.xa", "javax.xml.*",
+            "org.ietf.*", "org.omg.*", "org.w3c.*", "org.xml.*", "sun.*", "com.sun.*", "jdk.*",
+            "org.osgi.framework.*", "org.osgi.resource.*",
+            "org.osgi.service.condpermadmin", "org.osgi.service.packageadmin",
+            "org.osgi.service.permissionadmin", "org.osgi.service.startlevel",
+            "org.osgi.service.url", "org.osgi.util.tracker"));
+    private static final String SYSTEM_BUNDLE = "system.bundle";
+
+    private final List<BundleResource> platform;
+    private final List<String> systemPackages;
+
+    /**
+     * @param platform       resources available to satisfy addon requirements
+     * @param systemPackages packages exported by the framework: a name ending with <code>.*</code>
+     *                       matches a package and its subpackages
+     */
+    DeploymentResolver(List<BundleResource> platform, List<String> systemPackages) {
+        this.platform = new ArrayList<>(platform);
+        // Prefer higher versions, then use symbolic names for a stable order.
+        this.platform.sort(Comparator.comparing(BundleResource::getVersion).reversed()
+                .thenComparing(BundleResource::getSymbolicName));
+        this.systemPackages = systemPackages;
+    }
+
+    /**
+     * Resolve addon content.
+     *
+     * @return resources to provision from the target platform, in resolution order
+     * @throws MojoFailureException if a mandatory requirement cannot be satisfied
+     */
+    List<BundleResource> resolve(List<BundleResource> content) throws MojoFailureException {
+        final Set<BundleResource> resolved = new LinkedHashSet<>(content);
+        final List<BundleResource> provisioned = new ArrayList<>();
+        final Deque<BundleResource> queue = new ArrayDeque<>(content);
+        final List<String> unresolved = new ArrayList<>();
+        while (!queue.isEmpty()) {
+            final BundleResource res = queue.removeFirst();
+            for (final BundleResource.Requirement req : res.getRequirements()) {
+                if (isProvidedBySystem(req) || findProvider(req, resolved) != null || req.optional) {
+                    continue;
+                }
+                final BundleResource provider = findProvider(req, platform);
+                if (provider == null) {
+                    unresolved.add(res + " -> " + req);
+                } else {
+                    resolved.add(provider);
+                    provisioned.add(provider);
+                    queue.add(provider);
+                }
+            }
+        }
+        if (!unresolved.isEmpty()) {
+            final StringBuilder msg = new StringBuilder("Unable to resolve addon content against target platform:");
+            for (final String u : unresolved) {
+                msg.append("\n  ").append(u);
+            }
+            throw new MojoFailureException(msg.toString());
+        }
+        return provisioned;
+    }
+
+    private static BundleResource findProvider(BundleResource.Requirement req, Collection<BundleResource> candidates) {
+        for (final BundleResource candidate : candidates) {
+            if (candidate.provides(req)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    private boolean isProvidedBySystem(BundleResource.Requirement req) {
+        switch (req.namespace) {
+            case "osgi.ee":
+            case "osgi.native":
+                return true;
+            case BundleResource.BUNDLE_NAMESPACE:
+            case BundleResource.HOST_NAMESPACE:
+                return SYSTEM_BUNDLE.equals(req.name);
+            case BundleResource.PACKAGE_NAMESPACE:
+                for (final String pkg : systemPackages) {
+                    if (pkg.endsWith(".*")
+                            ? req.name.equals(pkg.substring(0, pkg.length() - 2))
+                            || req.name.startsWith(pkg.substring(0, pkg.length() - 1))
+                            : req.name.equals(pkg)) {
+                        return true;
+                    }
+                }
+                return false;
+            default:
+                return false;
+        }
+    }
+}
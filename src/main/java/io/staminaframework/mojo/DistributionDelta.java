@@ -0,0 +1,328 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.mojo;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Compute the delta between two distribution archives.
+ * Entries are compared by path (relative to the distribution root directory),
+ * content checksum and Unix permissions. Symbolic links are compared by target,
+ * and hard links are compared as the file they link to.
+ * <p>
+ * A delta is made of a manifest listing added, changed and removed files with their checksums,
+ * and of the content of added and changed files. Each manifest line is:
+ * <code>op old-checksum new-checksum mode path</code>, where <code>op</code> is
+ * <code>A</code> (added), <code>M</code> (changed) or <code>D</code> (removed),
+ * and unused fields are set to <code>-</code>. A symbolic link has its target
+ * prefixed by <code>@</code> instead of a checksum, and no mode.
+ *
+ * @author Stamina Framework developers
+ */
+final class DistributionDelta {
+    static final String MANIFEST = "DELTA";
+    static final String APPLY_SCRIPT = "apply.sh";
+    private static final String SYMLINK_PREFIX = "@";
+
+    private final Map<String, FileInfo> baseline = new HashMap<>();
+    private final Map<String, Change> changes = new TreeMap<>();
+    private int addedCount;
+    private int changedCount;
+    private int removedCount;
+    private int unchangedCount;
+
+    /**
+     * Read baseline distribution entries.
+     */
+    void readBaseline(File archive) throws IOException {
+        baseline.clear();
+        forEachFile(archive, (path, mode, in) -> baseline.put(path, new FileInfo(Checksums.sha1(in), mode)),
+                (path, target, hardLink) -> baseline.put(path, toLinkInfo(path, target, hardLink, baseline)));
+    }
+
+    /**
+     * Compare a distribution to the baseline.
+     * Added and changed files are extracted to <code>filesDir</code>.
+     */
+    void compare(File archive, File filesDir) throws IOException {
+        changes.clear();
+        addedCount = 0;
+        changedCount = 0;
+        removedCount = 0;
+        unchangedCount = 0;
+        final Map<String, FileInfo> entries = new HashMap<>();
+        final File tmpFile = new File(filesDir, ".delta.tmp");
+        filesDir.mkdirs();
+        try {
+            forEachFile(archive, (path, mode, in) -> {
+                final String checksum;
+                try (final OutputStream out = new FileOutputStream(tmpFile)) {
+                    checksum = Checksums.sha1(in, out);
+                }
+                final FileInfo info = new FileInfo(checksum, mode);
+                entries.put(path, info);
+                if (!isChanged(path, info)) {
+                    return;
+                }
+                final File file = toDeltaFile(filesDir, path);
+                Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                addChange(path, info, file);
+            }, (path, target, hardLink) -> {
+                final FileInfo info = toLinkInfo(path, target, hardLink, entries);
+                entries.put(path, info);
+                if (!isChanged(path, info)) {
+                    return;
+                }
+                File file = null;
+                if (hardLink) {
+                    // Link content is only available if the target file is part of the delta.
+                    final Change targetChange = changes.get(target);
+                    if (targetChange == null || targetChange.file == null) {
+                        throw new IOException("Cannot include hard link to unchanged file in delta: "
+                                + path + " -> " + target);
+                    }
+                    file = toDeltaFile(filesDir, path);
+                    Files.copy(targetChange.file.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+                addChange(path, info, file);
+            });
+        } finally {
+            tmpFile.delete();
+        }
+        for (final Map.Entry<String, FileInfo> e : baseline.entrySet()) {
+            if (!entries.containsKey(e.getKey())) {
+                ++removedCount;
+                changes.put(e.getKey(), new Change('D', e.getValue().checksum, null, 0, null));
+            }
+        }
+    }
+
+    /**
+     * Compare an entry to the baseline, counting unchanged entries.
+     */
+    private boolean isChanged(String path, FileInfo info) {
+        final FileInfo previous = baseline.get(path);
+        if (previous != null && previous.checksum.equals(info.checksum) && previous.mode == info.mode) {
+            ++unchangedCount;
+            return false;
+        }
+        return true;
+    }
+
+    private void addChange(String path, FileInfo info, File file) {
+        final FileInfo previous = baseline.get(path);
+        if (previous == null) {
+            ++addedCount;
+            changes.put(path, new Change('A', null, info.checksum, info.mode, file));
+        } else {
+            ++changedCount;
+            changes.put(path, new Change('M', previous.checksum, info.checksum, info.mode, file));
+        }
+    }
+
+    private static File toDeltaFile(File filesDir, String path) throws IOException {
+        final File file = new File(filesDir, path);
+        if (!file.getCanonicalPath().startsWith(filesDir.getCanonicalPath() + File.separator)) {
+            throw new IOException("Invalid distribution entry: " + path);
+        }
+        file.getParentFile().mkdirs();
+        return file;
+    }
+
+    /**
+     * Get the state of a link: a symbolic link is identified by its target,
+     * and a hard link by the file it links to.
+     *
+     * @param files files already visited in the same archive
+     */
+    private static FileInfo toLinkInfo(String path, String target, boolean hardLink,
+                                       Map<String, FileInfo> files) throws IOException {
+        if (hardLink) {
+            final FileInfo info = files.get(target);
+            if (info == null) {
+                throw new IOException("Invalid hard link in distribution: " + path + " -> " + target);
+            }
+            return info;
+        }
+        if (!target.matches("\\S+")) {
+            throw new IOException("Unsupported symbolic link target in distribution: " + path + " -> " + target);
+        }
+        return new FileInfo(SYMLINK_PREFIX + target, 0);
+    }
+
+    /**
+     * Get files to include in the delta, indexed by path.
+     */
+    Map<String, File> getFiles() {
+        final Map<String, File> files = new TreeMap<>();
+        for (final Map.Entry<String, Change> e : changes.entrySet()) {
+            if (e.getValue().file != null) {
+                files.put(e.getKey(), e.getValue().file);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Get Unix permissions of an added or changed file.
+     */
+    int getMode(String path) {
+        return changes.get(path).mode;
+    }
+
+    int getAddedCount() {
+        return addedCount;
+    }
+
+    int getChangedCount() {
+        return changedCount;
+    }
+
+    int getRemovedCount() {
+        return removedCount;
+    }
+
+    int getUnchangedCount() {
+        return unchangedCount;
+    }
+
+    /**
+     * Write delta manifest.
+     *
+     * @param description delta description, written as a comment
+     */
+    void writeManifest(File file, String description) throws IOException {
+        try (final Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            out.write("# " + description + "\n");
+            for (final Map.Entry<String, Change> e : changes.entrySet()) {
+                final Change c = e.getValue();
+                out.write(c.op + " " + (c.oldChecksum == null ? "-" : c.oldChecksum)
+                        + " " + (c.newChecksum == null ? "-" : c.newChecksum)
+                        + " " + (c.op == 'D' || c.file == null ? "-" : Integer.toOctalString(c.mode))
+                        + " " + e.getKey() + "\n");
+            }
+        }
+    }
+
+    /**
+     * Write the script applying or verifying a delta.
+     */
+    static void writeApplyScript(File file) throws IOException {
+        try (final InputStream in = DistributionDelta.class.getResourceAsStream("apply-delta.sh")) {
+            if (in == null) {
+                throw new IOException("Missing delta script resource");
+            }
+            Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        file.setExecutable(true, false);
+    }
+
+    /**
+     * Visit all files and links from a distribution archive (zip or compressed tar).
+     * Paths are relative to the distribution root directory.
+     */
+    private static void forEachFile(File archive, FileVisitor fileVisitor, LinkVisitor linkVisitor) throws IOException {
+        if (archive.getName().endsWith(".zip")) {
+            try (final ZipFile zip = new ZipFile(archive)) {
+                for (final Enumeration<ZipArchiveEntry> i = zip.getEntriesInPhysicalOrder(); i.hasMoreElements(); ) {
+                    final ZipArchiveEntry entry = i.nextElement();
+                    if (entry.isDirectory()) {
+                        continue;
+                    }
+                    if (entry.isUnixSymlink()) {
+                        linkVisitor.visit(toPath(entry.getName()), zip.getUnixSymlink(entry), false);
+                        continue;
+                    }
+                    final int mode = entry.getPlatform() == ZipArchiveEntry.PLATFORM_UNIX
+                            ? entry.getUnixMode() & 0777 : 0644;
+                    try (final InputStream in = zip.getInputStream(entry)) {
+                        fileVisitor.visit(toPath(entry.getName()), mode == 0 ? 0644 : mode, in);
+                    }
+                }
+            }
+        } else {
+            try (final TarArchiveInputStream in = new TarArchiveInputStream(TarCompression.newInputStream(archive))) {
+                for (TarArchiveEntry entry; (entry = in.getNextTarEntry()) != null; ) {
+                    if (entry.isDirectory()) {
+                        continue;
+                    }
+                    if (entry.isSymbolicLink()) {
+                        linkVisitor.visit(toPath(entry.getName()), entry.getLinkName(), false);
+                    } else if (entry.isLink()) {
+                        linkVisitor.visit(toPath(entry.getName()), toPath(entry.getLinkName()), true);
+                    } else if (entry.isCharacterDevice() || entry.isBlockDevice() || entry.isFIFO()) {
+                        throw new IOException("Unsupported distribution entry: " + entry.getName());
+                    } else {
+                        fileVisitor.visit(toPath(entry.getName()), entry.getMode() & 0777, in);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove the distribution root directory from an entry name.
+     */
+    private static String toPath(String entryName) {
+        final int slash = entryName.indexOf('/');
+        return slash == -1 ? entryName : entryName.substring(slash + 1);
+    }
+
+    private interface FileVisitor {
+        void visit(String path, int mode, InputStream in) throws IOException;
+    }
+
+    private interface LinkVisitor {
+        void visit(String path, String target, boolean hardLink) throws IOException;
+    }
+
+    private static final class FileInfo {
+        final String checksum;
+        final int mode;
+
+        FileInfo(String checksum, int mode) {
+            this.checksum = checksum;
+            this.mode = mode;
+        }
+    }
+
+    private static final class Change {
+        final char op;
+        final String oldChecksum;
+        final String newChecksum;
+        final int mode;
+        final File file;
+
+        Change(char op, String oldChecksum, String newChecksum, int mode, File file) {
+            this.op = op;
+            this.oldChecksum = oldChecksum;
+            this.newChecksum = newChecksum;
+            this.mode = mode;
+            this.file = file;
+        }
+    }
+}
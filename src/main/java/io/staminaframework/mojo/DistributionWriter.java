@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.staminaframework.mojo;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Write a distribution archive.
+ * Template entries are streamed from the template archive to the distribution archive,
+ * without being unpacked to disk first.
+ * Closing a writer more than once has no effect.
+ *
+ * @author Stamina Framework developers
+ */
+abstract class DistributionWriter implements Closeable {
+    /**
+     * Unix permissions of files added to the distribution, unless specified.
+     */
+    static final int DEFAULT_FILE_MODE = 0644;
+
+    /**
+     * Copy all entries from a distribution template.
+     * Template entries under <code>templateRoot</code> are moved to <code>root</code>.
+     *
+     * @param templateFile template archive, with the same format as the distribution archive
+     * @param templateRoot template root directory (such as <code>io.staminaframework.runtime-0.1.0/</code>)
+     * @param root         distribution root directory
+     * @return names of file entries copied from the template
+     */
+    abstract List<String> copyTemplate(File templateFile, String templateRoot, String root) throws IOException;
+
+    /**
+     * Add a file to the distribution, with default permissions.
+     */
+    void addFile(File file, String entryName) throws IOException {
+        addFile(file, entryName, DEFAULT_FILE_MODE);
+    }
+
+    /**
+     * Add a file to the distribution.
+     *
+     * @param mode Unix permissions of the file entry (such as <code>0755</code>)
+     */
+    abstract void addFile(File file, String entryName, int mode) throws IOException;
+
+    abstract int getEntryCount();
+
+    /**
+     * Get the uncompressed size of all entries.
+     */
+    abstract long getBytesIn();
+
+    /**
+     * Get the time spent compressing entries, summed over all threads (in nanoseconds).
+     */
+    abstract long getCompressionTime();
+
+    /**
+     * Normalize Unix permissions of a template entry for reproducible output:
+     * only the file type and the executable flag are kept.
+     */
+    static int toReproducibleMode(int mode, boolean directory) {
+        return (mode & ~07777) | (directory || (mode & 0111) != 0 ? 0755 : 0644);
+    }
+
+    /**
+     * Get Unix permissions of a file entry added to the distribution.
+     */
+    static int toFileMode(int mode, boolean reproducible) {
+        return reproducible ? toReproducibleMode(mode & 0777, false) : mode & 07777;
+    }
+
+    static String toEntryName(String templateEntryName, String templateRoot, String root) {
+        if (templateEntryName.startsWith(templateRoot)) {
+            return root + templateEntryName.substring(templateRoot.length());
+        }
+        return templateEntryName;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.mojo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Create or update an exploded distribution (a ready-to-run distribution directory).
+ * Distribution files are linked to their source when possible, instead of being copied.
+ * Files which did not change since the previous build are kept as is.
+ *
+ * @author Stamina Framework developers
+ */
+final class ExplodedDistributionUpdater {
+    static final String LINK_MODE_HARDLINK = "hardlink";
+    static final String LINK_MODE_SYMLINK = "symlink";
+    static final String LINK_MODE_COPY = "copy";
+
+    private final String linkMode;
+    private int reusedEntries;
+    private int writtenEntries;
+    private int removedEntries;
+
+    /**
+     * @param linkMode how files are added to the distribution: hard link, symbolic link or copy
+     */
+    ExplodedDistributionUpdater(String linkMode) {
+        this.linkMode = linkMode;
+    }
+
+    static boolean isValidLinkMode(String linkMode) {
+        return LINK_MODE_HARDLINK.equals(linkMode) || LINK_MODE_SYMLINK.equals(linkMode)
+                || LINK_MODE_COPY.equals(linkMode);
+    }
+
+    /**
+     * Update a distribution directory.
+     *
+     * @param dir         distribution directory
+     * @param templateDir unpacked template directory: when set, the distribution directory
+     *                    is recreated from this template
+     * @param previous    fingerprint of the previous build (<code>null</code> if the directory is recreated)
+     * @param current     fingerprint of the current build
+     * @param sources     source files, indexed by entry name: entries which are not in
+     *                    <code>current</code> (such as generated entries) are always written
+     * @param root        distribution root directory, removed from entry names
+     * @param copyPrefix  files with this entry name prefix are always copied, since the distribution may update them
+     */
+    void update(File dir, File templateDir, BuildFingerprint previous, BuildFingerprint current,
+                Map<String, File> sources, String root, String copyPrefix) throws IOException {
+        reusedEntries = 0;
+        writtenEntries = 0;
+        removedEntries = 0;
+
+        if (templateDir != null) {
+            TemplateCache.deleteDirectory(dir);
+            // Template files are copied: linked files would be shared with the template cache.
+            TemplateCache.copy(templateDir, dir);
+        }
+
+        final Map<String, String> previousEntries = previous == null
+                ? Collections.emptyMap() : previous.getEntries();
+        final Map<String, String> currentEntries = current.getEntries();
+        for (final Map.Entry<String, File> e : sources.entrySet()) {
+            final String name = e.getKey();
+            final Path target = toFile(dir, name, root).toPath();
+            final String checksum = currentEntries.get(name);
+            if (checksum != null && checksum.equals(previousEntries.get(name))
+                    && Files.exists(target)) {
+                ++reusedEntries;
+                continue;
+            }
+            Files.createDirectories(target.getParent());
+            Files.deleteIfExists(target);
+            addFile(e.getValue().getAbsoluteFile().toPath(), target, name.startsWith(copyPrefix));
+            ++writtenEntries;
+        }
+        for (final String name : previousEntries.keySet()) {
+            if (!sources.containsKey(name) && name.startsWith(root)) {
+                if (Files.deleteIfExists(toFile(dir, name, root).toPath())) {
+                    ++removedEntries;
+                }
+            }
+        }
+    }
+
+    private void addFile(Path source, Path target, boolean copy) throws IOException {
+        if (!copy && LINK_MODE_SYMLINK.equals(linkMode)) {
+            try {
+                Files.createSymbolicLink(target, source);
+                return;
+            } catch (IOException | UnsupportedOperationException e) {
+                // Symbolic links may require specific privileges (on Windows for example).
+            }
+        } else if (!copy && LINK_MODE_HARDLINK.equals(linkMode)) {
+            try {
+                Files.createLink(target, source);
+                return;
+            } catch (IOException | UnsupportedOperationException e) {
+                // Hard links are not supported between file systems.
+            }
+        }
+        Files.copy(source, target, StandardCopyOption.COPY_ATTRIBUTES);
+    }
+
+    int getReusedEntries() {
+        return reusedEntries;
+    }
+
+    int getWrittenEntries() {
+        return writtenEntries;
+    }
+
+    int getRemovedEntries() {
+        return removedEntries;
+    }
+
+    private static File toFile(File dir, String entryName, String root) throws IOException {
+        // Paths are not canonicalized: distribution files may be symbolic links.
+        final Path dirPath = dir.toPath().toAbsolutePath().normalize();
+        final Path path = dirPath.resolve(
+                entryName.startsWith(root) ? entryName.substring(root.length()) : entryName).normalize();
+        if (!path.startsWith(dirPath) || path.equals(dirPath)) {
+            throw new IOException("Invalid distribution entry: " + entryName);
+        }
+        return path.toFile();
+    }
+}
@@ -0,0 +1,387 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.mojo;
+
+import aQute.bnd.version.VersionRange;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.utils.IOUtils;
+import org.apache.commons.compress.utils.SeekableInMemoryByteChannel;
+import org.apache.felix.utils.manifest.Clause;
+import org.apache.felix.utils.manifest.Parser;
+import org.osgi.framework.Constants;
+import org.osgi.service.subsystem.SubsystemConstants;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+
+/**
+ * Content of a feature subsystem archive, with nested feature subsystems flattened:
+ * content of a nested feature is merged into the content of its parent, and resources
+ * embedded in a nested feature are embedded in its parent.
+ * Application and composite subsystems isolate their content: they are never flattened.
+ * <p>
+ * Nested archives are read in place (nested archives of nested archives are read in memory),
+ * without being extracted.
+ *
+ * @author Stamina Framework developers
+ */
+final class FlattenedSubsystem {
+    /**
+     * Separator between nested archive paths and entry names.
+     */
+    static final String NESTED_ENTRY_SEPARATOR = "!/";
+
+    private static final List<String> HEADERS = Arrays.asList(
+            SubsystemConstants.SUBSYSTEM_SYMBOLICNAME, SubsystemConstants.SUBSYSTEM_TYPE,
+            SubsystemConstants.SUBSYSTEM_CONTENT);
+    private static final String OSGI_INF = "OSGI-INF/";
+    private static final String SUBSYSTEM_EXTENSION = ".esa";
+    private static final String TYPE_ATTRIBUTE = "type";
+    private static final String DEFAULT_RESOURCE_TYPE = "osgi.bundle";
+
+    private final File archive;
+    private final String type;
+    private final List<Content> content = new ArrayList<>();
+    private final List<Entry> entries = new ArrayList<>();
+
+    private FlattenedSubsystem(File archive, String type) {
+        this.archive = archive;
+        this.type = type;
+    }
+
+    /**
+     * Read a subsystem archive: content is only read for feature subsystems.
+     */
+    static FlattenedSubsystem read(File archive) throws IOException {
+        try (final ZipFile zip = new ZipFile(archive)) {
+            return read(archive, zip, "");
+        }
+    }
+
+    private static FlattenedSubsystem read(File archive, ZipFile zip, String pathPrefix) throws IOException {
+        final ZipArchiveEntry manEntry = zip.getEntry(ManifestReader.SUBSYSTEM_MANIFEST);
+        if (manEntry == null) {
+            throw new IOException("Missing subsystem manifest: " + pathPrefix + ManifestReader.SUBSYSTEM_MANIFEST);
+        }
+        final Map<String, String> atts;
+        try (final InputStream in = zip.getInputStream(manEntry)) {
+            atts = ManifestReader.parse(IOUtils.toByteArray(in), HEADERS);
+        }
+        final String rawType = atts.get(SubsystemConstants.SUBSYSTEM_TYPE);
+        final FlattenedSubsystem subsystem = new FlattenedSubsystem(archive, rawType == null
+                ? SubsystemConstants.SUBSYSTEM_TYPE_APPLICATION : Parser.parseHeader(rawType)[0].getName());
+        if (!subsystem.isFeature()) {
+            return subsystem;
+        }
+
+        // Nested feature subsystems are flattened, other embedded resources are kept as is.
+        final Map<String, FlattenedSubsystem> nestedFeatures = new HashMap<>();
+        final Map<String, Entry> nestedFeatureEntries = new HashMap<>();
+        for (final Enumeration<ZipArchiveEntry> i = zip.getEntriesInPhysicalOrder(); i.hasMoreElements(); ) {
+            final ZipArchiveEntry entry = i.nextElement();
+            final String name = entry.getName();
+            if (entry.isDirectory() || name.startsWith(OSGI_INF)) {
+                continue;
+            }
+            final Entry resource = new Entry(archive, pathPrefix + name, toChecksum(entry));
+            if (name.endsWith(SUBSYSTEM_EXTENSION)) {
+                final byte[] nestedData;
+                try (final InputStream in = zip.getInputStream(entry)) {
+                    nestedData = IOUtils.toByteArray(in);
+                }
+                try (final ZipFile nestedZip = new ZipFile(
+                        new SeekableInMemoryByteChannel(nestedData), name, "UTF8", true)) {
+                    final FlattenedSubsystem nested = read(archive, nestedZip, pathPrefix + name + NESTED_ENTRY_SEPARATOR);
+                    if (nested.isFeature()) {
+                        final String sn = getSymbolicName(nestedZip);
+                        nestedFeatures.put(sn, nested);
+                        nestedFeatureEntries.put(sn, resource);
+                        continue;
+                    }
+                }
+            }
+            subsystem.entries.add(resource);
+        }
+
+        final String rawContent = atts.get(SubsystemConstants.SUBSYSTEM_CONTENT);
+        final Clause[] clauses = rawContent == null ? new Clause[0] : Parser.parseHeader(rawContent);
+        // Start orders are renumbered from 1, so that they can be combined with start orders of a parent.
+        final int[] startOrders = new int[clauses.length];
+        final SortedSet<Integer> distinctStartOrders = new TreeSet<>();
+        for (int i = 0; i < clauses.length; ++i) {
+            final String rawStartOrder = clauses[i].getDirective(SubsystemConstants.START_ORDER_DIRECTIVE);
+            try {
+                startOrders[i] = rawStartOrder == null ? 1 : Integer.parseInt(rawStartOrder.trim());
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid start order in subsystem content: " + rawStartOrder);
+            }
+            distinctStartOrders.add(startOrders[i]);
+        }
+        final List<Integer> sortedStartOrders = new ArrayList<>(distinctStartOrders);
+        for (int i = 0; i < clauses.length; ++i) {
+            final Clause clause = clauses[i];
+            final String sn = clause.getName();
+            final String rawResourceType = clause.getAttribute(TYPE_ATTRIBUTE);
+            final String resourceType = rawResourceType == null ? DEFAULT_RESOURCE_TYPE : rawResourceType.trim();
+            final int startOrder = sortedStartOrders.indexOf(startOrders[i]) + 1;
+            final boolean optional = Constants.RESOLUTION_OPTIONAL.equals(
+                    clause.getDirective(Constants.RESOLUTION_DIRECTIVE));
+
+            final FlattenedSubsystem nested = SubsystemConstants.SUBSYSTEM_TYPE_FEATURE.equals(resourceType)
+                    ? nestedFeatures.remove(sn) : null;
+            if (nested == null) {
+                subsystem.content.add(new Content(sn + ";type=" + resourceType + ";version=\""
+                        + toVersionRange(clause.getAttribute(Constants.VERSION_ATTRIBUTE)) + "\"",
+                        new int[]{startOrder}, optional));
+            } else {
+                for (final Content c : nested.content) {
+                    subsystem.content.add(c.withParent(startOrder, optional));
+                }
+                subsystem.entries.addAll(nested.entries);
+            }
+        }
+        // Nested features which are not part of subsystem content are kept as is.
+        for (final String sn : nestedFeatures.keySet()) {
+            subsystem.entries.add(nestedFeatureEntries.get(sn));
+        }
+        return subsystem;
+    }
+
+    /**
+     * Read a subsystem from metadata written by {@link #toMetadata()}.
+     *
+     * @return <code>null</code> if metadata is invalid
+     */
+    static FlattenedSubsystem fromMetadata(File archive, String metadata) {
+        final String[] lines = metadata.split("\n");
+        if (!lines[0].startsWith("type\t")) {
+            return null;
+        }
+        final FlattenedSubsystem subsystem = new FlattenedSubsystem(archive, lines[0].substring(5));
+        try {
+            for (int i = 1; i < lines.length; ++i) {
+                final String[] fields = lines[i].split("\t");
+                if ("content".equals(fields[0]) && fields.length == 4) {
+                    final String[] rawStartOrder = fields[1].split("\\.");
+                    final int[] startOrder = new int[rawStartOrder.length];
+                    for (int j = 0; j < startOrder.length; ++j) {
+                        startOrder[j] = Integer.parseInt(rawStartOrder[j]);
+                    }
+                    subsystem.content.add(new Content(fields[3], startOrder, "optional".equals(fields[2])));
+                } else if ("entry".equals(fields[0]) && fields.length == 3) {
+                    subsystem.entries.add(new Entry(archive, fields[2], fields[1]));
+                } else {
+                    return null;
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return subsystem;
+    }
+
+    /**
+     * Write this subsystem as metadata, so that it is not read again in next builds.
+     */
+    String toMetadata() {
+        final StringBuilder buf = new StringBuilder(256);
+        buf.append("type\t").append(type);
+        for (final Content c : content) {
+            buf.append("\ncontent\t");
+            for (int i = 0; i < c.startOrder.length; ++i) {
+                if (i != 0) {
+                    buf.append('.');
+                }
+                buf.append(c.startOrder[i]);
+            }
+            buf.append('\t').append(c.optional ? "optional" : "mandatory").append('\t').append(c.resource);
+        }
+        for (final Entry e : entries) {
+            buf.append("\nentry\t").append(e.checksum).append('\t').append(e.path);
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Merge content items, from the top-level subsystem and from flattened subsystems.
+     * Resources included several times are only kept once, with their lowest start order
+     * (and they are optional only if they are always optional).
+     * Start orders are renumbered: content of a flattened subsystem is started
+     * from the start order of this subsystem, following the start orders of its content.
+     *
+     * @return merged items, with a single start order
+     */
+    static List<Content> merge(List<Content> items) {
+        final Map<String, Content> mergedItems = new LinkedHashMap<>();
+        for (final Content item : items) {
+            final Content previous = mergedItems.get(item.resource);
+            if (previous == null) {
+                mergedItems.put(item.resource, item);
+            } else {
+                mergedItems.put(item.resource, new Content(item.resource,
+                        compareStartOrders(previous.startOrder, item.startOrder) <= 0
+                                ? previous.startOrder : item.startOrder,
+                        previous.optional && item.optional));
+            }
+        }
+        final SortedSet<int[]> startOrders = new TreeSet<>(FlattenedSubsystem::compareStartOrders);
+        for (final Content item : mergedItems.values()) {
+            startOrders.add(item.startOrder);
+        }
+
+        final List<Content> merged = new ArrayList<>(mergedItems.size());
+        for (final Content item : mergedItems.values()) {
+            merged.add(new Content(item.resource,
+                    new int[]{startOrders.headSet(item.startOrder).size() + 1}, item.optional));
+        }
+        return merged;
+    }
+
+    /**
+     * Get the <code>Subsystem-Content</code> header value from merged content items.
+     */
+    static String toSubsystemContent(List<Content> mergedItems) {
+        final StringBuilder buf = new StringBuilder(mergedItems.size() * 64);
+        for (final Content item : mergedItems) {
+            if (buf.length() != 0) {
+                buf.append(", ");
+            }
+            buf.append(item.resource)
+                    .append(";start-order:=").append(item.startOrder[0])
+                    .append(";resolution:=").append(item.optional ? "optional" : "mandatory");
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Compare start orders of flattened content, from the top-level subsystem to the nested subsystem
+     * including this content: a start order is first in its own subsystem,
+     * which makes start order <code>2</code> the same as <code>2.1</code>.
+     */
+    private static int compareStartOrders(int[] a, int[] b) {
+        for (int i = 0; i < Math.max(a.length, b.length); ++i) {
+            final int diff = Integer.compare(i < a.length ? a[i] : 1, i < b.length ? b[i] : 1);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return 0;
+    }
+
+    boolean isFeature() {
+        return SubsystemConstants.SUBSYSTEM_TYPE_FEATURE.equals(type);
+    }
+
+    File getArchive() {
+        return archive;
+    }
+
+    List<Content> getContent() {
+        return Collections.unmodifiableList(content);
+    }
+
+    List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    private static String getSymbolicName(ZipFile zip) throws IOException {
+        final Map<String, String> atts;
+        try (final InputStream in = zip.getInputStream(zip.getEntry(ManifestReader.SUBSYSTEM_MANIFEST))) {
+            atts = ManifestReader.parse(IOUtils.toByteArray(in), HEADERS);
+        }
+        final String sn = atts.get(SubsystemConstants.SUBSYSTEM_SYMBOLICNAME);
+        if (sn == null) {
+            throw new IOException("Missing subsystem symbolic name");
+        }
+        return Parser.parseHeader(sn)[0].getName();
+    }
+
+    private static String toVersionRange(String rawVersion) throws IOException {
+        if (rawVersion == null) {
+            return "0.0.0";
+        }
+        try {
+            return new VersionRange(rawVersion.trim()).toString();
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid version in subsystem content: " + rawVersion, e);
+        }
+    }
+
+    private static String toChecksum(ZipArchiveEntry entry) {
+        // Checksum is read from the zip directory: nested entries are not read.
+        return "crc32:" + Long.toHexString(entry.getCrc()) + ":" + entry.getSize();
+    }
+
+    /**
+     * Subsystem content item.
+     */
+    static final class Content {
+        final String resource;
+        final int[] startOrder;
+        final boolean optional;
+
+        /**
+         * @param resource   resource identity: symbolic name, type and version range
+         * @param startOrder start orders, from the top-level subsystem to the nested subsystem including this item
+         */
+        Content(String resource, int[] startOrder, boolean optional) {
+            this.resource = resource;
+            this.startOrder = startOrder;
+            this.optional = optional;
+        }
+
+        /**
+         * Get this item as part of the content of a parent subsystem.
+         */
+        Content withParent(int parentStartOrder, boolean parentOptional) {
+            final int[] newStartOrder = new int[startOrder.length + 1];
+            newStartOrder[0] = parentStartOrder;
+            System.arraycopy(startOrder, 0, newStartOrder, 1, startOrder.length);
+            return new Content(resource, newStartOrder, optional || parentOptional);
+        }
+    }
+
+    /**
+     * Resource embedded in a subsystem archive.
+     */
+    static final class Entry {
+        final File archive;
+        final String path;
+        final String checksum;
+
+        /**
+         * @param path entry name, prefixed with nested archive paths
+         *             (such as <code>nested.esa!/bundle.jar</code>)
+         */
+        Entry(File archive, String path, String checksum) {
+            this.archive = archive;
+            this.path = path;
+            this.checksum = checksum;
+        }
+
+        /**
+         * Get the entry name of this resource, once embedded in a parent archive.
+         */
+        String getName() {
+            final int i = path.lastIndexOf(NESTED_ENTRY_SEPARATOR);
+            return i == -1 ? path : path.substring(i + NESTED_ENTRY_SEPARATOR.length());
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.mojo;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Update an existing zip archive from a previous build.
+ * Entries which did not change since the previous build are copied as is
+ * (without being inflated and deflated again), other entries are written
+ * from their source file.
+ *
+ * @author Stamina Framework developers
+ */
+final class IncrementalZipUpdater {
+    private int reusedEntries;
+    private int writtenEntries;
+    private long bytesIn;
+    private long compressionTime;
+
+    /**
+     * Update an archive.
+     *
+     * @param archive     archive to update
+     * @param previous    fingerprint of the previous build
+     * @param current     fingerprint of the current build
+     * @param sources     source files, indexed by entry name: entries which are not in
+     *                    <code>current</code> (such as generated entries) are always written
+     * @param compression options used when compressing written entries
+     */
+    void update(File archive, BuildFingerprint previous, BuildFingerprint current,
+                Map<String, File> sources, CompressionOptions compression) throws IOException {
+        update(archive, previous, current, sources, Collections.emptyMap(), compression);
+    }
+
+    /**
+     * Update an archive, with some entries copied from other zip files.
+     *
+     * @param copiedSources entries copied from other zip files, indexed by entry name
+     */
+    void update(File archive, BuildFingerprint previous, BuildFingerprint current,
+                Map<String, File> sources, Map<String, ZipEntrySource> copiedSources,
+                CompressionOptions compression) throws IOException {
+        reusedEntries = 0;
+        writtenEntries = 0;
+        bytesIn = 0;
+        compressionTime = 0;
+
+        final Map<String, String> previousEntries = previous.getEntries();
+        final Map<String, String> currentEntries = current.getEntries();
+        final Set<String> finalEntries = new HashSet<>(currentEntries.keySet());
+        finalEntries.addAll(sources.keySet());
+        finalEntries.addAll(copiedSources.keySet());
+
+        final File tmpArchive = new File(archive.getParentFile(), archive.getName() + ".tmp");
+        try (final ZipFile zip = new ZipFile(archive);
+             final ParallelZipWriter out = new ParallelZipWriter(tmpArchive, compression)) {
+            // Entries are written sorted by name, as in a full build.
+            final Map<String, ZipArchiveEntry> reused = new TreeMap<>();
+            final Set<String> previousFiles = new HashSet<>();
+            for (final Enumeration<ZipArchiveEntry> i = zip.getEntries(); i.hasMoreElements(); ) {
+                final ZipArchiveEntry entry = i.nextElement();
+                if (!entry.isDirectory()) {
+                    previousFiles.add(entry.getName());
+                }
+            }
+            for (final Enumeration<ZipArchiveEntry> i = zip.getEntries(); i.hasMoreElements(); ) {
+                final ZipArchiveEntry entry = i.nextElement();
+                final String name = entry.getName();
+                final boolean reuse;
+                if (entry.isDirectory()) {
+                    // Empty directories are kept, other directories are kept if they are still used.
+                    reuse = isParentDirectory(name, finalEntries) || !isParentDirectory(name, previousFiles);
+                } else {
+                    final String checksum = currentEntries.get(name);
+                    reuse = checksum != null && checksum.equals(previousEntries.get(name));
+                }
+                if (reuse && !reused.containsKey(name)) {
+                    reused.put(name, entry);
+                }
+            }
+
+            final Set<String> names = new TreeSet<>(finalEntries);
+            names.addAll(reused.keySet());
+            for (final String name : names) {
+                final ZipArchiveEntry entry = reused.get(name);
+                if (entry != null) {
+                    try (final InputStream in = zip.getRawInputStream(entry)) {
+                        out.addRawEntry(entry, in);
+                    }
+                    if (!entry.isDirectory()) {
+                        ++reusedEntries;
+                    }
+                    continue;
+                }
+                final File source = sources.get(name);
+                final ZipEntrySource copiedSource = copiedSources.get(name);
+                if (source != null) {
+                    out.addFile(source, name);
+                } else if (copiedSource != null) {
+                    out.copyFile(copiedSource, name);
+                } else {
+                    throw new IOException("Missing source for archive entry: " + name);
+                }
+                ++writtenEntries;
+            }
+            out.close();
+            bytesIn = out.getBytesIn();
+            compressionTime = out.getCompressionTime();
+        } catch (IOException e) {
+            tmpArchive.delete();
+            throw e;
+        }
+        Files.move(tmpArchive.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    int getReusedEntries() {
+        return reusedEntries;
+    }
+
+    int getWrittenEntries() {
+        return writtenEntries;
+    }
+
+    long getBytesIn() {
+        return bytesIn;
+    }
+
+    long getCompressionTime() {
+        return compressionTime;
+    }
+
+    private static boolean isParentDirectory(String dir, Set<String> entries) {
+        for (final String entry : entries) {
+            if (entry.startsWith(dir)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.mojo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Read main attributes from a manifest entry stored in a zip file.
+ * <p>
+ * Only the zip central directory is read, until the manifest entry is found:
+ * this entry is then directly read from its local header.
+ * Archives which cannot be read this way (such as archives with prepended data,
+ * where recorded offsets do not match) are read with {@link ZipFile}.
+ * Manifest attributes are parsed until the end of the main section,
+ * and only requested headers are kept.
+ *
+ * @author Stamina Framework developers
+ */
+final class ManifestReader {
+    /**
+     * Bundle manifest entry.
+     */
+    static final String BUNDLE_MANIFEST = "META-INF/MANIFEST.MF";
+    /**
+     * Subsystem manifest entry.
+     */
+    static final String SUBSYSTEM_MANIFEST = "OSGI-INF/SUBSYSTEM.MF";
+
+    private static final int EOCD_SIG = 0x06054b50;
+    private static final int EOCD_MIN_SIZE = 22;
+    private static final int ZIP64_EOCD_LOCATOR_SIG = 0x07064b50;
+    private static final int ZIP64_EOCD_LOCATOR_SIZE = 20;
+    private static final int ZIP64_EOCD_SIG = 0x06064b50;
+    private static final int CEN_SIG = 0x02014b50;
+    private static final int CEN_HEADER_SIZE = 46;
+    private static final int CEN_CHUNK_SIZE = 16 * 1024;
+    private static final int LOC_SIG = 0x04034b50;
+    private static final int LOC_HEADER_SIZE = 30;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+    private static final int MAX_MANIFEST_SIZE = 16 * 1024 * 1024;
+
+    private ManifestReader() {
+    }
+
+    /**
+     * Read manifest main attributes.
+     *
+     * @param file      zip file
+     * @param entryName manifest entry name
+     * @param headers   headers to read
+     * @return headers found in manifest main section (header names are the ones from <code>headers</code>),
+     * or <code>null</code> if there is no such manifest entry
+     */
+    static Map<String, String> read(File file, String entryName, Collection<String> headers) throws IOException {
+        final byte[] manifest;
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            manifest = readEntry(channel, entryName);
+        } catch (UnsupportedZipException e) {
+            return parse(readEntryFallback(file, entryName), headers);
+        }
+        return parse(manifest, headers);
+    }
+
+    private static byte[] readEntry(FileChannel channel, String entryName) throws IOException {
+        final long fileSize = channel.size();
+        if (fileSize < EOCD_MIN_SIZE) {
+            throw new IOException("Invalid zip file");
+        }
+
+        // Locate end of central directory record, which is followed by an optional comment.
+        final int tailSize = (int) Math.min(fileSize, EOCD_MIN_SIZE + MAX_COMMENT_SIZE);
+        final ByteBuffer tail = read(channel, fileSize - tailSize, tailSize);
+        int eocdPos = -1;
+        for (int i = tailSize - EOCD_MIN_SIZE; i >= 0; --i) {
+            if (tail.getInt(i) == EOCD_SIG) {
+                eocdPos = i;
+                break;
+            }
+        }
+        if (eocdPos == -1) {
+            throw new IOException("Invalid zip file: missing end of central directory");
+        }
+
+        long entryCount = tail.getShort(eocdPos + 10) & 0xffff;
+        long cenSize = tail.getInt(eocdPos + 12) & 0xffffffffL;
+        long cenOffset = tail.getInt(eocdPos + 16) & 0xffffffffL;
+        if (entryCount == 0xffff || cenSize == 0xffffffffL || cenOffset == 0xffffffffL) {
+            // Zip64 archive: read actual values from zip64 end of central directory record.
+            final long locatorPos = fileSize - tailSize + eocdPos - ZIP64_EOCD_LOCATOR_SIZE;
+            if (locatorPos < 0) {
+                throw new UnsupportedZipException();
+            }
+            final ByteBuffer locator = read(channel, locatorPos, ZIP64_EOCD_LOCATOR_SIZE);
+            if (locator.getInt(0) != ZIP64_EOCD_LOCATOR_SIG) {
+                throw new UnsupportedZipException();
+            }
+            final ByteBuffer eocd64 = read(channel, locator.getLong(8), 56);
+            if (eocd64.getInt(0) != ZIP64_EOCD_SIG) {
+                throw new UnsupportedZipException();
+            }
+            entryCount = eocd64.getLong(32);
+            cenSize = eocd64.getLong(40);
+            cenOffset = eocd64.getLong(48);
+        }
+        if (cenOffset + cenSize > fileSize) {
+            throw new UnsupportedZipException();
+        }
+
+        // Scan central directory headers until the manifest entry is found:
+        // in most archives, the manifest is one of the very first entries.
+        final byte[] entryNameBytes = entryName.getBytes(StandardCharsets.UTF_8);
+        final long cenEnd = cenOffset + cenSize;
+        ByteBuffer chunk = null;
+        long chunkStart = 0;
+        long pos = cenOffset;
+        for (long i = 0; i < entryCount && pos + CEN_HEADER_SIZE <= cenEnd; ++i) {
+            if (chunk == null || pos + CEN_HEADER_SIZE > chunkStart + chunk.limit()) {
+                chunkStart = pos;
+                chunk = read(channel, pos, (int) Math.min(CEN_CHUNK_SIZE, cenEnd - pos));
+            }
+            int off = (int) (pos - chunkStart);
+            if (chunk.getInt(off) != CEN_SIG) {
+                // Central directory is not at the recorded offset (data may be prepended to the archive).
+                throw new UnsupportedZipException();
+            }
+            final int nameLength = chunk.getShort(off + 28) & 0xffff;
+            if (off + CEN_HEADER_SIZE + nameLength > chunk.limit()) {
+                chunkStart = pos;
+                chunk = read(channel, pos, (int) Math.min(
+                        Math.max(CEN_CHUNK_SIZE, CEN_HEADER_SIZE + nameLength), cenEnd - pos));
+                off = 0;
+            }
+            final int method = chunk.getShort(off + 10) & 0xffff;
+            final long compressedSize = chunk.getInt(off + 20) & 0xffffffffL;
+            final long size = chunk.getInt(off + 24) & 0xffffffffL;
+            final int extraLength = chunk.getShort(off + 30) & 0xffff;
+            final int commentLength = chunk.getShort(off + 32) & 0xffff;
+            final long localHeaderOffset = chunk.getInt(off + 42) & 0xffffffffL;
+            if (nameLength == entryNameBytes.length
+                    && regionMatches(chunk, off + CEN_HEADER_SIZE, entryNameBytes)) {
+                if (compressedSize == 0xffffffffL || size == 0xffffffffL || localHeaderOffset == 0xffffffffL) {
+                    throw new UnsupportedZipException();
+                }
+                return readLocalEntry(channel, localHeaderOffset, method, compressedSize, size);
+            }
+            pos += CEN_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+        return null;
+    }
+
+    private static byte[] readLocalEntry(FileChannel channel, long offset, int method,
+                                         long compressedSize, long size) throws IOException {
+        if (compressedSize > MAX_MANIFEST_SIZE || size > MAX_MANIFEST_SIZE) {
+            throw new IOException("Manifest entry is too large");
+        }
+        final ByteBuffer localHeader = read(channel, offset, LOC_HEADER_SIZE);
+        if (localHeader.getInt(0) != LOC_SIG) {
+            throw new UnsupportedZipException();
+        }
+        final int nameLength = localHeader.getShort(26) & 0xffff;
+        final int extraLength = localHeader.getShort(28) & 0xffff;
+        final ByteBuffer data = read(channel, offset + LOC_HEADER_SIZE + nameLength + extraLength, (int) compressedSize);
+        final byte[] compressed = new byte[(int) compressedSize];
+        data.get(compressed);
+
+        if (method == ZipEntry.STORED) {
+            return compressed;
+        }
+        if (method != ZipEntry.DEFLATED) {
+            throw new UnsupportedZipException();
+        }
+        final Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed);
+            final byte[] out = new byte[(int) size];
+            int inflated = 0;
+            while (inflated < out.length && !inflater.finished()) {
+                final int count = inflater.inflate(out, inflated, out.length - inflated);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += count;
+            }
+            if (inflated != out.length) {
+                throw new IOException("Invalid zip file: corrupted manifest entry");
+            }
+            return out;
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid zip file: corrupted manifest entry", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static byte[] readEntryFallback(File file, String entryName) throws IOException {
+        try (final ZipFile zip = new ZipFile(file)) {
+            final ZipEntry entry = zip.getEntry(entryName);
+            if (entry == null) {
+                return null;
+            }
+            try (final InputStream in = zip.getInputStream(entry)) {
+                final ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+                final byte[] buf = new byte[4096];
+                for (int bytesRead; (bytesRead = in.read(buf)) != -1; ) {
+                    out.write(buf, 0, bytesRead);
+                }
+                return out.toByteArray();
+            }
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, long pos, int length) throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, pos + buf.position()) == -1) {
+                throw new EOFException("Unexpected end of zip file");
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private static boolean regionMatches(ByteBuffer buf, int offset, byte[] bytes) {
+        for (int i = 0; i < bytes.length; ++i) {
+            if (buf.get(offset + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parse manifest main section, keeping only some headers.
+     */
+    static Map<String, String> parse(byte[] manifest, Collection<String> headers) {
+        if (manifest == null) {
+            return null;
+        }
+        final Map<String, String> headerNames = new HashMap<>(headers.size());
+        for (final String header : headers) {
+            headerNames.put(header.toLowerCase(Locale.ROOT), header);
+        }
+
+        final Map<String, String> atts = new HashMap<>(headers.size());
+        // Values are decoded once continuation lines are joined:
+        // a multi-byte character may be split between two lines.
+        String currentHeader = null;
+        ByteArrayOutputStream currentValue = null;
+        int pos = 0;
+        final int length = manifest.length;
+        while (pos < length) {
+            final int lineStart = pos;
+            int lineEnd = pos;
+            while (lineEnd < length && manifest[lineEnd] != '\r' && manifest[lineEnd] != '\n') {
+                ++lineEnd;
+            }
+            pos = lineEnd;
+            if (pos < length && manifest[pos] == '\r') {
+                ++pos;
+            }
+            if (pos < length && manifest[pos] == '\n') {
+                ++pos;
+            }
+
+            if (lineEnd == lineStart) {
+                // End of main section.
+                break;
+            }
+            if (manifest[lineStart] == ' ') {
+                // Continuation line.
+                if (currentValue != null) {
+                    currentValue.write(manifest, lineStart + 1, lineEnd - lineStart - 1);
+                }
+                continue;
+            }
+            if (currentHeader != null) {
+                atts.put(currentHeader, new String(currentValue.toByteArray(), StandardCharsets.UTF_8));
+            }
+            currentHeader = null;
+            currentValue = null;
+
+            int sep = lineStart;
+            while (sep < lineEnd && manifest[sep] != ':') {
+                ++sep;
+            }
+            if (sep == lineEnd) {
+                continue;
+            }
+            final String header = headerNames.get(new String(manifest, lineStart, sep - lineStart,
+                    StandardCharsets.UTF_8).trim().toLowerCase(Locale.ROOT));
+            if (header != null) {
+                currentHeader = header;
+                currentValue = new ByteArrayOutputStream(lineEnd - lineStart);
+                int valueStart = sep + 1;
+                if (valueStart < lineEnd && manifest[valueStart] == ' ') {
+                    ++valueStart;
+                }
+                currentValue.write(manifest, valueStart, lineEnd - valueStart);
+            }
+        }
+        if (currentHeader != null) {
+            atts.put(currentHeader, new String(currentValue.toByteArray(), StandardCharsets.UTF_8));
+        }
+        return atts;
+    }
+
+    /**
+     * Thrown when a zip structure is not handled by this reader.
+     */
+    private static class UnsupportedZipException extends IOException {
+        UnsupportedZipException() {
+            super("Unsupported zip file structure");
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.mojo;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.utils.IOUtils;
+import org.apache.commons.compress.utils.SeekableInMemoryByteChannel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Open entries embedded in subsystem archives, including entries of nested archives.
+ * Each archive is opened once, and kept open until this instance is closed:
+ * nested archives of nested archives are read in memory.
+ *
+ * @author Stamina Framework developers
+ */
+final class NestedArchives implements Closeable {
+    private final Map<String, ZipFile> archives = new LinkedHashMap<>();
+
+    /**
+     * Open an entry embedded in a subsystem archive.
+     */
+    ZipEntrySource open(FlattenedSubsystem.Entry resource) throws IOException {
+        final String[] names = resource.path.split(FlattenedSubsystem.NESTED_ENTRY_SEPARATOR);
+        String key = resource.archive.getPath();
+        ZipFile zip = archives.get(key);
+        if (zip == null) {
+            zip = new ZipFile(resource.archive);
+            archives.put(key, zip);
+        }
+        for (int i = 0; i < names.length - 1; ++i) {
+            key += FlattenedSubsystem.NESTED_ENTRY_SEPARATOR + names[i];
+            ZipFile nestedZip = archives.get(key);
+            if (nestedZip == null) {
+                final byte[] nestedData;
+                try (final InputStream in = zip.getInputStream(getEntry(zip, names[i], key))) {
+                    nestedData = IOUtils.toByteArray(in);
+                }
+                nestedZip = new ZipFile(new SeekableInMemoryByteChannel(nestedData), key, "UTF8", true);
+                archives.put(key, nestedZip);
+            }
+            zip = nestedZip;
+        }
+        return new ZipEntrySource(zip, getEntry(zip, names[names.length - 1], resource.archive + "!/" + resource.path));
+    }
+
+    /**
+     * Read an entry from an archive embedded in a subsystem archive, such as a bundle manifest.
+     * The embedded archive is streamed until this entry is found.
+     *
+     * @return <code>null</code> if there is no such entry
+     */
+    byte[] readNestedEntry(FlattenedSubsystem.Entry resource, String name) throws IOException {
+        final ZipEntrySource source = open(resource);
+        try (final ZipArchiveInputStream in = new ZipArchiveInputStream(source.zip.getInputStream(source.entry))) {
+            for (ZipArchiveEntry entry; (entry = in.getNextZipEntry()) != null; ) {
+                if (name.equals(entry.getName())) {
+                    return IOUtils.toByteArray(in);
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException error = null;
+        for (final ZipFile zip : archives.values()) {
+            try {
+                zip.close();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        archives.clear();
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private static ZipArchiveEntry getEntry(ZipFile zip, String name, String path) throws IOException {
+        final ZipArchiveEntry entry = zip.getEntry(name);
+        if (entry == null) {
+            throw new IOException("Missing archive entry: " + path);
+        }
+        return entry;
+    }
+}
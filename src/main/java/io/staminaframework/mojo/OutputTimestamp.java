@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.mojo;
+
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.TimeZone;
+
+/**
+ * Timestamp used for reproducible archive output.
+ * Values follow the <code>project.build.outputTimestamp</code> convention:
+ * either an ISO-8601 date with an offset, or a number of seconds since the epoch.
+ * Values with less than 2 characters disable reproducible output.
+ *
+ * @author Stamina Framework developers
+ */
+final class OutputTimestamp {
+    /**
+     * Value used when reproducible output is disabled.
+     */
+    static final long DISABLED = -1;
+
+    // Zip entry times are stored as DOS times, which are limited to this range.
+    private static final Instant MIN_TIME = Instant.parse("1980-01-01T00:00:02Z");
+    private static final Instant MAX_TIME = Instant.parse("2099-12-31T23:59:59Z");
+
+    private OutputTimestamp() {
+    }
+
+    /**
+     * Parse an output timestamp.
+     *
+     * @return timestamp in milliseconds since the epoch, or {@link #DISABLED}
+     * @throws IllegalArgumentException if this value is not a valid timestamp
+     */
+    static long parse(String value) {
+        if (value == null || value.trim().length() < 2) {
+            return DISABLED;
+        }
+        final String str = value.trim();
+        final Instant time;
+        try {
+            if (str.chars().allMatch(Character::isDigit)) {
+                time = Instant.ofEpochSecond(Long.parseLong(str));
+            } else {
+                time = OffsetDateTime.parse(str).toInstant();
+            }
+        } catch (DateTimeParseException | NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid output timestamp: " + value, e);
+        }
+        if (time.isBefore(MIN_TIME) || time.isAfter(MAX_TIME)) {
+            throw new IllegalArgumentException("Output timestamp out of range: " + value
+                    + " (expected between " + MIN_TIME + " and " + MAX_TIME + ")");
+        }
+        return time.toEpochMilli();
+    }
+
+    /**
+     * Convert a timestamp to a zip entry time.
+     * Zip entries store times in the local time zone: this time is shifted so that
+     * archives are identical whatever the time zone of the build.
+     */
+    static long toZipTime(long time) {
+        return time - TimeZone.getDefault().getOffset(time);
+    }
+}
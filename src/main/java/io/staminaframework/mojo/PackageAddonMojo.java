@@ -19,6 +19,7 @@ package io.staminaframework.mojo;
 import aQute.bnd.version.MavenVersion;
 import aQute.bnd.version.Version;
 import aQute.bnd.version.VersionRange;
+import org.apache.felix.utils.manifest.Clause;
 import org.apache.felix.utils.manifest.Parser;
 import org.apache.maven.artifact.Artifact;
 import org.apache.maven.artifact.DefaultArtifact;
@@ -31,29 +32,19 @@ import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.plugins.annotations.*;
-import org.apache.maven.project.DefaultProjectBuildingRequest;
 import org.apache.maven.project.MavenProject;
-import org.apache.maven.project.ProjectBuildingRequest;
-import org.apache.maven.shared.artifact.DefaultArtifactCoordinate;
 import org.apache.maven.shared.artifact.resolve.ArtifactResolver;
-import org.apache.maven.shared.artifact.resolve.ArtifactResolverException;
-import org.codehaus.plexus.archiver.Archiver;
-import org.codehaus.plexus.archiver.zip.ZipArchiver;
 import org.osgi.framework.Constants;
 import org.osgi.service.subsystem.SubsystemConstants;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.jar.Attributes;
-import java.util.jar.JarFile;
 import java.util.jar.Manifest;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 /**
  * Mojo used for packaging a project and its dependencies into a Stamina addon
@@ -62,7 +53,7 @@ import java.util.zip.ZipFile;
  * @author Stamina Framework developers
  */
 @Mojo(name = "package-addon", defaultPhase = LifecyclePhase.PACKAGE,
-        requiresDependencyResolution = ResolutionScope.RUNTIME)
+        requiresDependencyResolution = ResolutionScope.RUNTIME, threadSafe = true)
 public class PackageAddonMojo extends AbstractMojo {
     private static final Set<String> SUPPORTED_DEPENDENCY_TYPES = new HashSet<>(3);
 
@@ -72,6 +63,15 @@ public class PackageAddonMojo extends AbstractMojo {
         SUPPORTED_DEPENDENCY_TYPES.add("esa");
     }
 
+    private static final List<String> BUNDLE_HEADERS = Arrays.asList(
+            Constants.BUNDLE_MANIFESTVERSION, Constants.BUNDLE_SYMBOLICNAME,
+            Constants.BUNDLE_VERSION, Constants.FRAGMENT_HOST);
+    private static final List<String> SUBSYSTEM_HEADERS = Arrays.asList(
+            SubsystemConstants.SUBSYSTEM_SYMBOLICNAME, SubsystemConstants.SUBSYSTEM_VERSION,
+            SubsystemConstants.SUBSYSTEM_TYPE);
+    private static final String CONTENT_RESOURCE_METADATA = "subsystemContentResource";
+    private static final String FLATTENED_SUBSYSTEM_METADATA = "flattenedSubsystem";
+
     @Parameter(defaultValue = "${project}", required = true, readonly = true)
     private MavenProject project;
     @Parameter(defaultValue = "${project.build.directory}", required = true, readonly = true)
@@ -90,12 +90,18 @@ public class PackageAddonMojo extends AbstractMojo {
     private String addonDocUrl;
     @Parameter(defaultValue = "${project.description}")
     private String addonDescription;
-    @Component(role = Archiver.class, hint = "zip")
-    private ZipArchiver archiver;
     @Parameter(defaultValue = "true", required = true)
     private boolean embedBundles = true;
     @Parameter(defaultValue = "false", required = true)
     private boolean embedSubsystems = false;
+    /**
+     * Merge embedded feature subsystems into the addon, instead of embedding them as nested archives:
+     * their content is added to the addon content, and their embedded resources are embedded in the addon.
+     * Nested feature subsystems are flattened recursively, application and composite subsystems are kept as is.
+     * Requires <code>embedSubsystems</code>.
+     */
+    @Parameter(defaultValue = "false", required = true)
+    private boolean flattenSubsystems;
     @Parameter(defaultValue = "${project.dependencies}", required = true, readonly = true)
     private List<Dependency> projectDependencies;
     @Parameter(defaultValue = "${session}", readonly = true, required = true)
@@ -104,36 +110,144 @@ public class PackageAddonMojo extends AbstractMojo {
     private List<ArtifactRepository> remoteRepositories;
     @Component
     private ArtifactResolver artifactResolver;
+    @Parameter(defaultValue = "4", required = true)
+    private int resolverThreads = 4;
+    @Parameter(defaultValue = "${settings.localRepository}/.cache/stamina", required = true)
+    private File cacheDirectory;
+    @Parameter(defaultValue = "true", required = true)
+    private boolean useCache = true;
+    /**
+     * Number of threads used for compressing the addon (0: number of available processors).
+     */
+    @Parameter(defaultValue = "0", required = true)
+    private int compressionThreads;
+    @Parameter(defaultValue = "-1", required = true)
+    private int compressionLevel = -1;
+    /**
+     * Maximum size of compressed data kept in memory for each entry being compressed.
+     */
+    @Parameter(defaultValue = "4194304", required = true)
+    private int scatterBufferSize = 4194304;
+    /**
+     * Rules selecting how addon entries are compressed (first matching rule wins).
+     * By default, already compressed files (such as JAR files) are stored.
+     */
+    @Parameter
+    private List<CompressionRule> compressionRules;
+    /**
+     * Timestamp for reproducible output (ISO-8601 date or seconds since the epoch).
+     * When set, addon entries get this timestamp and normalized permissions, and SNAPSHOT versions
+     * are qualified with this timestamp instead of the build time.
+     */
+    @Parameter(defaultValue = "${project.build.outputTimestamp}")
+    private String outputTimestamp;
+    /**
+     * JSON report of packaging metrics (time spent in each phase, entry and byte counters).
+     */
+    @Parameter(defaultValue = "${project.build.directory}/stamina-addon-metrics.json", required = true)
+    private File metricsFile;
+    /**
+     * Resolve addon content against the target platform at build time, and write a deployment
+     * manifest (<code>OSGI-INF/DEPLOYMENT.MF</code>) pinning addon content and provisioned resources.
+     * <p>
+     * This is a simple resolver: each requirement is satisfied by the highest version providing
+     * a matching capability, with no backtracking, and package <code>uses</code> constraints
+     * are not checked. Subsystem requirements are not resolved either: the build fails
+     * if addon content includes subsystems.
+     */
+    @Parameter(defaultValue = "false", required = true)
+    private boolean deploymentManifest;
+    /**
+     * Bundles available to satisfy addon content requirements, when writing a deployment manifest.
+     */
+    @Parameter
+    private List<Dependency> targetPlatform;
+    /**
+     * Packages exported by the framework, when writing a deployment manifest
+     * (a name ending with <code>.*</code> also matches subpackages).
+     */
+    @Parameter
+    private List<String> systemPackages;
+    /**
+     * Compute start orders from the wiring between addon bundles, instead of using dependency order:
+     * bundles which do not depend on each other share the same start order.
+     */
+    @Parameter(defaultValue = "false", required = true)
+    private boolean computeStartOrder;
+    /**
+     * Rewrite embedded bundles before archiving them (see <code>bundleClassCompression</code>,
+     * <code>stripDebugInfo</code> and <code>bundleExcludes</code>).
+     * Rewritten bundles are cached by input checksum.
+     */
+    @Parameter(defaultValue = "false", required = true)
+    private boolean optimizeBundles;
+    /**
+     * Compression level of class entries in rewritten bundles
+     * (0: classes are stored, for faster class loading; -1: default level).
+     */
+    @Parameter(defaultValue = "0", required = true)
+    private int bundleClassCompression;
+    /**
+     * Remove line numbers and local variable tables from classes in rewritten bundles.
+     */
+    @Parameter(defaultValue = "false", required = true)
+    private boolean stripDebugInfo;
+    /**
+     * Entries removed from rewritten bundles (globs, such as <code>META-INF/maven/**</code>).
+     */
+    @Parameter
+    private List<String> bundleExcludes;
 
     public void execute() throws MojoExecutionException, MojoFailureException {
+        attachAddon(packageAddon(null));
+    }
+
+    /**
+     * Package the addon, updating the addon file from the previous build when possible.
+     *
+     * @param dependencyFiles filled with resolved dependency files (may be <code>null</code>)
+     * @return addon file
+     */
+    File packageAddon(Set<File> dependencyFiles) throws MojoFailureException {
         if (!"pom".equals(project.getPackaging())) {
             throw new MojoFailureException("Project packaging must be 'pom'");
         }
-        getLog().info("Reading addon dependencies");
-        final StringBuilder addonContentBuf = new StringBuilder();
-        int contentStartOrder = 1;
+
+        final List<Dependency> contentDeps = new ArrayList<>(projectDependencies.size());
+        final List<Dependency> embeddedDeps = new ArrayList<>(projectDependencies.size());
         for (final Dependency dep : projectDependencies) {
-            final String scope = dep.getScope();
-            if (Artifact.SCOPE_PROVIDED.equals(scope)
-                    || Artifact.SCOPE_RUNTIME.equals(scope)
-                    || Artifact.SCOPE_TEST.equals(scope)
-                    || Artifact.SCOPE_IMPORT.equals(scope)) {
-                continue;
-            }
-            if (!SUPPORTED_DEPENDENCY_TYPES.contains(dep.getType())) {
-                continue;
+            if (isIncludedInContent(dep)) {
+                contentDeps.add(dep);
             }
-            if (addonContentBuf.length() != 0) {
-                addonContentBuf.append(", ");
+            if (isEmbedded(dep)) {
+                embeddedDeps.add(dep);
             }
-            addonContentBuf.append(toSubsystemContentItem(dep, contentStartOrder++));
         }
 
-        final File addonDir = new File(outputDirectory, "addon");
-        addonDir.mkdirs();
+        final PackagingMetrics metrics = new PackagingMetrics("package-addon");
+        metrics.setCounter("dependencies.content", contentDeps.size());
+        metrics.setCounter("dependencies.embedded", embeddedDeps.size());
 
-        // Convert Maven version to OSGi format.
-        addonVersion = toSubsystemVersion(addonVersion);
+        // Resolve all dependencies at once:
+        // resolved files are shared between manifest generation and archiving.
+        getLog().info("Resolving addon dependencies");
+        metrics.startPhase("resolve");
+        final DependencyResolver resolver = new DependencyResolver(
+                artifactResolver, session, remoteRepositories, resolverThreads);
+        if (useCache) {
+            resolver.setIndex(new ArtifactIndex(new File(cacheDirectory, "artifacts")));
+        }
+        final Set<Dependency> resolvedDeps = new LinkedHashSet<>(contentDeps);
+        resolvedDeps.addAll(embeddedDeps);
+        final List<Dependency> platformDeps = deploymentManifest && targetPlatform != null
+                ? targetPlatform : Collections.emptyList();
+        resolvedDeps.addAll(platformDeps);
+        resolver.resolve(resolvedDeps);
+        if (dependencyFiles != null) {
+            for (final Dependency dep : resolvedDeps) {
+                dependencyFiles.add(resolver.getFile(dep));
+            }
+        }
 
         if (addonLicense == null) {
             final List<License> licences = project.getLicenses();
@@ -142,16 +256,81 @@ public class PackageAddonMojo extends AbstractMojo {
             }
         }
 
+        final CompressionPolicy compressionPolicy;
+        try {
+            compressionPolicy = CompressionPolicy.create(compressionRules, compressionLevel);
+        } catch (IllegalArgumentException e) {
+            throw new MojoFailureException("Invalid compression rules: " + e.getMessage(), e);
+        }
+        final long outputTime;
+        try {
+            outputTime = OutputTimestamp.parse(outputTimestamp);
+        } catch (IllegalArgumentException e) {
+            throw new MojoFailureException(e.getMessage(), e);
+        }
+
+        final BundleOptimizer optimizer;
+        try {
+            final File optimizedBundleDir = new File(useCache ? cacheDirectory : outputDirectory, "optimized-bundles");
+            optimizer = optimizeBundles ? new BundleOptimizer(getLog(), optimizedBundleDir,
+                    bundleClassCompression, stripDebugInfo, bundleExcludes) : null;
+        } catch (IllegalArgumentException e) {
+            throw new MojoFailureException(e.getMessage(), e);
+        }
+
+        final Map<File, FlattenedSubsystem> flattenedSubsystems;
+        if (flattenSubsystems && embedSubsystems) {
+            metrics.startPhase("flatten");
+            flattenedSubsystems = readFlattenedSubsystems(contentDeps, resolver, metrics);
+        } else {
+            flattenedSubsystems = Collections.emptyMap();
+        }
+        final Map<String, FlattenedSubsystem.Entry> flattenedEntries = getFlattenedEntries(
+                embeddedDeps, resolver, flattenedSubsystems);
+
+        final File addonFile = new File(outputDirectory, project.getBuild().getFinalName() + ".esa");
+        final File fingerprintFile = new File(outputDirectory, addonFile.getName() + ".fingerprint");
+        metrics.startPhase("fingerprint");
+        final BuildFingerprint fingerprint = newFingerprint(contentDeps, embeddedDeps, platformDeps,
+                resolver, optimizer, flattenedSubsystems, flattenedEntries);
+        fingerprint.setParameter("compression", compressionPolicy.describe());
+        fingerprint.setParameter("outputTimestamp", outputTime);
+        final BuildFingerprint previousFingerprint = BuildFingerprint.load(fingerprintFile);
+        if (addonFile.exists() && fingerprint.isSameAs(previousFingerprint)) {
+            getLog().info("Addon is up-to-date: " + addonFile);
+            metrics.setCounter("upToDate", 1);
+            reportMetrics(metrics);
+            return addonFile;
+        }
+        fingerprintFile.delete();
+
+        getLog().info("Reading addon dependencies");
+        metrics.startPhase("manifest");
+        final List<BundleResource> contentBundles = computeStartOrder || deploymentManifest
+                ? readContentBundles(contentDeps, resolver) : null;
+        final int[] startOrders = computeStartOrders(contentBundles, contentDeps.size(), metrics);
+        final List<FlattenedSubsystem.Content> flattenedContent = flattenedSubsystems.isEmpty()
+                ? null : getFlattenedContent(contentDeps, resolver, startOrders, flattenedSubsystems, metrics);
+        final String addonContent = flattenedContent == null
+                ? getAddonContent(contentDeps, resolver, startOrders, metrics)
+                : FlattenedSubsystem.toSubsystemContent(flattenedContent);
+
+        final File addonDir = new File(outputDirectory, "addon");
+        addonDir.mkdirs();
+
+        // Convert Maven version to OSGi format.
+        final String subsystemVersion = toSubsystemVersion(addonVersion, outputTime);
+
         final Manifest addonMan = new Manifest();
         addonMan.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1");
         setManifestAttribute(addonMan, SubsystemConstants.SUBSYSTEM_MANIFESTVERSION, "1");
-        if (addonContentBuf.length() != 0) {
-            setManifestAttribute(addonMan, SubsystemConstants.SUBSYSTEM_CONTENT, addonContentBuf.toString());
+        if (!addonContent.isEmpty()) {
+            setManifestAttribute(addonMan, SubsystemConstants.SUBSYSTEM_CONTENT, addonContent);
         }
         setManifestAttribute(addonMan, SubsystemConstants.SUBSYSTEM_TYPE, SubsystemConstants.SUBSYSTEM_TYPE_FEATURE);
         setManifestAttribute(addonMan, SubsystemConstants.SUBSYSTEM_NAME, addonName);
         setManifestAttribute(addonMan, SubsystemConstants.SUBSYSTEM_SYMBOLICNAME, addonSymbolicName);
-        setManifestAttribute(addonMan, SubsystemConstants.SUBSYSTEM_VERSION, addonVersion);
+        setManifestAttribute(addonMan, SubsystemConstants.SUBSYSTEM_VERSION, subsystemVersion);
         setManifestAttribute(addonMan, SubsystemConstants.SUBSYSTEM_DESCRIPTION, sanitizeDescription(addonDescription));
         setManifestAttribute(addonMan, SubsystemConstants.SUBSYSTEM_DOCURL, addonDocUrl);
         setManifestAttribute(addonMan, SubsystemConstants.SUBSYSTEM_LICENSE, addonLicense);
@@ -167,24 +346,114 @@ public class PackageAddonMojo extends AbstractMojo {
             throw new MojoFailureException("Cannot write addon manifest file: " + addonManFile, e);
         }
 
-        final File addonFile = new File(outputDirectory, project.getBuild().getFinalName() + ".esa");
-        getLog().info("Packaging addon to file: " + addonFile);
-        archiver.setDestFile(addonFile);
-        archiver.addDirectory(addonDir);
-        for (final Dependency dep : projectDependencies) {
-            final boolean includeDep = "jar".equals(dep.getType()) && embedBundles
-                    || "esa".equals(dep.getType()) && embedSubsystems;
-            if (includeDep) {
-                final File depFile = resolveDependency(dep);
-                archiver.addFile(depFile, depFile.getName());
+        File deploymentManFile = null;
+        if (deploymentManifest) {
+            metrics.startPhase("deployment");
+            deploymentManFile = new File(osgiInfDir, "DEPLOYMENT.MF");
+            final List<BundleResource> bundles = new ArrayList<>(contentDeps.size());
+            final List<String> deployedContent = flattenedContent == null
+                    ? getDeployedContent(contentDeps, contentBundles, startOrders, resolver, bundles)
+                    : getFlattenedDeployedContent(flattenedContent, contentDeps, contentBundles,
+                    flattenedEntries, resolver, bundles);
+            writeDeploymentManifest(deploymentManFile, subsystemVersion, deployedContent, bundles,
+                    platformDeps, resolver, metrics);
+        }
+
+        final Map<String, File> embeddedEntries = getEmbeddedEntries(embeddedDeps, resolver, optimizer,
+                flattenedSubsystems, metrics);
+
+        final CompressionOptions compression = new CompressionOptions(
+                compressionThreads, 0, compressionLevel, scatterBufferSize,
+                compressionPolicy, outputTime);
+        // Resources embedded in flattened subsystems are copied from nested archives, without being extracted.
+        try (final NestedArchives nestedArchives = new NestedArchives()) {
+            final Map<String, ZipEntrySource> nestedEntries = new HashMap<>(flattenedEntries.size());
+            for (final Map.Entry<String, FlattenedSubsystem.Entry> e : flattenedEntries.entrySet()) {
+                nestedEntries.put(e.getKey(), nestedArchives.open(e.getValue()));
             }
+
+            boolean updated = false;
+            if (addonFile.exists() && previousFingerprint != null
+                    && fingerprint.getParameter("compression").equals(previousFingerprint.getParameter("compression"))
+                    && fingerprint.getParameter("outputTimestamp").equals(previousFingerprint.getParameter("outputTimestamp"))) {
+                // Only some inputs changed: update existing addon file.
+                getLog().info("Updating addon file: " + addonFile);
+                metrics.startPhase("archive");
+                final Map<String, File> sources = new HashMap<>(embeddedEntries);
+                sources.put("OSGI-INF/SUBSYSTEM.MF", addonManFile);
+                if (deploymentManFile != null) {
+                    sources.put("OSGI-INF/DEPLOYMENT.MF", deploymentManFile);
+                }
+                final IncrementalZipUpdater updater = new IncrementalZipUpdater();
+                try {
+                    updater.update(addonFile, previousFingerprint, fingerprint, sources, nestedEntries, compression);
+                    getLog().info("Addon entries reused: " + updater.getReusedEntries()
+                            + ", written: " + updater.getWrittenEntries());
+                    metrics.setCounter("entries.reused", updater.getReusedEntries());
+                    metrics.setCounter("entries.written", updater.getWrittenEntries());
+                    metrics.setCounter("bytes.in", updater.getBytesIn());
+                    metrics.addTime("compressionCpu", updater.getCompressionTime());
+                    updated = true;
+                } catch (IOException e) {
+                    getLog().warn("Cannot update addon file, rebuilding: " + addonFile, e);
+                }
+            }
+            if (!updated) {
+                getLog().info("Packaging addon to file: " + addonFile);
+                metrics.startPhase("archive");
+                // Entries are written sorted by name, as when the addon file is updated.
+                final Map<String, Object> entries = new TreeMap<>(embeddedEntries);
+                entries.putAll(nestedEntries);
+                entries.put("OSGI-INF/", osgiInfDir);
+                entries.put("OSGI-INF/SUBSYSTEM.MF", addonManFile);
+                if (deploymentManFile != null) {
+                    entries.put("OSGI-INF/DEPLOYMENT.MF", deploymentManFile);
+                }
+                try (final ParallelZipWriter writer = new ParallelZipWriter(addonFile, compression)) {
+                    for (final Map.Entry<String, Object> e : entries.entrySet()) {
+                        if (e.getValue() instanceof ZipEntrySource) {
+                            writer.copyFile((ZipEntrySource) e.getValue(), e.getKey());
+                        } else if (((File) e.getValue()).isDirectory()) {
+                            writer.addDirectory(e.getKey(), ((File) e.getValue()).lastModified());
+                        } else {
+                            writer.addFile((File) e.getValue(), e.getKey());
+                        }
+                    }
+                    metrics.startPhase("write");
+                    writer.close();
+                    metrics.setCounter("entries.written", writer.getEntryCount());
+                    metrics.setCounter("bytes.in", writer.getBytesIn());
+                    metrics.addTime("compressionCpu", writer.getCompressionTime());
+                } catch (IOException e) {
+                    addonFile.delete();
+                    throw new MojoFailureException("Cannot package addon to file: " + addonFile, e);
+                }
+            }
+        } catch (IOException e) {
+            throw new MojoFailureException("Cannot read flattened subsystem resources", e);
         }
+
+        try {
+            fingerprint.store(fingerprintFile);
+        } catch (IOException e) {
+            getLog().warn("Cannot write addon fingerprint: " + fingerprintFile, e);
+        }
+
+        metrics.setCounter("bytes.out", addonFile.length());
+        reportMetrics(metrics);
+        return addonFile;
+    }
+
+    private void reportMetrics(PackagingMetrics metrics) {
+        metrics.log(getLog());
         try {
-            archiver.createArchive();
+            metrics.write(metricsFile);
         } catch (IOException e) {
-            throw new MojoFailureException("Cannot package addon to file: " + addonFile, e);
+            getLog().warn("Cannot write packaging metrics: " + metricsFile, e);
         }
+    }
 
+    private void attachAddon(File addonFile) {
         final Artifact addonArt = new DefaultArtifact(project.getGroupId(), project.getArtifactId(),
                 project.getVersion(), Artifact.SCOPE_RUNTIME, "esa", null, new DefaultArtifactHandler("esa"));
         addonArt.setFile(addonFile);
@@ -197,49 +466,558 @@ public class PackageAddonMojo extends AbstractMojo {
         }
     }
 
-    private String toSubsystemContentItem(Dependency dep, int startOrder) throws MojoFailureException {
-        final File depFile = resolveDependency(dep);
-        final String resolutionPart = ";resolution:=" + (dep.isOptional() ? "optional" : "mandatory");
+    private BuildFingerprint newFingerprint(List<Dependency> contentDeps, List<Dependency> embeddedDeps,
+                                            List<Dependency> platformDeps, DependencyResolver resolver,
+                                            BundleOptimizer optimizer,
+                                            Map<File, FlattenedSubsystem> flattenedSubsystems,
+                                            Map<String, FlattenedSubsystem.Entry> flattenedEntries)
+            throws MojoFailureException {
+        final BuildFingerprint fingerprint = new BuildFingerprint();
+        fingerprint.setParameter("addonSymbolicName", addonSymbolicName);
+        fingerprint.setParameter("addonVersion", addonVersion);
+        fingerprint.setParameter("addonVendor", addonVendor);
+        fingerprint.setParameter("addonLicense", addonLicense);
+        fingerprint.setParameter("addonName", addonName);
+        fingerprint.setParameter("addonDocUrl", addonDocUrl);
+        fingerprint.setParameter("addonDescription", addonDescription);
+        fingerprint.setParameter("embedBundles", embedBundles);
+        fingerprint.setParameter("embedSubsystems", embedSubsystems);
+        fingerprint.setParameter("flattenSubsystems", flattenSubsystems);
+        fingerprint.setParameter("computeStartOrder", computeStartOrder);
+        fingerprint.setParameter("deploymentManifest", deploymentManifest);
+        if (deploymentManifest) {
+            fingerprint.setParameter("systemPackages", systemPackages);
+        }
+        fingerprint.setParameter("optimizeBundles", optimizer == null ? "false" : optimizer.describe());
+        final Map<File, String> checksums = new HashMap<>(contentDeps.size());
+        try {
+            int contentIndex = 0;
+            for (final Dependency dep : contentDeps) {
+                final String checksum = resolver.getChecksum(dep);
+                checksums.put(resolver.getFile(dep), checksum);
+                fingerprint.setParameter("content." + contentIndex++,
+                        dep.getManagementKey() + ":" + dep.getVersion() + ":" + dep.isOptional() + ":" + checksum);
+            }
+            int platformIndex = 0;
+            for (final Dependency dep : platformDeps) {
+                fingerprint.setParameter("targetPlatform." + platformIndex++,
+                        dep.getManagementKey() + ":" + dep.getVersion() + ":" + resolver.getChecksum(dep));
+            }
+            for (final Dependency dep : embeddedDeps) {
+                final File depFile = resolver.getFile(dep);
+                if (flattenedSubsystems.containsKey(depFile)) {
+                    continue;
+                }
+                String checksum = checksums.get(depFile);
+                if (checksum == null) {
+                    checksum = resolver.getChecksum(dep);
+                }
+                if (optimizer != null && "jar".equals(dep.getType())) {
+                    // Rewritten bundles are identified by their input and optimization options.
+                    checksum = optimizer.getKey(checksum);
+                }
+                fingerprint.addEntry(depFile.getName(), checksum);
+            }
+            for (final Map.Entry<String, FlattenedSubsystem.Entry> e : flattenedEntries.entrySet()) {
+                fingerprint.addEntry(e.getKey(), e.getValue().checksum);
+            }
+        } catch (IOException e) {
+            throw new MojoFailureException("Cannot compute addon fingerprint", e);
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Read embedded feature subsystems which are flattened into the addon, indexed by file.
+     * Subsystems are only read once: they are kept in the artifact index.
+     */
+    private Map<File, FlattenedSubsystem> readFlattenedSubsystems(List<Dependency> contentDeps,
+                                                                  DependencyResolver resolver,
+                                                                  PackagingMetrics metrics) throws MojoFailureException {
+        final Map<File, FlattenedSubsystem> subsystems = new HashMap<>();
+        for (final Dependency dep : contentDeps) {
+            if (!"esa".equals(dep.getType()) || !isEmbedded(dep)) {
+                continue;
+            }
+            final File depFile = resolver.getFile(dep);
+            try {
+                final String metadata = resolver.getMetadata(dep, FLATTENED_SUBSYSTEM_METADATA);
+                FlattenedSubsystem subsystem = metadata == null
+                        ? null : FlattenedSubsystem.fromMetadata(depFile, metadata);
+                if (subsystem == null) {
+                    subsystem = FlattenedSubsystem.read(depFile);
+                    resolver.putMetadata(dep, FLATTENED_SUBSYSTEM_METADATA, subsystem.toMetadata());
+                    metrics.increment("subsystems.read", 1);
+                } else {
+                    metrics.increment("subsystems.cached", 1);
+                }
+                if (subsystem.isFeature()) {
+                    subsystems.put(depFile, subsystem);
+                }
+            } catch (IOException e) {
+                throw new MojoFailureException("Failed to read OSGi subsystem dependency: " + depFile, e);
+            }
+        }
+        getLog().info("Flattened subsystems: " + subsystems.size());
+        metrics.setCounter("subsystems.flattened", subsystems.size());
+        return subsystems;
+    }
+
+    /**
+     * Get resources embedded in flattened subsystems, indexed by addon entry name.
+     * Resources do not replace embedded dependencies, and the first resource with a given name is kept.
+     */
+    private Map<String, FlattenedSubsystem.Entry> getFlattenedEntries(
+            List<Dependency> embeddedDeps, DependencyResolver resolver,
+            Map<File, FlattenedSubsystem> flattenedSubsystems) throws MojoFailureException {
+        final Map<String, FlattenedSubsystem.Entry> entries = new HashMap<>();
+        if (flattenedSubsystems.isEmpty()) {
+            return entries;
+        }
+        final Set<String> embeddedNames = new HashSet<>(embeddedDeps.size());
+        for (final Dependency dep : embeddedDeps) {
+            final File depFile = resolver.getFile(dep);
+            if (!flattenedSubsystems.containsKey(depFile)) {
+                embeddedNames.add(depFile.getName());
+            }
+        }
+        for (final Dependency dep : embeddedDeps) {
+            final FlattenedSubsystem subsystem = flattenedSubsystems.get(resolver.getFile(dep));
+            if (subsystem == null) {
+                continue;
+            }
+            for (final FlattenedSubsystem.Entry entry : subsystem.getEntries()) {
+                final String name = entry.getName();
+                if (embeddedNames.contains(name)) {
+                    continue;
+                }
+                final FlattenedSubsystem.Entry previous = entries.putIfAbsent(name, entry);
+                if (previous != null && !previous.checksum.equals(entry.checksum)) {
+                    getLog().warn("Ignoring flattened subsystem resource with a duplicate name: "
+                            + entry.archive + FlattenedSubsystem.NESTED_ENTRY_SEPARATOR + entry.path);
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Get embedded dependency files, indexed by addon entry name:
+     * embedded bundles are rewritten when bundle optimization is enabled.
+     * Flattened subsystems are not embedded.
+     */
+    private Map<String, File> getEmbeddedEntries(List<Dependency> embeddedDeps, DependencyResolver resolver,
+                                                 BundleOptimizer optimizer,
+                                                 Map<File, FlattenedSubsystem> flattenedSubsystems,
+                                                 PackagingMetrics metrics) throws MojoFailureException {
+        if (optimizer != null) {
+            metrics.startPhase("optimize");
+        }
+        final Map<String, File> entries = new HashMap<>(embeddedDeps.size());
+        for (final Dependency dep : embeddedDeps) {
+            final File depFile = resolver.getFile(dep);
+            if (flattenedSubsystems.containsKey(depFile)) {
+                continue;
+            }
+            File entryFile = depFile;
+            if (optimizer != null && "jar".equals(dep.getType())) {
+                try {
+                    entryFile = optimizer.optimize(depFile, resolver.getChecksum(dep));
+                } catch (IOException e) {
+                    throw new MojoFailureException("Cannot optimize embedded bundle: " + depFile, e);
+                }
+            }
+            entries.put(depFile.getName(), entryFile);
+        }
+        if (optimizer != null) {
+            getLog().info("Embedded bundles rewritten: " + optimizer.getRewrittenCount()
+                    + ", reused from cache: " + optimizer.getCachedCount());
+            metrics.setCounter("optimize.rewritten", optimizer.getRewrittenCount());
+            metrics.setCounter("optimize.cached", optimizer.getCachedCount());
+            metrics.setCounter("optimize.bytesIn", optimizer.getBytesIn());
+            metrics.setCounter("optimize.bytesOut", optimizer.getBytesOut());
+        }
+        return entries;
+    }
+
+    /**
+     * Get addon deployed content: content resources are pinned to their exact version.
+     *
+     * @param bundles filled with content bundles
+     */
+    private static List<String> getDeployedContent(List<Dependency> contentDeps, List<BundleResource> contentBundles,
+                                                   int[] startOrders, DependencyResolver resolver,
+                                                   List<BundleResource> bundles) throws MojoFailureException {
+        final List<String> deployedContent = new ArrayList<>(contentDeps.size());
+        for (int i = 0; i < contentDeps.size(); ++i) {
+            final BundleResource bundle = contentBundles.get(i);
+            final String item;
+            if (bundle == null) {
+                item = toDeployedSubsystem(resolver.getFile(contentDeps.get(i)));
+            } else {
+                bundles.add(bundle);
+                item = toDeployedResource(bundle);
+            }
+            deployedContent.add(item + ";start-order:=" + startOrders[i]);
+        }
+        return deployedContent;
+    }
+
+    /**
+     * Get addon deployed content from addon content, when subsystems are flattened:
+     * content resources are found in content dependencies and in flattened subsystem archives.
+     * Start orders are the same as in addon content.
+     *
+     * @param bundles filled with content bundles
+     */
+    private static List<String> getFlattenedDeployedContent(List<FlattenedSubsystem.Content> flattenedContent,
+                                                            List<Dependency> contentDeps,
+                                                            List<BundleResource> contentBundles,
+                                                            Map<String, FlattenedSubsystem.Entry> flattenedEntries,
+                                                            DependencyResolver resolver,
+                                                            List<BundleResource> bundles) throws MojoFailureException {
+        final List<BundleResource> availableBundles = new ArrayList<>();
+        final Map<String, String> availableSubsystems = new HashMap<>();
+        for (int i = 0; i < contentDeps.size(); ++i) {
+            final BundleResource bundle = contentBundles.get(i);
+            if (bundle != null) {
+                availableBundles.add(bundle);
+            } else {
+                final String item = toDeployedSubsystem(resolver.getFile(contentDeps.get(i)));
+                availableSubsystems.putIfAbsent(toResourceKey(item), item);
+            }
+        }
+        // Only manifests are read from resources embedded in flattened subsystems.
+        try (final NestedArchives nestedArchives = new NestedArchives()) {
+            for (final FlattenedSubsystem.Entry entry : flattenedEntries.values()) {
+                final File entryPath = new File(entry.archive.getPath()
+                        + FlattenedSubsystem.NESTED_ENTRY_SEPARATOR + entry.path);
+                if (entry.path.endsWith(".esa")) {
+                    final byte[] manifest = nestedArchives.readNestedEntry(entry, ManifestReader.SUBSYSTEM_MANIFEST);
+                    final String item = toDeployedSubsystem(ManifestReader.parse(manifest, SUBSYSTEM_HEADERS));
+                    availableSubsystems.putIfAbsent(toResourceKey(item), item);
+                } else if (entry.path.endsWith(".jar")) {
+                    final BundleResource bundle = BundleResource.read(entryPath,
+                            nestedArchives.readNestedEntry(entry, ManifestReader.BUNDLE_MANIFEST));
+                    if (bundle != null) {
+                        availableBundles.add(bundle);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new MojoFailureException("Cannot read flattened subsystem resources", e);
+        }
+
+        final List<String> deployedContent = new ArrayList<>(flattenedContent.size());
+        for (final FlattenedSubsystem.Content content : flattenedContent) {
+            final Clause clause = Parser.parseHeader(content.resource)[0];
+            final String type = clause.getAttribute("type");
+            final String item;
+            if (BundleResource.TYPE_BUNDLE.equals(type) || BundleResource.TYPE_FRAGMENT.equals(type)) {
+                final VersionRange range = new VersionRange(clause.getAttribute(Constants.VERSION_ATTRIBUTE));
+                BundleResource bundle = null;
+                for (final BundleResource candidate : availableBundles) {
+                    if (candidate.getSymbolicName().equals(clause.getName()) && candidate.getType().equals(type)
+                            && range.includes(candidate.getVersion())
+                            && (bundle == null || candidate.getVersion().compareTo(bundle.getVersion()) > 0)) {
+                        bundle = candidate;
+                    }
+                }
+                if (bundle == null) {
+                    throw new MojoFailureException("Cannot find addon content resource: " + content.resource);
+                }
+                if (!bundles.contains(bundle)) {
+                    bundles.add(bundle);
+                }
+                item = toDeployedResource(bundle);
+            } else {
+                item = availableSubsystems.get(clause.getName() + ";" + type);
+                if (item == null) {
+                    throw new MojoFailureException("Cannot find addon content resource: " + content.resource);
+                }
+            }
+            deployedContent.add(item + ";start-order:=" + content.startOrder[0]);
+        }
+        return deployedContent;
+    }
+
+    /**
+     * Get the symbolic name and type of a deployed resource.
+     */
+    private static String toResourceKey(String deployedResource) {
+        final Clause clause = Parser.parseHeader(deployedResource)[0];
+        return clause.getName() + ";" + clause.getAttribute("type");
+    }
+
+    /**
+     * Write a deployment manifest, resolving addon content against the target platform:
+     * addon content and provisioned resources are pinned to their exact version.
+     */
+    private void writeDeploymentManifest(File deploymentManFile, String subsystemVersion,
+                                         List<String> deployedContent, List<BundleResource> bundles,
+                                         List<Dependency> platformDeps, DependencyResolver resolver,
+                                         PackagingMetrics metrics) throws MojoFailureException {
+        final StringBuilder deployedContentBuf = new StringBuilder();
+        for (final String item : deployedContent) {
+            final String type = Parser.parseHeader(item)[0].getAttribute("type");
+            if (!BundleResource.TYPE_BUNDLE.equals(type) && !BundleResource.TYPE_FRAGMENT.equals(type)) {
+                throw new MojoFailureException("Cannot write deployment manifest: "
+                        + "requirements of subsystem content are not resolved: " + item);
+            }
+            if (deployedContentBuf.length() != 0) {
+                deployedContentBuf.append(", ");
+            }
+            deployedContentBuf.append(item);
+        }
+
+        final List<BundleResource> platform = new ArrayList<>(platformDeps.size());
+        for (final Dependency dep : platformDeps) {
+            final File depFile = resolver.getFile(dep);
+            final BundleResource bundle = "esa".equals(dep.getType()) ? null : readBundle(depFile);
+            if (bundle == null) {
+                getLog().warn("Ignoring target platform dependency which is not a bundle: " + depFile);
+            } else {
+                platform.add(bundle);
+            }
+        }
+
+        getLog().info("Resolving addon content against target platform");
+        final DeploymentResolver deploymentResolver = new DeploymentResolver(platform,
+                systemPackages == null ? DeploymentResolver.DEFAULT_SYSTEM_PACKAGES : systemPackages);
+        final StringBuilder provisionResourceBuf = new StringBuilder();
+        final List<BundleResource> provisioned = deploymentResolver.resolve(bundles);
+        for (final BundleResource res : provisioned) {
+            if (provisionResourceBuf.length() != 0) {
+                provisionResourceBuf.append(", ");
+            }
+            provisionResourceBuf.append(toDeployedResource(res));
+        }
+        metrics.setCounter("deployment.provisioned", provisioned.size());
+
+        final Manifest deploymentMan = new Manifest();
+        deploymentMan.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1");
+        setManifestAttribute(deploymentMan, SubsystemConstants.DEPLOYMENT_MANIFESTVERSION, "1");
+        setManifestAttribute(deploymentMan, SubsystemConstants.SUBSYSTEM_SYMBOLICNAME, addonSymbolicName);
+        setManifestAttribute(deploymentMan, SubsystemConstants.SUBSYSTEM_VERSION, subsystemVersion);
+        if (deployedContentBuf.length() != 0) {
+            setManifestAttribute(deploymentMan, SubsystemConstants.DEPLOYED_CONTENT, deployedContentBuf.toString());
+        }
+        if (provisionResourceBuf.length() != 0) {
+            setManifestAttribute(deploymentMan, SubsystemConstants.PROVISION_RESOURCE, provisionResourceBuf.toString());
+        }
+
+        getLog().info("Writing deployment manifest: " + deploymentManFile);
+        try (final FileOutputStream deploymentManOut = new FileOutputStream(deploymentManFile)) {
+            deploymentMan.write(deploymentManOut);
+        } catch (IOException e) {
+            throw new MojoFailureException("Cannot write deployment manifest file: " + deploymentManFile, e);
+        }
+    }
+
+    /**
+     * Read addon content bundles.
+     *
+     * @return bundles in content order (<code>null</code> for subsystems)
+     */
+    private static List<BundleResource> readContentBundles(List<Dependency> contentDeps,
+                                                           DependencyResolver resolver) throws MojoFailureException {
+        final List<BundleResource> bundles = new ArrayList<>(contentDeps.size());
+        for (final Dependency dep : contentDeps) {
+            if ("esa".equals(dep.getType())) {
+                bundles.add(null);
+                continue;
+            }
+            final File depFile = resolver.getFile(dep);
+            final BundleResource bundle = readBundle(depFile);
+            if (bundle == null) {
+                throw new MojoFailureException("Cannot include plain JAR file dependency: " + depFile);
+            }
+            bundles.add(bundle);
+        }
+        return bundles;
+    }
+
+    /**
+     * Compute addon content start orders: when start orders are not computed
+     * from bundle wiring, content is started in dependency order.
+     */
+    private int[] computeStartOrders(List<BundleResource> contentBundles, int contentSize,
+                                     PackagingMetrics metrics) {
+        final int[] startOrders = new int[contentSize];
+        if (!computeStartOrder) {
+            for (int i = 0; i < contentSize; ++i) {
+                startOrders[i] = i + 1;
+            }
+            return startOrders;
+        }
+        final StartOrderGraph graph = new StartOrderGraph(contentBundles);
+        for (int i = 0; i < contentSize; ++i) {
+            startOrders[i] = graph.getStartOrder(i);
+        }
+        for (final List<BundleResource> cycle : graph.getCycles()) {
+            getLog().warn("Addon bundles have cyclic dependencies, using the same start order: " + cycle);
+        }
+        getLog().info("Computed start orders: " + graph.getLevelCount() + " level(s) for "
+                + contentSize + " addon resource(s)");
+        metrics.setCounter("startOrder.levels", graph.getLevelCount());
+        return startOrders;
+    }
+
+    private static BundleResource readBundle(File depFile) throws MojoFailureException {
+        try {
+            return BundleResource.read(depFile);
+        } catch (IOException e) {
+            throw new MojoFailureException("Failed to read JAR manifest: " + depFile, e);
+        }
+    }
+
+    private static String toDeployedResource(BundleResource res) {
+        return res.getSymbolicName() + ";" + SubsystemConstants.DEPLOYED_VERSION_ATTRIBUTE + "=" + res.getVersion()
+                + ";type=" + res.getType();
+    }
+
+    private static String toDeployedSubsystem(File depFile) throws MojoFailureException {
+        try {
+            return toDeployedSubsystem(ManifestReader.read(
+                    depFile, ManifestReader.SUBSYSTEM_MANIFEST, SUBSYSTEM_HEADERS));
+        } catch (IOException e) {
+            throw new MojoFailureException("Failed to read OSGi subsystem dependency: " + depFile, e);
+        }
+    }
+
+    private static String toDeployedSubsystem(Map<String, String> atts) throws IOException {
+        final String sn = atts == null ? null : atts.get(SubsystemConstants.SUBSYSTEM_SYMBOLICNAME);
+        if (sn == null) {
+            throw new IOException("Missing subsystem symbolic name");
+        }
+        final String rawVersion = atts.get(SubsystemConstants.SUBSYSTEM_VERSION);
+        final String rawType = atts.get(SubsystemConstants.SUBSYSTEM_TYPE);
+        return Parser.parseHeader(sn)[0].getName() + ";" + SubsystemConstants.DEPLOYED_VERSION_ATTRIBUTE + "="
+                + Version.parseVersion(rawVersion == null ? "0.0.0" : rawVersion.trim())
+                + ";type=" + (rawType == null ? SubsystemConstants.SUBSYSTEM_TYPE_APPLICATION
+                : Parser.parseHeader(rawType)[0].getName());
+    }
+
+    private boolean isIncludedInContent(Dependency dep) {
+        final String scope = dep.getScope();
+        if (Artifact.SCOPE_PROVIDED.equals(scope)
+                || Artifact.SCOPE_RUNTIME.equals(scope)
+                || Artifact.SCOPE_TEST.equals(scope)
+                || Artifact.SCOPE_IMPORT.equals(scope)) {
+            return false;
+        }
+        return SUPPORTED_DEPENDENCY_TYPES.contains(dep.getType());
+    }
+
+    private boolean isEmbedded(Dependency dep) {
+        return "jar".equals(dep.getType()) && embedBundles
+                || "esa".equals(dep.getType()) && embedSubsystems;
+    }
+
+    /**
+     * Get the addon <code>Subsystem-Content</code> header value.
+     */
+    private String getAddonContent(List<Dependency> contentDeps, DependencyResolver resolver, int[] startOrders,
+                                   PackagingMetrics metrics) throws MojoFailureException {
+        final StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < contentDeps.size(); ++i) {
+            if (buf.length() != 0) {
+                buf.append(", ");
+            }
+            buf.append(toSubsystemContentItem(contentDeps.get(i), resolver, startOrders[i], metrics));
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Get merged addon content, when subsystems are flattened:
+     * flattened subsystems are replaced with their content.
+     */
+    private List<FlattenedSubsystem.Content> getFlattenedContent(List<Dependency> contentDeps,
+                                                                 DependencyResolver resolver, int[] startOrders,
+                                                                 Map<File, FlattenedSubsystem> flattenedSubsystems,
+                                                                 PackagingMetrics metrics) throws MojoFailureException {
+        final List<FlattenedSubsystem.Content> items = new ArrayList<>(contentDeps.size());
+        for (int i = 0; i < contentDeps.size(); ++i) {
+            final Dependency dep = contentDeps.get(i);
+            final FlattenedSubsystem subsystem = flattenedSubsystems.get(resolver.getFile(dep));
+            if (subsystem == null) {
+                items.add(new FlattenedSubsystem.Content(getSubsystemContentResource(dep, resolver, metrics),
+                        new int[]{startOrders[i]}, dep.isOptional()));
+            } else {
+                for (final FlattenedSubsystem.Content item : subsystem.getContent()) {
+                    items.add(item.withParent(startOrders[i], dep.isOptional()));
+                }
+            }
+        }
+        return FlattenedSubsystem.merge(items);
+    }
+
+    private String toSubsystemContentItem(Dependency dep, DependencyResolver resolver, int startOrder,
+                                          PackagingMetrics metrics) throws MojoFailureException {
+        return getSubsystemContentResource(dep, resolver, metrics) + ";start-order:=" + startOrder
+                + ";resolution:=" + (dep.isOptional() ? "optional" : "mandatory");
+    }
+
+    private String getSubsystemContentResource(Dependency dep, DependencyResolver resolver,
+                                               PackagingMetrics metrics) throws MojoFailureException {
+        final File depFile = resolver.getFile(dep);
+        try {
+            String resource = resolver.getMetadata(dep, CONTENT_RESOURCE_METADATA);
+            if (resource == null) {
+                resource = toSubsystemContentResource(dep, depFile);
+                resolver.putMetadata(dep, CONTENT_RESOURCE_METADATA, resource);
+                metrics.increment("manifests.read", 1);
+            } else {
+                metrics.increment("manifests.cached", 1);
+            }
+            return resource;
+        } catch (IOException e) {
+            throw new MojoFailureException("Failed to read addon dependency: " + depFile, e);
+        }
+    }
+
+    /**
+     * Get subsystem content resource identity from a dependency:
+     * symbolic name, type and version range.
+     */
+    static String toSubsystemContentResource(Dependency dep, File depFile) throws MojoFailureException {
         if ("esa".equals(dep.getType())) {
-            try (final ZipFile zip = new ZipFile(depFile)) {
-                final ZipEntry manEntry = zip.getEntry("OSGI-INF/SUBSYSTEM.MF");
-                if (manEntry != null) {
-                    String sn = null;
+            try {
+                final Map<String, String> atts = ManifestReader.read(
+                        depFile, ManifestReader.SUBSYSTEM_MANIFEST, SUBSYSTEM_HEADERS);
+                if (atts != null) {
+                    final String sn = atts.get(SubsystemConstants.SUBSYSTEM_SYMBOLICNAME);
                     String version = "0.0.0";
                     String type = SubsystemConstants.SUBSYSTEM_TYPE_APPLICATION;
-                    try (final InputStream manIn = zip.getInputStream(manEntry)) {
-                        final Manifest man = new Manifest(manIn);
-                        sn = man.getMainAttributes().getValue(SubsystemConstants.SUBSYSTEM_SYMBOLICNAME);
-                        final String rawVersion = man.getMainAttributes().getValue(SubsystemConstants.SUBSYSTEM_VERSION);
-                        if (rawVersion != null) {
-                            final String versionStr = rawVersion;
-                            version = toVersionRange(versionStr);
-                        }
-                        final String rawType = man.getMainAttributes().getValue(SubsystemConstants.SUBSYSTEM_TYPE);
-                        if (rawType != null) {
-                            type = rawType;
-                        }
+                    final String rawVersion = atts.get(SubsystemConstants.SUBSYSTEM_VERSION);
+                    if (rawVersion != null) {
+                        version = toVersionRange(rawVersion);
+                    }
+                    final String rawType = atts.get(SubsystemConstants.SUBSYSTEM_TYPE);
+                    if (rawType != null) {
+                        type = rawType;
                     }
                     if (sn == null) {
                         throw new IOException("Missing subsystem symbolic name");
                     }
-                    return sn + ";type=" + type + ";version=\"" + version + "\";start-order:=" + startOrder + resolutionPart;
+                    return sn + ";type=" + type + ";version=\"" + version + "\"";
                 }
             } catch (IOException e) {
                 throw new MojoFailureException("Failed to read OSGi subsystem dependency: " + depFile, e);
             }
         } else if (dep.getType() == null || "jar".equals(dep.getType())) {
-            try (final JarFile jar = new JarFile(depFile)) {
-                final Manifest man = jar.getManifest();
-                final Attributes atts = man.getMainAttributes();
-                final String manVersion = atts.getValue(Constants.BUNDLE_MANIFESTVERSION);
+            try {
+                final Map<String, String> atts = ManifestReader.read(
+                        depFile, ManifestReader.BUNDLE_MANIFEST, BUNDLE_HEADERS);
+                final String manVersion = atts == null ? null : atts.get(Constants.BUNDLE_MANIFESTVERSION);
                 if (manVersion == null) {
                     throw new IOException("Cannot include plain JAR file dependency");
                 } else if (!"2".equals(manVersion)) {
                     throw new IOException("Unsupported bundle manifest version: " + manVersion);
                 }
 
-                final String rawSn = atts.getValue(Constants.BUNDLE_SYMBOLICNAME);
+                final String rawSn = atts.get(Constants.BUNDLE_SYMBOLICNAME);
                 if (rawSn == null) {
                     throw new IOException("Missing bundle symbolic name");
                 }
@@ -247,16 +1025,16 @@ public class PackageAddonMojo extends AbstractMojo {
                 final String sn = Parser.parseHeader(rawSn)[0].getName();
 
                 String version = "0.0.0";
-                final String rawVersion = atts.getValue(Constants.BUNDLE_VERSION);
+                final String rawVersion = atts.get(Constants.BUNDLE_VERSION);
                 if (rawVersion != null) {
                     final String versionStr = Parser.parseHeader(rawVersion)[0].getName();
                     version = toVersionRange(versionStr);
                 }
 
-                final String type = atts.getValue(Constants.FRAGMENT_HOST) != null
+                final String type = atts.get(Constants.FRAGMENT_HOST) != null
                         ? "osgi.fragment" : "osgi.bundle";
 
-                return sn + ";type=" + type + ";version=\"" + version + "\";start-order:=" + startOrder + resolutionPart;
+                return sn + ";type=" + type + ";version=\"" + version + "\"";
             } catch (IOException e) {
                 throw new MojoFailureException("Failed to read JAR manifest: " + depFile, e);
             }
@@ -265,27 +1043,7 @@ public class PackageAddonMojo extends AbstractMojo {
                 + dep.getGroupId() + ":" + dep.getArtifactId());
     }
 
-    private File resolveDependency(Dependency dep) throws MojoFailureException {
-        final ProjectBuildingRequest req =
-                new DefaultProjectBuildingRequest(session.getProjectBuildingRequest());
-        req.setRemoteRepositories(remoteRepositories);
-        try {
-            final DefaultArtifactCoordinate artCoo = new DefaultArtifactCoordinate();
-            artCoo.setGroupId(dep.getGroupId());
-            artCoo.setArtifactId(dep.getArtifactId());
-            artCoo.setClassifier(dep.getClassifier());
-            artCoo.setExtension(dep.getType());
-            artCoo.setVersion(dep.getVersion());
-
-            return artifactResolver.resolveArtifact(req, artCoo).getArtifact().getFile();
-        } catch (ArtifactResolverException e) {
-            throw new MojoFailureException("Failed to resolve artifact: "
-                    + dep.getGroupId() + ":" + dep.getArtifactId()
-                    + ":" + dep.getVersion());
-        }
-    }
-
-    private String toVersionRange(String versionStr) {
+    static String toVersionRange(String versionStr) {
         final Version v = Version.parseVersion(versionStr == null ? "0.0.0" : versionStr);
         final Version low = new Version(v.getMajor(), v.getMinor());
         final boolean isStable = low.getMajor() > 0;
@@ -307,7 +1065,7 @@ public class PackageAddonMojo extends AbstractMojo {
         return newDesc;
     }
 
-    private String toSubsystemVersion(String versionStr) {
+    static String toSubsystemVersion(String versionStr, long outputTime) {
         final MavenVersion mv = MavenVersion.parseMavenString(versionStr);
         String qualifier = null;
 
@@ -318,7 +1076,13 @@ public class PackageAddonMojo extends AbstractMojo {
 
         if (mv.isSnapshot()) {
             final DateFormat df = new SimpleDateFormat("yyyyMMddHHmmss", Locale.ROOT);
-            qualifier = df.format(new Date(System.currentTimeMillis()));
+            if (outputTime == OutputTimestamp.DISABLED) {
+                qualifier = df.format(new Date(System.currentTimeMillis()));
+            } else {
+                // Use a fixed time zone: qualifier must not depend on the build host.
+                df.setTimeZone(TimeZone.getTimeZone("UTC"));
+                qualifier = df.format(new Date(outputTime));
+            }
         }
 
         final StringBuilder buf = new StringBuilder(32);
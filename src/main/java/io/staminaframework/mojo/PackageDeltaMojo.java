@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.mojo;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.artifact.DefaultArtifact;
+import org.apache.maven.artifact.repository.ArtifactRepository;
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.Component;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.project.MavenProject;
+import org.apache.maven.shared.artifact.resolve.ArtifactResolver;
+import org.apache.maven.shared.utils.StringUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Mojo used for packaging the delta between a Stamina distribution and a baseline version.
+ * The delta archive contains added and changed files, a manifest with file checksums,
+ * and a script applying the delta to an installed baseline distribution.
+ *
+ * @author Stamina Framework developers
+ */
+@Mojo(name = "package-delta", defaultPhase = LifecyclePhase.PACKAGE, threadSafe = true)
+public class PackageDeltaMojo extends AbstractMojo {
+    private static final String ZIP_EXTENSION = ".zip";
+
+    @Parameter(defaultValue = "${project}", required = true, readonly = true)
+    private MavenProject project;
+    @Parameter(defaultValue = "${session}", readonly = true, required = true)
+    protected MavenSession session;
+    @Parameter(defaultValue = "${project.remoteArtifactRepositories}", readonly = true, required = true)
+    private List<ArtifactRepository> remoteRepositories;
+    @Parameter(defaultValue = "${project.build.directory}", required = true, readonly = true)
+    private File outputDirectory;
+    @Component
+    private ArtifactResolver artifactResolver;
+    /**
+     * Distribution archive (default: distribution packaged by <code>package-dist</code>).
+     */
+    @Parameter
+    private File distributionFile;
+    /**
+     * Baseline distribution version, resolved from repositories with the same coordinates as this project.
+     */
+    @Parameter(property = "stamina.baselineVersion")
+    private String baselineVersion;
+    @Parameter
+    private String baselineClassifier;
+    /**
+     * Baseline distribution archive, used instead of resolving <code>baselineVersion</code>.
+     */
+    @Parameter(property = "stamina.baselineFile")
+    private File baselineFile;
+    /**
+     * Number of threads used for compressing the delta (0: number of available processors).
+     */
+    @Parameter(defaultValue = "0", required = true)
+    private int compressionThreads;
+    @Parameter(defaultValue = "131072", required = true)
+    private int compressionBlockSize = 131072;
+    @Parameter(defaultValue = "-1", required = true)
+    private int compressionLevel = -1;
+    /**
+     * Maximum size of compressed data kept in memory for each entry being compressed.
+     */
+    @Parameter(defaultValue = "4194304", required = true)
+    private int scatterBufferSize = 4194304;
+    /**
+     * Timestamp for reproducible output (ISO-8601 date or seconds since the epoch).
+     */
+    @Parameter(defaultValue = "${project.build.outputTimestamp}")
+    private String outputTimestamp;
+    /**
+     * JSON report of packaging metrics (time spent in each phase, entry and byte counters).
+     */
+    @Parameter(defaultValue = "${project.build.directory}/stamina-delta-metrics.json", required = true)
+    private File metricsFile;
+
+    public void execute() throws MojoExecutionException, MojoFailureException {
+        final String finalName = project.getBuild().getFinalName();
+        if (distributionFile == null) {
+            // Use the last packaged distribution.
+            distributionFile = new File(outputDirectory, finalName + ZIP_EXTENSION);
+            for (final String format : TarCompression.FORMATS) {
+                final File tarFile = new File(outputDirectory, finalName + "." + format);
+                if (tarFile.exists() && (!distributionFile.exists()
+                        || tarFile.lastModified() > distributionFile.lastModified())) {
+                    distributionFile = tarFile;
+                }
+            }
+        }
+        if (!distributionFile.exists()) {
+            throw new MojoFailureException("Distribution file not found: " + distributionFile);
+        }
+        final String tarFormat = TarCompression.getFormat(distributionFile.getName());
+        final String extension;
+        if (distributionFile.getName().endsWith(ZIP_EXTENSION)) {
+            extension = ZIP_EXTENSION;
+        } else if (tarFormat != null) {
+            extension = "." + tarFormat;
+        } else {
+            throw new MojoFailureException("Unsupported distribution file: " + distributionFile);
+        }
+
+        final PackagingMetrics metrics = new PackagingMetrics("package-delta");
+        metrics.startPhase("resolve");
+        final String baselineDescription;
+        if (baselineFile == null) {
+            if (StringUtils.isEmpty(baselineVersion)) {
+                throw new MojoFailureException("Missing baseline: set baselineVersion or baselineFile");
+            }
+            final Artifact baselineArt = new DefaultArtifact(project.getGroupId(), project.getArtifactId(),
+                    baselineVersion, Artifact.SCOPE_COMPILE, extension.substring(1), baselineClassifier, null);
+            final DependencyResolver resolver = new DependencyResolver(
+                    artifactResolver, session, remoteRepositories, 1);
+            baselineFile = resolver.getFile(baselineArt);
+            baselineDescription = baselineArt.getId();
+        } else {
+            if (!baselineFile.getName().endsWith(extension)) {
+                throw new MojoFailureException("Baseline and distribution archives must have the same type: "
+                        + baselineFile);
+            }
+            baselineDescription = baselineFile.getName();
+        }
+        getLog().info("Using baseline distribution: " + baselineFile);
+
+        final CompressionOptions compression;
+        try {
+            if (tarFormat != null) {
+                TarCompression.checkLevel(tarFormat, compressionLevel);
+            }
+            compression = new CompressionOptions(compressionThreads, compressionBlockSize, compressionLevel,
+                    scatterBufferSize, CompressionPolicy.create(null, compressionLevel),
+                    OutputTimestamp.parse(outputTimestamp));
+        } catch (IllegalArgumentException e) {
+            throw new MojoFailureException(e.getMessage(), e);
+        }
+
+        final File workDir = new File(outputDirectory, "delta");
+        final File filesDir = new File(workDir, "files");
+        final DistributionDelta delta = new DistributionDelta();
+        try {
+            TemplateCache.deleteDirectory(workDir);
+            metrics.startPhase("compare");
+            delta.readBaseline(baselineFile);
+            delta.compare(distributionFile, filesDir);
+        } catch (IOException e) {
+            throw new MojoFailureException("Cannot compare distribution to baseline: " + baselineFile, e);
+        }
+        getLog().info("Distribution files added: " + delta.getAddedCount()
+                + ", changed: " + delta.getChangedCount() + ", removed: " + delta.getRemovedCount()
+                + ", unchanged: " + delta.getUnchangedCount());
+        metrics.setCounter("entries.added", delta.getAddedCount());
+        metrics.setCounter("entries.changed", delta.getChangedCount());
+        metrics.setCounter("entries.removed", delta.getRemovedCount());
+        metrics.setCounter("entries.unchanged", delta.getUnchangedCount());
+
+        final File deltaFile = new File(outputDirectory, finalName + "-delta" + extension);
+        getLog().info("Packaging distribution delta to file: " + deltaFile);
+        metrics.startPhase("archive");
+        final String root = finalName + "-delta/";
+        final File manifestFile = new File(workDir, DistributionDelta.MANIFEST);
+        final File scriptFile = new File(workDir, DistributionDelta.APPLY_SCRIPT);
+        try (final DistributionWriter writer = ZIP_EXTENSION.equals(extension)
+                ? new ZipDistributionWriter(deltaFile, compression)
+                : new TarDistributionWriter(deltaFile, tarFormat, compression)) {
+            delta.writeManifest(manifestFile, "Stamina distribution delta: "
+                    + baselineDescription + " -> " + distributionFile.getName());
+            DistributionDelta.writeApplyScript(scriptFile);
+            writer.addFile(manifestFile, root + DistributionDelta.MANIFEST);
+            writer.addFile(scriptFile, root + DistributionDelta.APPLY_SCRIPT, 0755);
+            for (final Map.Entry<String, File> e : delta.getFiles().entrySet()) {
+                writer.addFile(e.getValue(), root + "files/" + e.getKey(), delta.getMode(e.getKey()));
+            }
+            metrics.startPhase("write");
+            writer.close();
+            metrics.setCounter("entries.written", writer.getEntryCount());
+            metrics.setCounter("bytes.in", writer.getBytesIn());
+            metrics.addTime("compressionCpu", writer.getCompressionTime());
+        } catch (IOException e) {
+            deltaFile.delete();
+            throw new MojoFailureException("Failed to package distribution delta to file: " + deltaFile, e);
+        }
+        getLog().info("Distribution delta size: " + deltaFile.length() + " bytes (full distribution: "
+                + distributionFile.length() + " bytes)");
+        metrics.setCounter("bytes.out", deltaFile.length());
+        metrics.setCounter("bytes.full", distributionFile.length());
+        metrics.log(getLog());
+        try {
+            metrics.write(metricsFile);
+        } catch (IOException e) {
+            getLog().warn("Cannot write packaging metrics: " + metricsFile, e);
+        }
+    }
+}
@@ -25,28 +25,25 @@ import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.plugins.annotations.*;
-import org.apache.maven.project.DefaultProjectBuildingRequest;
 import org.apache.maven.project.MavenProject;
-import org.apache.maven.project.ProjectBuildingRequest;
-import org.apache.maven.shared.artifact.DefaultArtifactCoordinate;
 import org.apache.maven.shared.artifact.resolve.ArtifactResolver;
-import org.apache.maven.shared.artifact.resolve.ArtifactResolverException;
 import org.apache.maven.shared.utils.Os;
 import org.apache.maven.shared.utils.StringUtils;
-import org.codehaus.plexus.archiver.Archiver;
-import org.codehaus.plexus.archiver.ArchiverException;
-import org.codehaus.plexus.archiver.FileSet;
-import org.codehaus.plexus.archiver.UnArchiver;
-import org.codehaus.plexus.archiver.tar.TarArchiver;
-import org.codehaus.plexus.archiver.tar.TarLongFileMode;
-import org.codehaus.plexus.archiver.tar.TarUnArchiver;
-import org.codehaus.plexus.archiver.util.DefaultFileSet;
-import org.codehaus.plexus.archiver.zip.ZipArchiver;
-import org.codehaus.plexus.archiver.zip.ZipUnArchiver;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 /**
  * Mojo used for packaging a Stamina distribution.
@@ -54,11 +51,16 @@ import java.util.List;
  * @author Stamina Framework developers
  */
 @Mojo(name = "package-dist", defaultPhase = LifecyclePhase.PACKAGE,
-        requiresDependencyResolution = ResolutionScope.RUNTIME)
+        requiresDependencyResolution = ResolutionScope.RUNTIME, threadSafe = true)
 public class PackageDistMojo extends AbstractMojo {
     private static final String DISTRIBUTION_TYPE_AUTO = "auto";
     private static final String DISTRIBUTION_TYPE_ZIP = "zip";
     private static final String DISTRIBUTION_TYPE_TARGZ = "tar.gz";
+    private static final String DISTRIBUTION_TYPE_TARXZ = "tar.xz";
+    private static final String DISTRIBUTION_TYPE_TARZST = "tar.zst";
+    private static final String DISTRIBUTION_TYPE_DIR = "dir";
+    private static final String TEMPLATE_ENTRY_CHECKSUM = "template";
+    private static final String EMBEDDED_BUNDLES_METADATA = "embeddedBundles";
 
     @Parameter(defaultValue = "${project}", required = true, readonly = true)
     private MavenProject project;
@@ -72,30 +74,166 @@ public class PackageDistMojo extends AbstractMojo {
     private List<Artifact> pluginArtifacts;
     @Parameter
     private String distributionVersion;
+    /**
+     * Distribution type: <code>zip</code>, <code>tar.gz</code>, <code>tar.xz</code>, <code>tar.zst</code>,
+     * <code>auto</code> (platform archive type), or <code>dir</code> (exploded distribution directory,
+     * for development).
+     */
     @Parameter(defaultValue = "auto", required = true)
     private String distributionType;
+    /**
+     * Distribution template type (default: distribution type, or platform archive type for an exploded
+     * distribution). A tar distribution can be built from a tar template compressed with another format.
+     */
+    @Parameter
+    private String templateType;
+    /**
+     * How dependencies are added to an exploded distribution: <code>hardlink</code>,
+     * <code>symlink</code> or <code>copy</code>. Configuration files are always copied.
+     */
+    @Parameter(property = "stamina.linkMode", defaultValue = "hardlink", required = true)
+    private String linkMode;
     @Component
     private ArtifactResolver artifactResolver;
-    @Component(role = Archiver.class, hint = "zip")
-    private ZipArchiver zipArchiver;
-    @Component(role = Archiver.class, hint = "tar")
-    private TarArchiver tarArchiver;
-    @Component(role = UnArchiver.class, hint = "zip")
-    private ZipUnArchiver zipUnArchiver;
-    @Component(role = UnArchiver.class, hint = "tar")
-    private TarUnArchiver tarUnArchiver;
     @Parameter(defaultValue = "${project.dependencies}", required = true, readonly = true)
     private List<Dependency> projectDependencies;
+    @Parameter(defaultValue = "4", required = true)
+    private int resolverThreads = 4;
+    @Parameter(defaultValue = "${settings.localRepository}/.cache/stamina", required = true)
+    private File cacheDirectory;
+    @Parameter(defaultValue = "true", required = true)
+    private boolean useCache = true;
+    /**
+     * Number of threads used for compressing the distribution (0: number of available processors).
+     */
+    @Parameter(defaultValue = "0", required = true)
+    private int compressionThreads;
+    @Parameter(defaultValue = "131072", required = true)
+    private int compressionBlockSize = 131072;
+    /**
+     * Compression level (-1: default level for the distribution type, up to 22 for <code>tar.zst</code>).
+     */
+    @Parameter(defaultValue = "-1", required = true)
+    private int compressionLevel = -1;
+    /**
+     * Maximum size of compressed data kept in memory for each entry being compressed.
+     */
+    @Parameter(defaultValue = "4194304", required = true)
+    private int scatterBufferSize = 4194304;
+    /**
+     * Rules selecting how zip distribution entries are compressed (first matching rule wins).
+     * By default, already compressed files (such as JAR files) are stored.
+     */
+    @Parameter
+    private List<CompressionRule> compressionRules;
+    /**
+     * Timestamp for reproducible output (ISO-8601 date or seconds since the epoch).
+     * When set, distribution entries get this timestamp and normalized permissions.
+     */
+    @Parameter(defaultValue = "${project.build.outputTimestamp}")
+    private String outputTimestamp;
+    /**
+     * JSON report of packaging metrics (time spent in each phase, entry and byte counters).
+     */
+    @Parameter(defaultValue = "${project.build.directory}/stamina-dist-metrics.json", required = true)
+    private File metricsFile;
+    /**
+     * Generate a class data sharing archive with a training run of the distribution, to reduce
+     * startup time. The archive is generated with the build JVM (Java 10 or later is required),
+     * and can only be used by the same JVM.
+     * <p>
+     * The archive is enabled by JVM options written to <code>cdsOptionsFile</code>: this file must be
+     * given to the JVM as an argument file, from the distribution directory (for example
+     * <code>java @etc/cds.options -jar lib/launcher.jar</code>, or by setting
+     * <code>JDK_JAVA_OPTIONS=@etc/cds.options</code> before running a launcher script).
+     * With zip distributions, the archive is ignored when the distribution is unpacked in another
+     * time zone than the build, since zip entry times are stored in local time.
+     */
+    @Parameter(defaultValue = "false", required = true)
+    private boolean classDataSharing;
+    /**
+     * Launcher JAR file started by the training run, relative to the distribution directory.
+     */
+    @Parameter(defaultValue = "lib/launcher.jar", required = true)
+    private String cdsLauncher;
+    @Parameter
+    private List<String> cdsLauncherArguments;
+    /**
+     * Regular expression matching a line of the training run output when the distribution is ready:
+     * the training run is then stopped. When not set, the training run must exit by itself.
+     */
+    @Parameter
+    private String cdsReadyPattern;
+    /**
+     * Maximum duration of the training run (in seconds).
+     */
+    @Parameter(defaultValue = "300", required = true)
+    private int cdsTrainingTimeout = 300;
+    @Parameter(defaultValue = "lib/stamina.jsa", required = true)
+    private String cdsArchive;
+    /**
+     * JVM argument file enabling the class data sharing archive, relative to the distribution directory.
+     * Paths in this file are relative to the distribution directory.
+     */
+    @Parameter(defaultValue = "etc/cds.options", required = true)
+    private String cdsOptionsFile;
+    /**
+     * Store bundles embedded in several addons (or embedded in an addon and included as a bundle)
+     * once in a shared bundle repository, instead of keeping a copy in each addon.
+     * <p>
+     * Rewritten addons still list shared bundles as subsystem content: these bundles can only be
+     * provisioned from the repository index (<code>index.xml</code> in <code>sharedBundleDirectory</code>),
+     * which the runtime must register as an OSGi repository. The build fails if neither the distribution
+     * template nor a bundle dependency provides an OSGi repository service
+     * (<code>osgi.service</code> capability for <code>org.osgi.service.repository.Repository</code>).
+     */
+    @Parameter(defaultValue = "false", required = true)
+    private boolean deduplicateBundles;
+    /**
+     * Shared bundle repository, relative to the distribution directory.
+     */
+    @Parameter(defaultValue = "bundles", required = true)
+    private String sharedBundleDirectory;
+    /**
+     * Rewrite bundles before adding them to the distribution (see <code>bundleClassCompression</code>,
+     * <code>stripDebugInfo</code> and <code>bundleExcludes</code>).
+     * Rewritten bundles are cached by input checksum.
+     */
+    @Parameter(defaultValue = "false", required = true)
+    private boolean optimizeBundles;
+    /**
+     * Compression level of class entries in rewritten bundles
+     * (0: classes are stored, for faster class loading; -1: default level).
+     */
+    @Parameter(defaultValue = "0", required = true)
+    private int bundleClassCompression;
+    /**
+     * Remove line numbers and local variable tables from classes in rewritten bundles.
+     */
+    @Parameter(defaultValue = "false", required = true)
+    private boolean stripDebugInfo;
+    /**
+     * Entries removed from rewritten bundles (globs, such as <code>META-INF/maven/**</code>).
+     */
+    @Parameter
+    private List<String> bundleExcludes;
 
     public void execute() throws MojoExecutionException, MojoFailureException {
         if (!distributionType.equals(DISTRIBUTION_TYPE_AUTO)
                 && !distributionType.equals(DISTRIBUTION_TYPE_ZIP)
-                && !distributionType.equals(DISTRIBUTION_TYPE_TARGZ)) {
+                && !distributionType.equals(DISTRIBUTION_TYPE_TARGZ)
+                && !distributionType.equals(DISTRIBUTION_TYPE_TARXZ)
+                && !distributionType.equals(DISTRIBUTION_TYPE_TARZST)
+                && !distributionType.equals(DISTRIBUTION_TYPE_DIR)) {
             getLog().error("Supported distribution types: "
                     + DISTRIBUTION_TYPE_AUTO + ", " + DISTRIBUTION_TYPE_ZIP
-                    + ", " + DISTRIBUTION_TYPE_TARGZ);
+                    + ", " + DISTRIBUTION_TYPE_TARGZ + ", " + DISTRIBUTION_TYPE_TARXZ
+                    + ", " + DISTRIBUTION_TYPE_TARZST + ", " + DISTRIBUTION_TYPE_DIR);
             throw new MojoFailureException("Unsupported distribution type: " + distributionType);
         }
+        if (!ExplodedDistributionUpdater.isValidLinkMode(linkMode)) {
+            throw new MojoFailureException("Unsupported link mode: " + linkMode);
+        }
         if (DISTRIBUTION_TYPE_AUTO.equals(distributionType)) {
             if (Os.isFamily(Os.FAMILY_WINDOWS)) {
                 distributionType = DISTRIBUTION_TYPE_ZIP;
@@ -105,33 +243,51 @@ public class PackageDistMojo extends AbstractMojo {
             getLog().info("Distribution type automatically set to " + distributionType);
         }
 
-        final Archiver archiver;
-        final UnArchiver unArchiver;
+        final File distArchiveFile;
         if (DISTRIBUTION_TYPE_ZIP.equals(distributionType)) {
-            archiver = zipArchiver;
-            unArchiver = zipUnArchiver;
-            archiver.setDestFile(new File(outputDirectory, project.getBuild().getFinalName() + ".zip"));
-        } else if (DISTRIBUTION_TYPE_TARGZ.equals(distributionType)) {
-            tarArchiver.setCompression(TarArchiver.TarCompressionMethod.gzip);
-            tarArchiver.setLongfile(TarLongFileMode.gnu);
-            tarUnArchiver.setCompression(TarUnArchiver.UntarCompressionMethod.GZIP);
-            archiver = tarArchiver;
-            archiver.setDestFile(new File(outputDirectory, project.getBuild().getFinalName() + ".tar.gz"));
-            unArchiver = tarUnArchiver;
+            distArchiveFile = new File(outputDirectory, project.getBuild().getFinalName() + ".zip");
+        } else if (TarCompression.FORMATS.contains(distributionType)) {
+            distArchiveFile = new File(outputDirectory, project.getBuild().getFinalName() + "." + distributionType);
+        } else if (DISTRIBUTION_TYPE_DIR.equals(distributionType)) {
+            distArchiveFile = new File(outputDirectory, project.getBuild().getFinalName());
         } else {
             throw new MojoFailureException("Unexpected error");
         }
+        if (StringUtils.isEmpty(templateType)) {
+            // An exploded distribution is built from the platform template archive.
+            if (!DISTRIBUTION_TYPE_DIR.equals(distributionType)) {
+                templateType = distributionType;
+            } else if (Os.isFamily(Os.FAMILY_WINDOWS)) {
+                templateType = DISTRIBUTION_TYPE_ZIP;
+            } else {
+                templateType = DISTRIBUTION_TYPE_TARGZ;
+            }
+        } else {
+            // Template entries are copied to an archive of the same kind (zip or tar).
+            final boolean supported;
+            if (DISTRIBUTION_TYPE_ZIP.equals(distributionType)) {
+                supported = DISTRIBUTION_TYPE_ZIP.equals(templateType);
+            } else if (DISTRIBUTION_TYPE_DIR.equals(distributionType)) {
+                supported = DISTRIBUTION_TYPE_ZIP.equals(templateType) || TarCompression.FORMATS.contains(templateType);
+            } else {
+                supported = TarCompression.FORMATS.contains(templateType);
+            }
+            if (!supported) {
+                throw new MojoFailureException("Unsupported template type for distribution type "
+                        + distributionType + ": " + templateType);
+            }
+        }
 
         // Resolve Stamina distribution artifact from plugin dependencies.
         Artifact distArt = null;
         if (!StringUtils.isEmpty(distributionVersion)) {
             distArt = new DefaultArtifact("io.staminaframework.runtime", "io.staminaframework.runtime",
-                    distributionVersion, Artifact.SCOPE_COMPILE, distributionType, "bin", null);
+                    distributionVersion, Artifact.SCOPE_COMPILE, templateType, "bin", null);
         } else {
             for (final Artifact art : pluginArtifacts) {
                 if ("io.staminaframework.runtime".equals(art.getGroupId()) && "io.staminaframework.runtime".equals(art.getArtifactId())) {
                     distArt = new DefaultArtifact(art.getGroupId(), art.getArtifactId(),
-                            art.getVersion(), art.getScope(), distributionType, art.getClassifier(), null);
+                            art.getVersion(), art.getScope(), templateType, art.getClassifier(), null);
                     break;
                 }
             }
@@ -140,29 +296,19 @@ public class PackageDistMojo extends AbstractMojo {
             throw new MojoFailureException("Unable to resolve distribution template");
         }
 
-        final File distFile = resolveArtifact(distArt);
-        getLog().info("Using distribution template: " + distFile);
-
-        final File distDir = new File(outputDirectory, "dist");
-        getLog().info("Unpacking distribution template to: " + distDir);
-        distDir.mkdirs();
-        unArchiver.setDestDirectory(distDir);
-        unArchiver.setSourceFile(distFile);
-        try {
-            unArchiver.extract();
-        } catch (ArchiverException e) {
-            throw new MojoFailureException("Failed to unpack distribution template to " + distDir, e);
+        final PackagingMetrics metrics = new PackagingMetrics("package-dist");
+        metrics.startPhase("resolve");
+        final DependencyResolver resolver = new DependencyResolver(
+                artifactResolver, session, remoteRepositories, resolverThreads);
+        if (useCache) {
+            resolver.setIndex(new ArtifactIndex(new File(cacheDirectory, "artifacts")));
         }
-
-        // Fix distribution root dir: use current project build final name.
-        final File rootDistDir = new File(distDir, distArt.getArtifactId() + "-" + distArt.getVersion());
-        rootDistDir.renameTo(new File(distDir, project.getBuild().getFinalName()));
-
-        // Add all files from distribution to final archive.
-        final FileSet distFileSet = new DefaultFileSet(distDir);
-        archiver.addFileSet(distFileSet);
+        final File distFile = resolver.getFile(distArt);
+        getLog().info("Using distribution template: " + distFile);
 
         getLog().info("Reading project dependencies");
+        final String commonPrefix = project.getBuild().getFinalName() + "/";
+        final Map<Dependency, String> includedDeps = new LinkedHashMap<>(projectDependencies.size());
         for (final Dependency dep : projectDependencies) {
             final String scope = dep.getScope();
             if (Artifact.SCOPE_PROVIDED.equals(scope)
@@ -175,7 +321,6 @@ public class PackageDistMojo extends AbstractMojo {
                 continue;
             }
 
-            final String commonPrefix = project.getBuild().getFinalName() + "/";
             final String prefix;
             switch (dep.getType()) {
                 case "cfg":
@@ -192,58 +337,416 @@ public class PackageDistMojo extends AbstractMojo {
                 getLog().warn("Dependency not included (unsupported type): "
                         + dep.getGroupId() + ":" + dep.getArtifactId());
             } else {
+                includedDeps.put(dep, commonPrefix + prefix);
+            }
+        }
+        resolver.resolve(includedDeps.keySet());
+        metrics.setCounter("dependencies", includedDeps.size());
+
+        final CompressionPolicy compressionPolicy;
+        try {
+            compressionPolicy = CompressionPolicy.create(compressionRules, compressionLevel);
+        } catch (IllegalArgumentException e) {
+            throw new MojoFailureException("Invalid compression rules: " + e.getMessage(), e);
+        }
+        final long outputTime;
+        final BundleOptimizer optimizer;
+        try {
+            if (TarCompression.FORMATS.contains(distributionType)) {
+                TarCompression.checkLevel(distributionType, compressionLevel);
+            }
+            outputTime = OutputTimestamp.parse(outputTimestamp);
+            final File optimizedBundleDir = new File(useCache ? cacheDirectory : outputDirectory, "optimized-bundles");
+            optimizer = optimizeBundles ? new BundleOptimizer(getLog(), optimizedBundleDir,
+                    bundleClassCompression, stripDebugInfo, bundleExcludes) : null;
+        } catch (IllegalArgumentException e) {
+            throw new MojoFailureException(e.getMessage(), e);
+        }
+
+        final File fingerprintFile = new File(outputDirectory, distArchiveFile.getName() + ".fingerprint");
+        metrics.startPhase("fingerprint");
+        final BuildFingerprint fingerprint = new BuildFingerprint();
+        fingerprint.setParameter("distributionType", distributionType);
+        fingerprint.setParameter("finalName", project.getBuild().getFinalName());
+        fingerprint.setParameter("template", distArt.getId());
+        fingerprint.setParameter("compression", compressionPolicy.describe());
+        fingerprint.setParameter("outputTimestamp", outputTime);
+        fingerprint.setParameter("deduplicateBundles", deduplicateBundles ? sharedBundleDirectory : "false");
+        fingerprint.setParameter("optimizeBundles", optimizer == null ? "false" : optimizer.describe());
+        if (DISTRIBUTION_TYPE_DIR.equals(distributionType)) {
+            fingerprint.setParameter("linkMode", linkMode);
+        }
+        if (classDataSharing) {
+            fingerprint.setParameter("classDataSharing", System.getProperty("java.home") + ":"
+                    + System.getProperty("java.vm.version") + ":" + cdsLauncher + ":" + cdsLauncherArguments + ":"
+                    + cdsReadyPattern + ":" + cdsArchive + ":" + cdsOptionsFile);
+        }
+        final Map<String, File> depEntries = new LinkedHashMap<>(includedDeps.size());
+        final String templateChecksum;
+        final BundleDeduplicator deduplicator = deduplicateBundles ? new BundleDeduplicator(
+                new File(outputDirectory, "dedup"), commonPrefix + sharedBundleDirectory + "/") : null;
+        try {
+            templateChecksum = resolver.getChecksum(distArt);
+            for (final Map.Entry<Dependency, String> e : includedDeps.entrySet()) {
+                final Dependency dep = e.getKey();
+                File depFile = resolver.getFile(dep);
+                final String entryName = e.getValue() + depFile.getName();
+                String checksum = resolver.getChecksum(dep);
+                if (optimizer != null && "jar".equals(dep.getType())) {
+                    // Bundles are rewritten before being deduplicated: entries are identified by their content.
+                    depFile = optimizer.optimize(depFile, checksum);
+                    checksum = BundleOptimizer.getChecksum(depFile);
+                }
+                depEntries.put(entryName, depFile);
+                fingerprint.addEntry(entryName, checksum);
+                if (deduplicator != null && "esa".equals(dep.getType())) {
+                    deduplicator.addSubsystem(entryName, depFile, checksum, getEmbeddedBundles(dep, resolver));
+                } else if (deduplicator != null && "jar".equals(dep.getType())) {
+                    deduplicator.addBundle(entryName, depFile, checksum);
+                }
+            }
+            if (deduplicator != null) {
+                // Deduplicated entries are identified by their inputs: files are written later if required.
+                for (final Map.Entry<String, String> e : deduplicator.plan().entrySet()) {
+                    fingerprint.addEntry(e.getKey(), e.getValue());
+                }
+            }
+        } catch (IOException e) {
+            throw new MojoFailureException("Cannot compute distribution fingerprint", e);
+        }
+        fingerprint.setParameter("templateChecksum", templateChecksum);
+        if (deduplicator != null && deduplicator.getRemovedBundleCount() != 0) {
+            checkSharedBundleRepositorySupport(distFile, distArt.getId(), templateChecksum, depEntries);
+        }
+        if (optimizer != null) {
+            getLog().info("Bundles rewritten: " + optimizer.getRewrittenCount()
+                    + ", reused from cache: " + optimizer.getCachedCount());
+            metrics.setCounter("optimize.rewritten", optimizer.getRewrittenCount());
+            metrics.setCounter("optimize.cached", optimizer.getCachedCount());
+            metrics.setCounter("optimize.bytesIn", optimizer.getBytesIn());
+            metrics.setCounter("optimize.bytesOut", optimizer.getBytesOut());
+        }
+
+        final CompressionOptions compression = new CompressionOptions(
+                compressionThreads, compressionBlockSize, compressionLevel, scatterBufferSize,
+                compressionPolicy, outputTime);
+        final BuildFingerprint previousFingerprint = BuildFingerprint.load(fingerprintFile);
+        final boolean sameParameters = distArchiveFile.exists() && previousFingerprint != null
+                && fingerprint.hasSameParameters(previousFingerprint);
+        if (sameParameters) {
+            // Template did not change: reuse template entries from previous build.
+            for (final Map.Entry<String, String> e : previousFingerprint.getEntries().entrySet()) {
+                if (TEMPLATE_ENTRY_CHECKSUM.equals(e.getValue())) {
+                    fingerprint.addEntry(e.getKey(), TEMPLATE_ENTRY_CHECKSUM);
+                }
+            }
+            if (fingerprint.isSameAs(previousFingerprint)
+                    && (!DISTRIBUTION_TYPE_DIR.equals(distributionType)
+                    || hasAllEntries(distArchiveFile, fingerprint, commonPrefix))) {
+                getLog().info("Distribution is up-to-date: " + distArchiveFile);
+                metrics.setCounter("upToDate", 1);
+                reportMetrics(metrics);
+                return;
+            }
+        }
+
+        if (deduplicator != null) {
+            metrics.startPhase("dedup");
+            try {
+                depEntries.putAll(deduplicator.write(compression));
+            } catch (IOException e) {
+                throw new MojoFailureException("Cannot deduplicate distribution bundles", e);
+            }
+            getLog().info("Bundles shared between addons: " + deduplicator.getSharedBundleCount()
+                    + ", copies removed: " + deduplicator.getRemovedBundleCount()
+                    + ", bytes saved: " + deduplicator.getSavedBytes());
+            metrics.setCounter("dedup.shared", deduplicator.getSharedBundleCount());
+            metrics.setCounter("dedup.removed", deduplicator.getRemovedBundleCount());
+            metrics.setCounter("dedup.bytesSaved", deduplicator.getSavedBytes());
+        }
+
+        if (classDataSharing) {
+            // Generated files are not part of the fingerprint: they are always written.
+            metrics.startPhase("cds");
+            depEntries.putAll(generateClassDataSharingArchive(distFile, distArt.getId(), templateChecksum,
+                    distArt.getArtifactId() + "-" + distArt.getVersion() + "/", depEntries, compression, metrics));
+        }
+
+        if (DISTRIBUTION_TYPE_DIR.equals(distributionType)) {
+            fingerprintFile.delete();
+            updateExplodedDistribution(distArchiveFile, distFile, distArt, templateChecksum,
+                    sameParameters ? previousFingerprint : null, fingerprint, depEntries, metrics);
+            storeFingerprint(fingerprint, fingerprintFile);
+            reportMetrics(metrics);
+            return;
+        }
+
+        if (sameParameters) {
+            if (DISTRIBUTION_TYPE_ZIP.equals(distributionType)) {
+                fingerprintFile.delete();
+                getLog().info("Updating distribution file: " + distArchiveFile);
+                metrics.startPhase("archive");
+                final IncrementalZipUpdater updater = new IncrementalZipUpdater();
+                try {
+                    updater.update(distArchiveFile, previousFingerprint, fingerprint, depEntries, compression);
+                    getLog().info("Distribution entries reused: " + updater.getReusedEntries()
+                            + ", written: " + updater.getWrittenEntries());
+                    storeFingerprint(fingerprint, fingerprintFile);
+                    metrics.setCounter("entries.reused", updater.getReusedEntries());
+                    metrics.setCounter("entries.written", updater.getWrittenEntries());
+                    metrics.setCounter("bytes.in", updater.getBytesIn());
+                    metrics.setCounter("bytes.out", distArchiveFile.length());
+                    metrics.addTime("compressionCpu", updater.getCompressionTime());
+                    reportMetrics(metrics);
+                    return;
+                } catch (IOException e) {
+                    getLog().warn("Cannot update distribution file, rebuilding: " + distArchiveFile, e);
+                }
+            }
+        }
+        fingerprintFile.delete();
+
+        getLog().info("Packaging distribution to file: " + distArchiveFile);
+        metrics.startPhase("template");
+        final String templateRoot = distArt.getArtifactId() + "-" + distArt.getVersion() + "/";
+        try (final DistributionWriter writer = DISTRIBUTION_TYPE_ZIP.equals(distributionType)
+                ? new ZipDistributionWriter(distArchiveFile, compression)
+                : new TarDistributionWriter(distArchiveFile, distributionType, compression)) {
+            // Template root dir is renamed using current project build final name.
+            for (final String entryName : writer.copyTemplate(distFile, templateRoot, commonPrefix)) {
+                fingerprint.addEntry(entryName, TEMPLATE_ENTRY_CHECKSUM);
+            }
+            metrics.startPhase("archive");
+            for (final Map.Entry<Dependency, String> e : includedDeps.entrySet()) {
+                final Dependency dep = e.getKey();
                 getLog().info("Adding dependency to distribution: "
                         + dep.getGroupId() + ":" + dep.getArtifactId());
-                final File depFile = resolveDependency(dep);
-                archiver.addFile(depFile, commonPrefix + prefix + depFile.getName());
+            }
+            // Dependencies are added sorted by entry name.
+            for (final Map.Entry<String, File> e : new TreeMap<>(depEntries).entrySet()) {
+                writer.addFile(e.getValue(), e.getKey());
+            }
+            metrics.startPhase("write");
+            writer.close();
+            metrics.setCounter("entries.written", writer.getEntryCount());
+            metrics.setCounter("bytes.in", writer.getBytesIn());
+            metrics.addTime("compressionCpu", writer.getCompressionTime());
+        } catch (IOException e) {
+            distArchiveFile.delete();
+            throw new MojoFailureException("Failed to package distribution to file: " + distArchiveFile, e);
+        }
+        storeFingerprint(fingerprint, fingerprintFile);
+        metrics.setCounter("bytes.out", distArchiveFile.length());
+        reportMetrics(metrics);
+    }
+
+    /**
+     * Generate a class data sharing archive, with a training run of the distribution
+     * unpacked to a working directory.
+     *
+     * @return generated distribution entries
+     */
+    private Map<String, File> generateClassDataSharingArchive(File distFile, String templateCoordinate,
+                                                              String templateChecksum, String templateRoot,
+                                                              Map<String, File> depEntries,
+                                                              CompressionOptions compression,
+                                                              PackagingMetrics metrics) throws MojoFailureException {
+        final Pattern readyPattern;
+        try {
+            readyPattern = cdsReadyPattern == null ? null : Pattern.compile(cdsReadyPattern);
+        } catch (PatternSyntaxException e) {
+            throw new MojoFailureException("Invalid training run ready pattern: " + cdsReadyPattern, e);
+        }
+        final File trainingDir = new File(outputDirectory, "cds-training");
+        final File distDir = new File(trainingDir, project.getBuild().getFinalName());
+        final File archiveFile = new File(trainingDir, "stamina.jsa");
+        final File optionsFile = new File(trainingDir, "cds.options");
+        try {
+            TemplateCache.deleteDirectory(distDir);
+            final File templateDir = getTemplateDirectory(distFile, templateCoordinate, templateChecksum);
+            // Files are copied, since the training run may update distribution files.
+            TemplateCache.copy(new File(templateDir, templateRoot), distDir);
+            for (final Map.Entry<String, File> e : depEntries.entrySet()) {
+                final File depFile = new File(trainingDir, e.getKey());
+                depFile.getParentFile().mkdirs();
+                Files.copy(e.getValue().toPath(), depFile.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+            }
+            // The JVM ignores a CDS archive if class path files do not have the same modification times
+            // as during the training run.
+            setUnpackedTimes(distDir, compression);
+            if (DISTRIBUTION_TYPE_ZIP.equals(distributionType)) {
+                getLog().warn("Zip entry times are stored in local time: the class data sharing archive "
+                        + "is ignored if the distribution is unpacked in another time zone than "
+                        + TimeZone.getDefault().getID());
+            }
+
+            final ClassDataSharingTrainer trainer = new ClassDataSharingTrainer(getLog(),
+                    cdsLauncher, cdsLauncherArguments, readyPattern, cdsTrainingTimeout);
+            trainer.train(distDir, trainingDir, archiveFile);
+            Files.write(optionsFile.toPath(),
+                    trainer.toJvmOptions(cdsArchive, cdsOptionsFile).getBytes(StandardCharsets.UTF_8));
+            metrics.setCounter("cds.classes", trainer.getClassCount());
+            metrics.setCounter("cds.bytes", archiveFile.length());
+        } catch (IOException e) {
+            throw new MojoFailureException("Cannot generate class data sharing archive", e);
+        }
+        getLog().info("Class data sharing archive generated: " + archiveFile);
+
+        final String commonPrefix = project.getBuild().getFinalName() + "/";
+        final Map<String, File> entries = new LinkedHashMap<>(2);
+        entries.put(commonPrefix + cdsArchive, archiveFile);
+        entries.put(commonPrefix + cdsOptionsFile, optionsFile);
+        return entries;
+    }
+
+    /**
+     * Set modification times of files to the times they get when unpacked from the distribution archive:
+     * archive entry times are replaced when reproducible output is enabled, and are stored with a lower
+     * precision than file times.
+     */
+    private void setUnpackedTimes(File dir, CompressionOptions compression) throws IOException {
+        if (DISTRIBUTION_TYPE_DIR.equals(distributionType)) {
+            // Exploded distribution files keep their modification times.
+            return;
+        }
+        final boolean zip = DISTRIBUTION_TYPE_ZIP.equals(distributionType);
+        // Zip entry times have a precision of 2 seconds, tar entry times a precision of 1 second.
+        final long precision = zip ? 2000 : 1000;
+        Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (attrs.isRegularFile()) {
+                    final long time;
+                    if (compression.isReproducible()) {
+                        time = zip ? OutputTimestamp.toZipTime(compression.getOutputTimestamp())
+                                : compression.getOutputTimestamp();
+                    } else {
+                        time = attrs.lastModifiedTime().toMillis();
+                    }
+                    Files.setLastModifiedTime(file, FileTime.fromMillis(time - time % precision));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Create or update an exploded distribution directory.
+     * The directory is recreated from the template when there is no previous build to update.
+     */
+    private void updateExplodedDistribution(File distDir, File distFile, Artifact distArt, String templateChecksum,
+                                            BuildFingerprint previousFingerprint, BuildFingerprint fingerprint,
+                                            Map<String, File> depEntries,
+                                            PackagingMetrics metrics) throws MojoFailureException {
+        final String commonPrefix = project.getBuild().getFinalName() + "/";
+        final ExplodedDistributionUpdater updater = new ExplodedDistributionUpdater(linkMode);
+        try {
+            final File templateDir;
+            if (previousFingerprint == null) {
+                getLog().info("Creating distribution directory: " + distDir);
+                metrics.startPhase("template");
+                templateDir = new File(getTemplateDirectory(distFile, distArt.getId(), templateChecksum),
+                        distArt.getArtifactId() + "-" + distArt.getVersion());
+            } else {
+                getLog().info("Updating distribution directory: " + distDir);
+                templateDir = null;
+            }
+            metrics.startPhase("link");
+            updater.update(distDir, templateDir, previousFingerprint, fingerprint,
+                    depEntries, commonPrefix, commonPrefix + "etc/");
+        } catch (IOException e) {
+            throw new MojoFailureException("Failed to update distribution directory: " + distDir, e);
+        }
+        getLog().info("Distribution entries reused: " + updater.getReusedEntries()
+                + ", written: " + updater.getWrittenEntries() + ", removed: " + updater.getRemovedEntries());
+        metrics.setCounter("entries.reused", updater.getReusedEntries());
+        metrics.setCounter("entries.written", updater.getWrittenEntries());
+        metrics.setCounter("entries.removed", updater.getRemovedEntries());
+    }
+
+    private static boolean hasAllEntries(File distDir, BuildFingerprint fingerprint, String commonPrefix) {
+        for (final String entryName : fingerprint.getEntries().keySet()) {
+            if (entryName.startsWith(commonPrefix)
+                    && !new File(distDir, entryName.substring(commonPrefix.length())).exists()) {
+                return false;
             }
         }
+        return true;
+    }
 
-        getLog().info("Packaging distribution to file: " + archiver.getDestFile());
+    private File getTemplateDirectory(File distFile, String templateCoordinate,
+                                      String templateChecksum) throws IOException {
+        final TemplateCache templateCache = new TemplateCache(useCache
+                ? new File(cacheDirectory, "templates") : new File(outputDirectory, "templates"));
+        return templateCache.getTemplate(distFile, templateCoordinate, templateChecksum);
+    }
+
+    /**
+     * Check that the distribution provides an OSGi repository service, which is required to provision
+     * bundles removed from addons: the runtime registers the shared bundle repository index with this service.
+     */
+    private void checkSharedBundleRepositorySupport(File distFile, String templateCoordinate, String templateChecksum,
+                                                    Map<String, File> depEntries) throws MojoFailureException {
+        final List<File> bundleFiles = new ArrayList<>();
+        for (final File file : depEntries.values()) {
+            if (file.getName().endsWith(".jar")) {
+                bundleFiles.add(file);
+            }
+        }
         try {
-            archiver.createArchive();
+            final File templateDir = getTemplateDirectory(distFile, templateCoordinate, templateChecksum);
+            Files.walkFileTree(templateDir.toPath(), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (attrs.isRegularFile() && file.getFileName().toString().endsWith(".jar")) {
+                        bundleFiles.add(file.toFile());
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            for (final File file : bundleFiles) {
+                final BundleResource bundle = BundleResource.read(file);
+                if (bundle != null && BundleDeduplicator.providesRepository(bundle)) {
+                    getLog().debug("Shared bundle repository service provided by: " + bundle);
+                    return;
+                }
+            }
         } catch (IOException e) {
-            throw new MojoFailureException("Failed to package distribution to file: " + archiver.getDestFile(), e);
+            throw new MojoFailureException("Cannot check distribution bundles", e);
+        }
+        throw new MojoFailureException("Cannot deduplicate bundles: addons would no longer embed shared bundles, "
+                + "which must then be provisioned from " + sharedBundleDirectory + "/index.xml. "
+                + "Neither distribution template " + templateCoordinate + " nor bundle dependencies provide "
+                + "an OSGi repository service to register this index (disable deduplicateBundles, "
+                + "or include a bundle providing org.osgi.service.repository.Repository)");
+    }
+
+    private static List<BundleDeduplicator.EmbeddedBundle> getEmbeddedBundles(
+            Dependency dep, DependencyResolver resolver) throws MojoFailureException, IOException {
+        final String cached = resolver.getMetadata(dep, EMBEDDED_BUNDLES_METADATA);
+        if (cached != null) {
+            return BundleDeduplicator.decode(cached);
         }
+        final List<BundleDeduplicator.EmbeddedBundle> bundles = BundleDeduplicator.scan(resolver.getFile(dep));
+        resolver.putMetadata(dep, EMBEDDED_BUNDLES_METADATA, BundleDeduplicator.encode(bundles));
+        return bundles;
     }
 
-    private File resolveArtifact(Artifact art) throws MojoFailureException {
-        final ProjectBuildingRequest req =
-                new DefaultProjectBuildingRequest(session.getProjectBuildingRequest());
-        req.setRemoteRepositories(remoteRepositories);
+    private void reportMetrics(PackagingMetrics metrics) {
+        metrics.log(getLog());
         try {
-            final DefaultArtifactCoordinate artCoo = new DefaultArtifactCoordinate();
-            artCoo.setGroupId(art.getGroupId());
-            artCoo.setArtifactId(art.getArtifactId());
-            artCoo.setClassifier(art.getClassifier());
-            artCoo.setExtension(art.getType());
-            artCoo.setVersion(art.getVersion());
-
-            return artifactResolver.resolveArtifact(req, artCoo).getArtifact().getFile();
-        } catch (ArtifactResolverException e) {
-            throw new MojoFailureException("Failed to resolve artifact: "
-                    + art.getGroupId() + ":" + art.getArtifactId()
-                    + ":" + art.getVersion());
+            metrics.write(metricsFile);
+        } catch (IOException e) {
+            getLog().warn("Cannot write packaging metrics: " + metricsFile, e);
         }
     }
 
-    private File resolveDependency(Dependency dep) throws MojoFailureException {
-        final ProjectBuildingRequest req =
-                new DefaultProjectBuildingRequest(session.getProjectBuildingRequest());
-        req.setRemoteRepositories(remoteRepositories);
+    private void storeFingerprint(BuildFingerprint fingerprint, File fingerprintFile) {
         try {
-            final DefaultArtifactCoordinate artCoo = new DefaultArtifactCoordinate();
-            artCoo.setGroupId(dep.getGroupId());
-            artCoo.setArtifactId(dep.getArtifactId());
-            artCoo.setClassifier(dep.getClassifier());
-            artCoo.setExtension(dep.getType());
-            artCoo.setVersion(dep.getVersion());
-
-            return artifactResolver.resolveArtifact(req, artCoo).getArtifact().getFile();
-        } catch (ArtifactResolverException e) {
-            throw new MojoFailureException("Failed to resolve artifact: "
-                    + dep.getGroupId() + ":" + dep.getArtifactId()
-                    + ":" + dep.getVersion());
+            fingerprint.store(fingerprintFile);
+        } catch (IOException e) {
+            getLog().warn("Cannot write distribution fingerprint: " + fingerprintFile, e);
         }
     }
 }
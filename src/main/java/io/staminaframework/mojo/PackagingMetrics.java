@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.mojo;
+
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timers and counters collected while packaging an archive.
+ * <p>
+ * Packaging is split into sequential phases: starting a phase ends the current one.
+ * Metrics are written as a JSON report, so that packaging performance can be
+ * compared between builds.
+ *
+ * @author Stamina Framework developers
+ */
+final class PackagingMetrics {
+    private final String goal;
+    private final long startTime = System.nanoTime();
+    private final Map<String, Long> phases = new LinkedHashMap<>();
+    private final Map<String, Long> counters = new LinkedHashMap<>();
+    private String currentPhase;
+    private long currentPhaseStart;
+
+    PackagingMetrics(String goal) {
+        this.goal = goal;
+    }
+
+    /**
+     * Start a phase, ending the current phase.
+     * Time spent in a phase is accumulated if this phase is started several times.
+     */
+    void startPhase(String name) {
+        endPhase();
+        currentPhase = name;
+        currentPhaseStart = System.nanoTime();
+    }
+
+    /**
+     * End the current phase.
+     */
+    void endPhase() {
+        if (currentPhase != null) {
+            addTime(currentPhase, System.nanoTime() - currentPhaseStart);
+            currentPhase = null;
+        }
+    }
+
+    /**
+     * Add time to a phase, such as time spent by compression threads.
+     *
+     * @param nanos time in nanoseconds
+     */
+    void addTime(String phase, long nanos) {
+        phases.merge(phase, nanos, Long::sum);
+    }
+
+    void increment(String counter, long value) {
+        counters.merge(counter, value, Long::sum);
+    }
+
+    void setCounter(String counter, long value) {
+        counters.put(counter, value);
+    }
+
+    /**
+     * Log a summary of collected metrics.
+     */
+    void log(Log log) {
+        endPhase();
+        final StringBuilder buf = new StringBuilder(128);
+        buf.append("Packaging metrics: total ").append(toMillis(System.nanoTime() - startTime)).append(" ms");
+        for (final Map.Entry<String, Long> e : phases.entrySet()) {
+            buf.append(", ").append(e.getKey()).append(" ").append(toMillis(e.getValue())).append(" ms");
+        }
+        log.info(buf);
+        if (!counters.isEmpty()) {
+            buf.setLength(0);
+            for (final Map.Entry<String, Long> e : counters.entrySet()) {
+                if (buf.length() != 0) {
+                    buf.append(", ");
+                }
+                buf.append(e.getKey()).append(": ").append(e.getValue());
+            }
+            log.info("Packaging counters: " + buf);
+        }
+    }
+
+    /**
+     * Write collected metrics as a JSON report.
+     */
+    void write(File file) throws IOException {
+        endPhase();
+        file.getParentFile().mkdirs();
+        try (final Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"))) {
+            out.write("{\n");
+            out.write("  \"goal\": \"" + escape(goal) + "\",\n");
+            out.write("  \"timestamp\": " + System.currentTimeMillis() + ",\n");
+            out.write("  \"totalTimeMs\": " + toMillis(System.nanoTime() - startTime) + ",\n");
+            out.write("  \"phasesMs\": {");
+            writeValues(out, phases, true);
+            out.write("},\n");
+            out.write("  \"counters\": {");
+            writeValues(out, counters, false);
+            out.write("}\n");
+            out.write("}\n");
+        }
+    }
+
+    private static void writeValues(Writer out, Map<String, Long> values, boolean time) throws IOException {
+        boolean first = true;
+        for (final Map.Entry<String, Long> e : values.entrySet()) {
+            out.write(first ? "\n" : ",\n");
+            first = false;
+            out.write("    \"" + escape(e.getKey()) + "\": " + (time ? toMillis(e.getValue()) : e.getValue()));
+        }
+        if (!first) {
+            out.write("\n  ");
+        }
+    }
+
+    private static long toMillis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    private static String escape(String str) {
+        final StringBuilder buf = new StringBuilder(str.length() + 8);
+        for (int i = 0; i < str.length(); ++i) {
+            final char c = str.charAt(i);
+            if (c == '"' || c == '\\') {
+                buf.append('\\').append(c);
+            } else if (c < 0x20) {
+                buf.append(String.format("\\u%04x", (int) c));
+            } else {
+                buf.append(c);
+            }
+        }
+        return buf.toString();
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.mojo;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Output stream compressing data blocks in parallel, for compression formats
+ * supporting concatenated frames (such as xz and zstd).
+ * <p>
+ * Input data is split into blocks, which are compressed concurrently as independent frames.
+ * Compressed frames are concatenated in order: decoders read them as a single stream.
+ * Output does not depend on the number of threads.
+ *
+ * @author Stamina Framework developers
+ */
+final class ParallelFrameOutputStream extends FilterOutputStream {
+    private final FrameCompressor compressor;
+    private final ExecutorService executor;
+    private final Deque<Future<byte[]>> pendingFrames = new ArrayDeque<>();
+    private final int maxPendingFrames;
+    private final int blockSize;
+    private final AtomicLong compressionTime = new AtomicLong();
+    private byte[] block;
+    private int blockLength;
+    private int frameCount;
+    private boolean closed;
+
+    /**
+     * @param minBlockSize minimum size of input blocks: larger blocks give better compression ratios
+     * @param compressor   compressor writing a frame from an input block
+     */
+    ParallelFrameOutputStream(OutputStream out, CompressionOptions options, int minBlockSize,
+                              FrameCompressor compressor) {
+        super(out);
+        this.compressor = compressor;
+        this.blockSize = Math.max(minBlockSize, options.getBlockSize());
+        this.maxPendingFrames = options.getThreads() * 2;
+        this.executor = Executors.newFixedThreadPool(options.getThreads());
+        block = new byte[blockSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        while (len > 0) {
+            final int count = Math.min(len, blockSize - blockLength);
+            System.arraycopy(b, off, block, blockLength, count);
+            blockLength += count;
+            off += count;
+            len -= count;
+            if (blockLength == blockSize) {
+                submitBlock();
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            // An empty stream is written as a single empty frame.
+            if (blockLength != 0 || frameCount == 0) {
+                submitBlock();
+            }
+            while (!pendingFrames.isEmpty()) {
+                writeNextFrame();
+            }
+        } finally {
+            executor.shutdownNow();
+            out.close();
+        }
+    }
+
+    /**
+     * Get the time spent compressing blocks, summed over all threads (in nanoseconds).
+     */
+    long getCompressionTime() {
+        return compressionTime.get();
+    }
+
+    private void submitBlock() throws IOException {
+        final byte[] input = block;
+        final int inputLength = blockLength;
+        block = new byte[blockSize];
+        blockLength = 0;
+        ++frameCount;
+        pendingFrames.add(executor.submit(() -> {
+            final long start = System.nanoTime();
+            try {
+                return compressor.compress(input, inputLength);
+            } finally {
+                compressionTime.addAndGet(System.nanoTime() - start);
+            }
+        }));
+        while (pendingFrames.size() > maxPendingFrames) {
+            writeNextFrame();
+        }
+    }
+
+    private void writeNextFrame() throws IOException {
+        try {
+            out.write(pendingFrames.removeFirst().get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Compression interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("Compression failed", e.getCause());
+        }
+    }
+
+    /**
+     * Compressor writing a complete frame from an input block.
+     */
+    interface FrameCompressor {
+        byte[] compress(byte[] input, int length) throws IOException;
+    }
+}
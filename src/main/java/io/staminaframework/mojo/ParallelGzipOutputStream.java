@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.staminaframework.mojo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip output stream compressing data blocks in parallel.
+ * <p>
+ * Input data is split into blocks, which are compressed concurrently as raw deflate
+ * streams. Each block is primed with the last 32 KB of the previous block, and ends
+ * with a sync flush: compressed blocks are then concatenated in order into a single
+ * standard gzip member, which can be read by any gzip decoder.
+ *
+ * @author Stamina Framework developers
+ */
+final class ParallelGzipOutputStream extends FilterOutputStream {
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final int GZIP_MAGIC = 0x8b1f;
+
+    private final ExecutorService executor;
+    private final Deque<Future<byte[]>> pendingBlocks = new ArrayDeque<>();
+    private final int maxPendingBlocks;
+    private final int blockSize;
+    private final int level;
+    private final CRC32 crc = new CRC32();
+    private final AtomicLong compressionTime = new AtomicLong();
+    private long totalIn;
+    private byte[] block;
+    private int blockLength;
+    private byte[] dictionary;
+    private boolean closed;
+
+    ParallelGzipOutputStream(OutputStream out, CompressionOptions options) throws IOException {
+        super(out);
+        this.blockSize = Math.max(DICTIONARY_SIZE, options.getBlockSize());
+        this.level = options.getLevel();
+        this.maxPendingBlocks = options.getThreads() * 2;
+        this.executor = Executors.newFixedThreadPool(options.getThreads());
+        block = new byte[blockSize];
+        writeHeader();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        crc.update(b, off, len);
+        totalIn += len;
+        while (len > 0) {
+            final int count = Math.min(len, blockSize - blockLength);
+            System.arraycopy(b, off, block, blockLength, count);
+            blockLength += count;
+            off += count;
+            len -= count;
+            if (blockLength == blockSize) {
+                submitBlock(false);
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            submitBlock(true);
+            while (!pendingBlocks.isEmpty()) {
+                writeNextBlock();
+            }
+            writeTrailer();
+        } finally {
+            executor.shutdownNow();
+            out.close();
+        }
+    }
+
+    private void submitBlock(boolean last) throws IOException {
+        final byte[] input = block;
+        final int inputLength = blockLength;
+        final byte[] dict = dictionary;
+        if (!last) {
+            dictionary = Arrays.copyOfRange(input, inputLength - DICTIONARY_SIZE, inputLength);
+            block = new byte[blockSize];
+            blockLength = 0;
+        }
+        pendingBlocks.add(executor.submit(() -> deflate(input, inputLength, dict, last)));
+        while (pendingBlocks.size() > maxPendingBlocks) {
+            writeNextBlock();
+        }
+    }
+
+    private void writeNextBlock() throws IOException {
+        try {
+            out.write(pendingBlocks.removeFirst().get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Compression interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("Compression failed", e.getCause());
+        }
+    }
+
+    /**
+     * Get the time spent compressing blocks, summed over all threads (in nanoseconds).
+     */
+    long getCompressionTime() {
+        return compressionTime.get();
+    }
+
+    private byte[] deflate(byte[] input, int length, byte[] dict, boolean last) {
+        final long start = System.nanoTime();
+        final Deflater deflater = new Deflater(level, true);
+        try {
+            if (dict != null) {
+                deflater.setDictionary(dict);
+            }
+            deflater.setInput(input, 0, length);
+            final ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+            final byte[] buf = new byte[64 * 1024];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    compressed.write(buf, 0, deflater.deflate(buf));
+                }
+            } else {
+                // Sync flush: the compressed block ends on a byte boundary.
+                int count;
+                do {
+                    count = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+                    compressed.write(buf, 0, count);
+                } while (count == buf.length);
+            }
+            return compressed.toByteArray();
+        } finally {
+            deflater.end();
+            compressionTime.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        out.write(new byte[]{
+                (byte) GZIP_MAGIC, (byte) (GZIP_MAGIC >> 8),
+                Deflater.DEFLATED, 0,
+                0, 0, 0, 0,
+                0, (byte) 0xff
+        });
+    }
+
+    private void writeTrailer() throws IOException {
+        final byte[] trailer = new byte[8];
+        writeInt(trailer, 0, crc.getValue());
+        writeInt(trailer, 4, totalIn);
+        out.write(trailer);
+    }
+
+    private static void writeInt(byte[] buf, int off, long value) {
+        buf[off] = (byte) value;
+        buf[off + 1] = (byte) (value >> 8);
+        buf[off + 2] = (byte) (value >> 16);
+        buf[off + 3] = (byte) (value >> 24);
+    }
+}
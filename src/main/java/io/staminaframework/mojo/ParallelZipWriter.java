@@ -0,0 +1,345 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.staminaframework.mojo;
+
+import org.apache.commons.compress.archivers.zip.UnixStat;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.utils.IOUtils;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Write a zip archive, compressing entries in parallel.
+ * Entries are stored or deflated according to {@link CompressionOptions#getPolicy()}.
+ * When reproducible output is enabled, added entries get the output timestamp
+ * instead of file times.
+ * <p>
+ * Each file entry is compressed by a worker thread into a {@link ScatterBuffer}.
+ * Compressed entries are then merged into the archive in the order they were added,
+ * without being compressed again. Memory use is bounded: at most two entries per
+ * thread are pending, and each pending entry keeps at most
+ * {@link CompressionOptions#getScatterBufferSize()} bytes in memory.
+ *
+ * @author Stamina Framework developers
+ */
+final class ParallelZipWriter implements Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ZipArchiveOutputStream out;
+    private final CompressionOptions options;
+    private final ExecutorService executor;
+    private final Deque<PendingEntry> pendingEntries = new ArrayDeque<>();
+    private final int maxPendingEntries;
+    private final AtomicLong compressionTime = new AtomicLong();
+    private int entryCount;
+    private long bytesIn;
+    private boolean closed;
+
+    ParallelZipWriter(File destFile, CompressionOptions options) throws IOException {
+        this.out = new ZipArchiveOutputStream(destFile);
+        this.options = options;
+        out.setLevel(options.getLevel());
+        if (options.isParallel()) {
+            executor = Executors.newFixedThreadPool(options.getThreads());
+            maxPendingEntries = options.getThreads() * 2;
+        } else {
+            executor = null;
+            maxPendingEntries = 0;
+        }
+    }
+
+    /**
+     * Add an entry with data which is already compressed.
+     */
+    void addRawEntry(ZipArchiveEntry entry, InputStream rawData) throws IOException {
+        ++entryCount;
+        bytesIn += Math.max(0, entry.getSize());
+        writePendingEntries(0);
+        out.addRawArchiveEntry(entry, rawData);
+    }
+
+    /**
+     * Copy an entry from another zip file.
+     * Entry data is copied as is, unless the compression policy requires another
+     * compression method for this entry.
+     */
+    void copyEntry(ZipFile source, ZipArchiveEntry sourceEntry, ZipArchiveEntry entry) throws IOException {
+        final int method = options.getPolicy().getMethod(entry.getName());
+        if (sourceEntry.isDirectory() || sourceEntry.getMethod() == method || !source.canReadEntryData(sourceEntry)) {
+            try (final InputStream in = source.getRawInputStream(sourceEntry)) {
+                addRawEntry(entry, in);
+            }
+            return;
+        }
+        ++entryCount;
+        bytesIn += Math.max(0, sourceEntry.getSize());
+        writePendingEntries(0);
+        final long start = System.nanoTime();
+        // Sizes and CRC are updated when the entry is closed.
+        entry.setMethod(method);
+        out.setLevel(options.getPolicy().getLevel(entry.getName()));
+        out.putArchiveEntry(entry);
+        try (final InputStream in = source.getInputStream(sourceEntry)) {
+            IOUtils.copy(in, out, BUFFER_SIZE);
+        }
+        out.closeArchiveEntry();
+        compressionTime.addAndGet(System.nanoTime() - start);
+    }
+
+    /**
+     * Copy a file entry from another zip file, with the same attributes as an entry added from a file.
+     */
+    void copyFile(ZipEntrySource source, String name) throws IOException {
+        final ZipArchiveEntry entry = new ZipArchiveEntry(name);
+        entry.setMethod(source.entry.getMethod());
+        entry.setCrc(source.entry.getCrc());
+        entry.setSize(source.entry.getSize());
+        entry.setCompressedSize(source.entry.getCompressedSize());
+        entry.setTime(toEntryTime(source.entry.getTime()));
+        entry.setUnixMode(UnixStat.FILE_FLAG | UnixStat.DEFAULT_FILE_PERM);
+        copyEntry(source.zip, source.entry, entry);
+    }
+
+    /**
+     * Add a directory entry.
+     */
+    void addDirectory(String name, long time) throws IOException {
+        ++entryCount;
+        writePendingEntries(0);
+        final ZipArchiveEntry entry = new ZipArchiveEntry(name.endsWith("/") ? name : name + "/");
+        entry.setTime(toEntryTime(time));
+        entry.setUnixMode(UnixStat.DIR_FLAG | UnixStat.DEFAULT_DIR_PERM);
+        entry.setMethod(ZipArchiveEntry.STORED);
+        entry.setSize(0);
+        entry.setCrc(0);
+        out.putArchiveEntry(entry);
+        out.closeArchiveEntry();
+    }
+
+    /**
+     * Add a file entry, with default permissions.
+     */
+    void addFile(File file, String name) throws IOException {
+        addFile(file, name, UnixStat.DEFAULT_FILE_PERM);
+    }
+
+    /**
+     * Add a file entry.
+     *
+     * @param mode Unix permissions of the file entry
+     */
+    void addFile(File file, String name, int mode) throws IOException {
+        final int method = options.getPolicy().getMethod(name);
+        final int level = options.getPolicy().getLevel(name);
+        final ZipArchiveEntry entry = new ZipArchiveEntry(name);
+        entry.setMethod(method);
+        entry.setTime(toEntryTime(file.lastModified()));
+        entry.setUnixMode(UnixStat.FILE_FLAG | mode);
+        ++entryCount;
+        bytesIn += file.length();
+
+        if (executor == null) {
+            final long start = System.nanoTime();
+            // Known size: archive is the same as when entries are compressed in parallel.
+            entry.setSize(file.length());
+            out.setLevel(level);
+            out.putArchiveEntry(entry);
+            try (final InputStream in = new FileInputStream(file)) {
+                IOUtils.copy(in, out, BUFFER_SIZE);
+            }
+            out.closeArchiveEntry();
+            compressionTime.addAndGet(System.nanoTime() - start);
+            return;
+        }
+        final Future<CompressedData> data = method == ZipArchiveEntry.STORED
+                ? executor.submit(() -> checksum(file)) : executor.submit(() -> compress(file, level));
+        pendingEntries.add(new PendingEntry(entry, data));
+        writePendingEntries(maxPendingEntries);
+    }
+
+    int getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * Get the uncompressed size of all entries.
+     */
+    long getBytesIn() {
+        return bytesIn;
+    }
+
+    /**
+     * Get the time spent compressing entries, summed over all threads (in nanoseconds).
+     */
+    long getCompressionTime() {
+        return compressionTime.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            writePendingEntries(0);
+            out.close();
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+                for (final PendingEntry pending : pendingEntries) {
+                    pending.discard();
+                }
+            }
+        }
+    }
+
+    private long toEntryTime(long fileTime) {
+        return options.isReproducible() ? OutputTimestamp.toZipTime(options.getOutputTimestamp()) : fileTime;
+    }
+
+    private void writePendingEntries(int maxPending) throws IOException {
+        while (pendingEntries.size() > maxPending) {
+            final PendingEntry pending = pendingEntries.removeFirst();
+            final CompressedData data = pending.get();
+            try {
+                final ZipArchiveEntry entry = pending.entry;
+                entry.setCrc(data.crc);
+                entry.setSize(data.size);
+                if (data.buffer == null) {
+                    // Stored entry: data is copied from source file.
+                    entry.setCompressedSize(data.size);
+                    try (final InputStream in = new FileInputStream(data.storedFile)) {
+                        out.addRawArchiveEntry(entry, in);
+                    }
+                } else {
+                    entry.setCompressedSize(data.buffer.getSize());
+                    try (final InputStream in = data.buffer.getInputStream()) {
+                        out.addRawArchiveEntry(entry, in);
+                    }
+                }
+            } finally {
+                data.delete();
+            }
+        }
+    }
+
+    private CompressedData checksum(File file) throws IOException {
+        final long start = System.nanoTime();
+        final CRC32 crc = new CRC32();
+        long size = 0;
+        try (final InputStream in = new FileInputStream(file)) {
+            final byte[] buf = new byte[BUFFER_SIZE];
+            for (int bytesRead; (bytesRead = in.read(buf)) != -1; ) {
+                crc.update(buf, 0, bytesRead);
+                size += bytesRead;
+            }
+        }
+        compressionTime.addAndGet(System.nanoTime() - start);
+        return new CompressedData(null, file, crc.getValue(), size);
+    }
+
+    private CompressedData compress(File file, int level) throws IOException {
+        final long start = System.nanoTime();
+        final ScatterBuffer buffer = new ScatterBuffer(options.getScatterBufferSize());
+        final Deflater deflater = new Deflater(level, true);
+        final CRC32 crc = new CRC32();
+        long size = 0;
+        try (final InputStream in = new FileInputStream(file)) {
+            final byte[] inBuf = new byte[BUFFER_SIZE];
+            final byte[] outBuf = new byte[BUFFER_SIZE];
+            for (int bytesRead; (bytesRead = in.read(inBuf)) != -1; ) {
+                crc.update(inBuf, 0, bytesRead);
+                size += bytesRead;
+                deflater.setInput(inBuf, 0, bytesRead);
+                while (!deflater.needsInput()) {
+                    buffer.write(outBuf, 0, deflater.deflate(outBuf));
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                buffer.write(outBuf, 0, deflater.deflate(outBuf));
+            }
+            buffer.close();
+        } catch (IOException e) {
+            buffer.delete();
+            throw e;
+        } finally {
+            deflater.end();
+            compressionTime.addAndGet(System.nanoTime() - start);
+        }
+        return new CompressedData(buffer, null, crc.getValue(), size);
+    }
+
+    private static final class CompressedData {
+        final ScatterBuffer buffer;
+        final File storedFile;
+        final long crc;
+        final long size;
+
+        CompressedData(ScatterBuffer buffer, File storedFile, long crc, long size) {
+            this.buffer = buffer;
+            this.storedFile = storedFile;
+            this.crc = crc;
+            this.size = size;
+        }
+
+        void delete() throws IOException {
+            if (buffer != null) {
+                buffer.delete();
+            }
+        }
+    }
+
+    private static final class PendingEntry {
+        final ZipArchiveEntry entry;
+        final Future<CompressedData> data;
+
+        PendingEntry(ZipArchiveEntry entry, Future<CompressedData> data) {
+            this.entry = entry;
+            this.data = data;
+        }
+
+        CompressedData get() throws IOException {
+            try {
+                return data.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Compression interrupted");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("Compression failed", e.getCause());
+            }
+        }
+
+        void discard() {
+            try {
+                data.get().delete();
+            } catch (Exception ignore) {
+            }
+        }
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.mojo;
+
+import aQute.bnd.version.Version;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * LDAP-style filter (RFC 1960), as used by OSGi requirements.
+ * Filters are matched against capability attributes: attribute values may be
+ * strings, {@link Version}s, {@link Long}s, {@link Double}s or lists of these values.
+ *
+ * @author Stamina Framework developers
+ */
+final class RequirementFilter {
+    private static final int EQUAL = 0;
+    private static final int APPROX = 1;
+    private static final int GREATER = 2;
+    private static final int LESS = 3;
+    private static final int PRESENT = 4;
+    private static final int SUBSTRING = 5;
+    private static final int AND = 6;
+    private static final int OR = 7;
+    private static final int NOT = 8;
+
+    private final int op;
+    private final String attribute;
+    private final String value;
+    private final List<String> substrings;
+    private final List<RequirementFilter> children;
+
+    private RequirementFilter(int op, String attribute, String value,
+                              List<String> substrings, List<RequirementFilter> children) {
+        this.op = op;
+        this.attribute = attribute;
+        this.value = value;
+        this.substrings = substrings;
+        this.children = children;
+    }
+
+    /**
+     * Parse a filter.
+     *
+     * @throws IllegalArgumentException if this filter is invalid
+     */
+    static RequirementFilter parse(String filter) {
+        final Parser parser = new Parser(filter.trim());
+        final RequirementFilter result = parser.parseFilter();
+        if (parser.pos != parser.str.length()) {
+            throw new IllegalArgumentException("Invalid filter: " + filter);
+        }
+        return result;
+    }
+
+    /**
+     * Check if capability attributes match this filter.
+     */
+    boolean matches(Map<String, Object> attributes) {
+        switch (op) {
+            case AND:
+                for (final RequirementFilter child : children) {
+                    if (!child.matches(attributes)) {
+                        return false;
+                    }
+                }
+                return true;
+            case OR:
+                for (final RequirementFilter child : children) {
+                    if (child.matches(attributes)) {
+                        return true;
+                    }
+                }
+                return false;
+            case NOT:
+                return !children.get(0).matches(attributes);
+            case PRESENT:
+                return attributes.containsKey(attribute);
+            default:
+                return matchesValue(attributes.get(attribute));
+        }
+    }
+
+    private boolean matchesValue(Object attrValue) {
+        if (attrValue == null) {
+            return false;
+        }
+        if (attrValue instanceof Collection) {
+            for (final Object item : (Collection<?>) attrValue) {
+                if (matchesValue(item)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (op == SUBSTRING) {
+            return matchesSubstring(attrValue.toString());
+        }
+        final int cmp;
+        try {
+            if (attrValue instanceof Version) {
+                cmp = ((Version) attrValue).compareTo(Version.parseVersion(value.trim()));
+            } else if (attrValue instanceof Long) {
+                cmp = ((Long) attrValue).compareTo(Long.valueOf(value.trim()));
+            } else if (attrValue instanceof Double) {
+                cmp = ((Double) attrValue).compareTo(Double.valueOf(value.trim()));
+            } else if (op == APPROX) {
+                cmp = normalize(attrValue.toString()).compareTo(normalize(value));
+            } else {
+                cmp = attrValue.toString().compareTo(value);
+            }
+        } catch (IllegalArgumentException e) {
+            // Filter value cannot be converted to attribute type.
+            return false;
+        }
+        switch (op) {
+            case GREATER:
+                return cmp >= 0;
+            case LESS:
+                return cmp <= 0;
+            default:
+                return cmp == 0;
+        }
+    }
+
+    private boolean matchesSubstring(String str) {
+        // Substrings are separated by wildcards.
+        final String first = substrings.get(0);
+        if (!str.startsWith(first)) {
+            return false;
+        }
+        int pos = first.length();
+        for (int i = 1; i < substrings.size() - 1; ++i) {
+            final int index = str.indexOf(substrings.get(i), pos);
+            if (index == -1) {
+                return false;
+            }
+            pos = index + substrings.get(i).length();
+        }
+        final String last = substrings.get(substrings.size() - 1);
+        return str.length() - pos >= last.length() && str.endsWith(last);
+    }
+
+    private static String normalize(String str) {
+        return str.replaceAll("\\s+", "").toLowerCase();
+    }
+
+    @Override
+    public String toString() {
+        switch (op) {
+            case AND:
+            case OR:
+                final StringBuilder buf = new StringBuilder(op == AND ? "(&" : "(|");
+                for (final RequirementFilter child : children) {
+                    buf.append(child);
+                }
+                return buf.append(")").toString();
+            case NOT:
+                return "(!" + children.get(0) + ")";
+            case PRESENT:
+                return "(" + attribute + "=*)";
+            case APPROX:
+                return "(" + attribute + "~=" + escape(value) + ")";
+            case GREATER:
+                return "(" + attribute + ">=" + escape(value) + ")";
+            case LESS:
+                return "(" + attribute + "<=" + escape(value) + ")";
+            case SUBSTRING:
+                final StringBuilder sub = new StringBuilder("(").append(attribute).append("=");
+                for (int i = 0; i < substrings.size(); ++i) {
+                    if (i != 0) {
+                        sub.append('*');
+                    }
+                    sub.append(escape(substrings.get(i)));
+                }
+                return sub.append(")").toString();
+            default:
+                return "(" + attribute + "=" + escape(value) + ")";
+        }
+    }
+
+    private static String escape(String value) {
+        final StringBuilder buf = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); ++i) {
+            final char c = value.charAt(i);
+            if (c == '\\' || c == '*' || c == '(' || c == ')') {
+                buf.append('\\');
+            }
+            buf.append(c);
+        }
+        return buf.toString();
+    }
+
+    private static final class Parser {
+        final String str;
+        int pos;
+
+        Parser(String str) {
+            this.str = str;
+        }
+
+        RequirementFilter parseFilter() {
+            expect('(');
+            final RequirementFilter filter;
+            switch (peek()) {
+                case '&':
+                    ++pos;
+                    filter = new RequirementFilter(AND, null, null, null, parseFilterList());
+                    break;
+                case '|':
+                    ++pos;
+                    filter = new RequirementFilter(OR, null, null, null, parseFilterList());
+                    break;
+                case '!':
+                    ++pos;
+                    final List<RequirementFilter> child = new ArrayList<>(1);
+                    child.add(parseFilter());
+                    filter = new RequirementFilter(NOT, null, null, null, child);
+                    break;
+                default:
+                    filter = parseItem();
+            }
+            expect(')');
+            return filter;
+        }
+
+        List<RequirementFilter> parseFilterList() {
+            final List<RequirementFilter> filters = new ArrayList<>(4);
+            while (peek() == '(') {
+                filters.add(parseFilter());
+            }
+            return filters;
+        }
+
+        RequirementFilter parseItem() {
+            final int start = pos;
+            while (pos < str.length() && "=<>~()".indexOf(str.charAt(pos)) == -1) {
+                ++pos;
+            }
+            final String attr = str.substring(start, pos).trim();
+            if (attr.isEmpty() || pos >= str.length()) {
+                throw new IllegalArgumentException("Invalid filter: " + str);
+            }
+            final int op;
+            final char c = str.charAt(pos);
+            if (c == '=') {
+                op = EQUAL;
+                ++pos;
+            } else if (c == '~' || c == '>' || c == '<') {
+                op = c == '~' ? APPROX : (c == '>' ? GREATER : LESS);
+                ++pos;
+                expect('=');
+            } else {
+                throw new IllegalArgumentException("Invalid filter: " + str);
+            }
+
+            // Value is split on unescaped wildcards.
+            final List<String> parts = new ArrayList<>(1);
+            final StringBuilder val = new StringBuilder();
+            final StringBuilder part = new StringBuilder();
+            while (pos < str.length() && str.charAt(pos) != ')') {
+                char v = str.charAt(pos++);
+                if (v == '\\' && pos < str.length()) {
+                    v = str.charAt(pos++);
+                } else if (v == '*') {
+                    parts.add(part.toString());
+                    part.setLength(0);
+                    val.append(v);
+                    continue;
+                }
+                part.append(v);
+                val.append(v);
+            }
+            parts.add(part.toString());
+            if (op == EQUAL && parts.size() > 1) {
+                if (parts.size() == 2 && parts.get(0).isEmpty() && parts.get(1).isEmpty()) {
+                    return new RequirementFilter(PRESENT, attr, null, null, null);
+                }
+                return new RequirementFilter(SUBSTRING, attr, val.toString(), parts, null);
+            }
+            return new RequirementFilter(op, attr, val.toString(), null, null);
+        }
+
+        char peek() {
+            while (pos < str.length() && Character.isWhitespace(str.charAt(pos))) {
+                ++pos;
+            }
+            if (pos >= str.length()) {
+                throw new IllegalArgumentException("Invalid filter: " + str);
+            }
+            return str.charAt(pos);
+        }
+
+        void expect(char c) {
+            if (peek() != c) {
+                throw new IllegalArgumentException("Invalid filter: " + str);
+            }
+            ++pos;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.staminaframework.mojo;
+
+import java.io.*;
+import java.nio.file.Files;
+
+/**
+ * Buffer holding compressed data until it is merged into an archive.
+ * Data is kept in memory until a size threshold is reached:
+ * data is then written to a temporary file.
+ *
+ * @author Stamina Framework developers
+ */
+final class ScatterBuffer extends OutputStream {
+    private final int threshold;
+    private ByteArrayOutputStream memoryOut;
+    private File file;
+    private OutputStream fileOut;
+    private long size;
+
+    ScatterBuffer(int threshold) {
+        this.threshold = threshold;
+        memoryOut = new ByteArrayOutputStream(Math.min(threshold, 64 * 1024));
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (fileOut == null && size + len > threshold) {
+            file = File.createTempFile("stamina-", ".scatter");
+            fileOut = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+            memoryOut.writeTo(fileOut);
+            memoryOut = null;
+        }
+        if (fileOut != null) {
+            fileOut.write(b, off, len);
+        } else {
+            memoryOut.write(b, off, len);
+        }
+        size += len;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (fileOut != null) {
+            fileOut.close();
+        }
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    /**
+     * Get buffered data. This buffer must be closed first.
+     */
+    InputStream getInputStream() throws IOException {
+        if (file != null) {
+            return new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+        }
+        return new ByteArrayInputStream(memoryOut.toByteArray());
+    }
+
+    /**
+     * Release resources used by this buffer.
+     */
+    void delete() throws IOException {
+        close();
+        memoryOut = null;
+        if (file != null) {
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+}
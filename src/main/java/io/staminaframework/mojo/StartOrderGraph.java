@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.mojo;
+
+import java.util.*;
+
+/**
+ * Wiring graph between addon content resources, used to compute start orders.
+ * A resource depends on every other resource providing a capability it requires:
+ * resources are layered so that a resource starts after all its dependencies,
+ * and resources in the same layer share the same start order.
+ * <p>
+ * Fragments are merged with their host. Resources in a dependency cycle share the same start order.
+ *
+ * @author Stamina Framework developers
+ */
+final class StartOrderGraph {
+    private final List<BundleResource> resources;
+    private final int[] nodes;
+    private final List<Set<Integer>> dependencies;
+    private final int[] startOrders;
+    private final List<List<BundleResource>> cycles = new ArrayList<>();
+    private int levelCount;
+
+    // Tarjan algorithm state.
+    private final int[] index;
+    private final int[] lowLink;
+    private final boolean[] onStack;
+    private final Deque<Integer> stack = new ArrayDeque<>();
+    private int nextIndex;
+
+    /**
+     * @param resources addon content resources (<code>null</code> for resources
+     *                  without known requirements, such as subsystems)
+     */
+    StartOrderGraph(List<BundleResource> resources) {
+        this.resources = resources;
+        final int count = resources.size();
+        nodes = new int[count];
+        dependencies = new ArrayList<>(count);
+        startOrders = new int[count];
+        index = new int[count];
+        lowLink = new int[count];
+        onStack = new boolean[count];
+        for (int i = 0; i < count; ++i) {
+            nodes[i] = findHost(i);
+            dependencies.add(new HashSet<>());
+        }
+        for (int i = 0; i < count; ++i) {
+            final BundleResource res = resources.get(i);
+            if (res == null) {
+                continue;
+            }
+            for (final BundleResource.Requirement req : res.getRequirements()) {
+                if (BundleResource.HOST_NAMESPACE.equals(req.namespace)) {
+                    continue;
+                }
+                for (int j = 0; j < count; ++j) {
+                    final BundleResource provider = resources.get(j);
+                    if (nodes[j] != nodes[i] && provider != null && provider.provides(req)) {
+                        dependencies.get(nodes[i]).add(nodes[j]);
+                    }
+                }
+            }
+        }
+
+        Arrays.fill(index, -1);
+        for (int i = 0; i < count; ++i) {
+            if (nodes[i] == i && index[i] == -1) {
+                connect(i);
+            }
+        }
+        for (int i = 0; i < count; ++i) {
+            startOrders[i] = startOrders[nodes[i]];
+        }
+    }
+
+    /**
+     * Get the start order of a resource, starting from 1.
+     */
+    int getStartOrder(int resourceIndex) {
+        return startOrders[resourceIndex];
+    }
+
+    int getLevelCount() {
+        return levelCount;
+    }
+
+    /**
+     * Get resources involved in dependency cycles.
+     */
+    List<List<BundleResource>> getCycles() {
+        return cycles;
+    }
+
+    private int findHost(int fragmentIndex) {
+        final BundleResource fragment = resources.get(fragmentIndex);
+        if (fragment == null || !BundleResource.TYPE_FRAGMENT.equals(fragment.getType())) {
+            return fragmentIndex;
+        }
+        for (final BundleResource.Requirement req : fragment.getRequirements()) {
+            if (!BundleResource.HOST_NAMESPACE.equals(req.namespace)) {
+                continue;
+            }
+            for (int i = 0; i < resources.size(); ++i) {
+                final BundleResource host = resources.get(i);
+                if (i != fragmentIndex && host != null && host.provides(req)) {
+                    return i;
+                }
+            }
+        }
+        // Host is not part of addon content.
+        return fragmentIndex;
+    }
+
+    /**
+     * Visit a node, using Tarjan algorithm for strongly connected components.
+     * Components are completed in reverse topological order: all dependencies of a component
+     * have their start order set when this component is completed.
+     */
+    private void connect(int node) {
+        index[node] = nextIndex;
+        lowLink[node] = nextIndex;
+        ++nextIndex;
+        stack.push(node);
+        onStack[node] = true;
+        for (final int dep : dependencies.get(node)) {
+            if (index[dep] == -1) {
+                connect(dep);
+                lowLink[node] = Math.min(lowLink[node], lowLink[dep]);
+            } else if (onStack[dep]) {
+                lowLink[node] = Math.min(lowLink[node], index[dep]);
+            }
+        }
+        if (lowLink[node] != index[node]) {
+            return;
+        }
+
+        final List<Integer> component = new ArrayList<>();
+        int member;
+        do {
+            member = stack.pop();
+            onStack[member] = false;
+            component.add(member);
+        } while (member != node);
+
+        int level = 1;
+        for (final int n : component) {
+            for (final int dep : dependencies.get(n)) {
+                if (!component.contains(dep)) {
+                    level = Math.max(level, startOrders[dep] + 1);
+                }
+            }
+        }
+        for (final int n : component) {
+            startOrders[n] = level;
+        }
+        levelCount = Math.max(levelCount, level);
+        if (component.size() > 1) {
+            final List<BundleResource> cycle = new ArrayList<>(component.size());
+            for (final int n : component) {
+                cycle.add(resources.get(n));
+            }
+            cycles.add(cycle);
+        }
+    }
+}
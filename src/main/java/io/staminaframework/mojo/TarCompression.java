@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.mojo;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZOutputStream;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compression formats of tar archives: gzip, xz and zstd.
+ * Archives are read according to their file extension.
+ * <p>
+ * xz and zstd archives are written as concatenated frames, compressed in parallel:
+ * xz and zstd decoders read them as a single stream.
+ *
+ * @author Stamina Framework developers
+ */
+final class TarCompression {
+    static final String GZIP = "tar.gz";
+    static final String XZ = "tar.xz";
+    static final String ZSTD = "tar.zst";
+    static final List<String> FORMATS = Arrays.asList(GZIP, XZ, ZSTD);
+
+    /**
+     * Minimum size of blocks compressed as independent frames: blocks must be large enough
+     * to keep most of the compression ratio.
+     */
+    private static final int MIN_FRAME_BLOCK_SIZE = 4 * 1024 * 1024;
+    private static final int XZ_DEFAULT_LEVEL = 6;
+    private static final int ZSTD_DEFAULT_LEVEL = 3;
+    private static final int ZSTD_MAX_LEVEL = 22;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private TarCompression() {
+    }
+
+    /**
+     * Get the tar compression format of an archive file.
+     *
+     * @return <code>null</code> if this file is not a tar archive
+     */
+    static String getFormat(String fileName) {
+        for (final String format : FORMATS) {
+            if (fileName.endsWith("." + format)) {
+                return format;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Check a compression level for a tar compression format.
+     *
+     * @throws IllegalArgumentException if this level is not supported
+     */
+    static void checkLevel(String format, int level) {
+        final int maxLevel = ZSTD.equals(format) ? ZSTD_MAX_LEVEL : 9;
+        if (level < -1 || level > maxLevel) {
+            throw new IllegalArgumentException("Invalid compression level for " + format + ": " + level
+                    + " (supported levels: 0 to " + maxLevel + ", -1: default level)");
+        }
+    }
+
+    /**
+     * Open a tar archive, decompressing it according to its file extension.
+     */
+    static InputStream newInputStream(File file) throws IOException {
+        final String format = getFormat(file.getName());
+        if (format == null) {
+            throw new IOException("Unsupported tar archive: " + file);
+        }
+        final InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+        try {
+            if (XZ.equals(format)) {
+                return new XZCompressorInputStream(in, true);
+            } else if (ZSTD.equals(format)) {
+                return new BufferedInputStream(new ZstdInputStream(in), BUFFER_SIZE);
+            }
+            return new GzipCompressorInputStream(in, true);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Create a stream compressing data in parallel with xz or zstd.
+     */
+    static ParallelFrameOutputStream newFrameOutputStream(OutputStream out, String format,
+                                                          CompressionOptions options) {
+        final int level = options.getLevel();
+        if (XZ.equals(format)) {
+            return new ParallelFrameOutputStream(out, options, MIN_FRAME_BLOCK_SIZE,
+                    (input, length) -> xz(input, length, level == -1 ? XZ_DEFAULT_LEVEL : level));
+        } else if (ZSTD.equals(format)) {
+            return new ParallelFrameOutputStream(out, options, MIN_FRAME_BLOCK_SIZE,
+                    (input, length) -> Zstd.compress(length == input.length ? input : Arrays.copyOf(input, length),
+                            level == -1 ? ZSTD_DEFAULT_LEVEL : level));
+        }
+        throw new IllegalArgumentException("Unsupported compression format: " + format);
+    }
+
+    private static byte[] xz(byte[] input, int length, int level) throws IOException {
+        final LZMA2Options lzmaOptions = new LZMA2Options(level);
+        // A dictionary larger than the input block only uses more memory.
+        lzmaOptions.setDictSize(Math.max(LZMA2Options.DICT_SIZE_MIN, Math.min(lzmaOptions.getDictSize(), length)));
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 4 + 64);
+        try (final XZOutputStream out = new XZOutputStream(compressed, lzmaOptions)) {
+            out.write(input, 0, length);
+        }
+        return compressed.toByteArray();
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.staminaframework.mojo;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipParameters;
+import org.apache.commons.compress.utils.IOUtils;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Write a tar distribution archive, compressed with gzip, xz or zstd
+ * (see {@link TarCompression}).
+ * Template entries are read from the template stream and directly written to the
+ * distribution stream, which is compressed using several threads if enabled.
+ * When reproducible output is enabled, entries get the output timestamp, normalized
+ * permissions and no owner.
+ *
+ * @author Stamina Framework developers
+ */
+final class TarDistributionWriter extends DistributionWriter {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private final TarArchiveOutputStream out;
+    private final CompressionOptions compression;
+    private final ParallelGzipOutputStream parallelOut;
+    private final ParallelFrameOutputStream frameOut;
+    private final TimedOutputStream timedOut;
+    private int entryCount;
+    private long bytesIn;
+    private boolean closed;
+
+    /**
+     * @param format tar compression format (see {@link TarCompression#FORMATS})
+     */
+    TarDistributionWriter(File destFile, String format, CompressionOptions compression) throws IOException {
+        this.compression = compression;
+        TarCompression.checkLevel(format, compression.getLevel());
+        final OutputStream fileOut = new BufferedOutputStream(new FileOutputStream(destFile), BUFFER_SIZE);
+        final OutputStream compressedOut;
+        if (!TarCompression.GZIP.equals(format)) {
+            frameOut = TarCompression.newFrameOutputStream(fileOut, format, compression);
+            parallelOut = null;
+            timedOut = null;
+            compressedOut = frameOut;
+        } else if (compression.isParallel() || compression.isReproducible()) {
+            // Output of the parallel gzip stream does not depend on the number of threads:
+            // it is always used for reproducible output.
+            parallelOut = new ParallelGzipOutputStream(fileOut, compression);
+            frameOut = null;
+            timedOut = null;
+            compressedOut = parallelOut;
+        } else {
+            final GzipParameters gzipParams = new GzipParameters();
+            gzipParams.setCompressionLevel(compression.getLevel());
+            parallelOut = null;
+            frameOut = null;
+            timedOut = new TimedOutputStream(new GzipCompressorOutputStream(fileOut, gzipParams));
+            compressedOut = timedOut;
+        }
+        out = new TarArchiveOutputStream(compressedOut);
+        out.setLongFileMode(TarArchiveOutputStream.LONGFILE_GNU);
+        out.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+    }
+
+    @Override
+    List<String> copyTemplate(File templateFile, String templateRoot, String root) throws IOException {
+        final List<String> entryNames = new ArrayList<>(64);
+        try (final TarArchiveInputStream in = new TarArchiveInputStream(TarCompression.newInputStream(templateFile))) {
+            for (TarArchiveEntry entry; (entry = in.getNextTarEntry()) != null; ) {
+                final String name = toEntryName(entry.getName(), templateRoot, root);
+                final boolean link = entry.isSymbolicLink() || entry.isLink();
+                final boolean regularFile = !link && !entry.isDirectory();
+                final TarArchiveEntry newEntry;
+                if (link) {
+                    newEntry = new TarArchiveEntry(name, entry.isLink()
+                            ? TarArchiveEntry.LF_LINK : TarArchiveEntry.LF_SYMLINK);
+                    newEntry.setLinkName(toEntryName(entry.getLinkName(), templateRoot, root));
+                } else {
+                    newEntry = new TarArchiveEntry(name);
+                    if (regularFile) {
+                        newEntry.setSize(entry.getSize());
+                    }
+                }
+                if (compression.isReproducible()) {
+                    newEntry.setMode(toReproducibleMode(entry.getMode(), entry.isDirectory()));
+                    setReproducibleAttributes(newEntry);
+                } else {
+                    newEntry.setMode(entry.getMode());
+                    newEntry.setModTime(entry.getModTime());
+                    newEntry.setUserId(entry.getLongUserId());
+                    newEntry.setGroupId(entry.getLongGroupId());
+                    newEntry.setUserName(entry.getUserName());
+                    newEntry.setGroupName(entry.getGroupName());
+                }
+                out.putArchiveEntry(newEntry);
+                ++entryCount;
+                if (regularFile) {
+                    bytesIn += entry.getSize();
+                    IOUtils.copy(in, out);
+                    entryNames.add(name);
+                }
+                out.closeArchiveEntry();
+            }
+        }
+        return entryNames;
+    }
+
+    @Override
+    void addFile(File file, String entryName, int mode) throws IOException {
+        final TarArchiveEntry entry = new TarArchiveEntry(entryName);
+        entry.setSize(file.length());
+        entry.setMode((TarArchiveEntry.DEFAULT_FILE_MODE & ~07777) | toFileMode(mode, compression.isReproducible()));
+        if (compression.isReproducible()) {
+            setReproducibleAttributes(entry);
+        } else {
+            entry.setModTime(file.lastModified());
+        }
+        out.putArchiveEntry(entry);
+        ++entryCount;
+        bytesIn += file.length();
+        try (final InputStream in = new FileInputStream(file)) {
+            IOUtils.copy(in, out);
+        }
+        out.closeArchiveEntry();
+    }
+
+    private void setReproducibleAttributes(TarArchiveEntry entry) {
+        // Default owner is the user running the build.
+        entry.setModTime(compression.getOutputTimestamp());
+        entry.setUserId(0);
+        entry.setGroupId(0);
+        entry.setUserName("");
+        entry.setGroupName("");
+    }
+
+    @Override
+    int getEntryCount() {
+        return entryCount;
+    }
+
+    @Override
+    long getBytesIn() {
+        return bytesIn;
+    }
+
+    @Override
+    long getCompressionTime() {
+        if (frameOut != null) {
+            return frameOut.getCompressionTime();
+        }
+        return parallelOut != null ? parallelOut.getCompressionTime() : timedOut.time;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            out.close();
+        }
+    }
+
+    /**
+     * Output stream measuring time spent writing to a compressed stream.
+     */
+    private static final class TimedOutputStream extends FilterOutputStream {
+        long time;
+
+        TimedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            final long start = System.nanoTime();
+            out.write(b);
+            time += System.nanoTime() - start;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            final long start = System.nanoTime();
+            out.write(b, off, len);
+            time += System.nanoTime() - start;
+        }
+
+        @Override
+        public void close() throws IOException {
+            final long start = System.nanoTime();
+            super.close();
+            time += System.nanoTime() - start;
+        }
+    }
+}
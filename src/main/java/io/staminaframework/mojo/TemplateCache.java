@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.mojo;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of unpacked distribution templates, shared between modules and builds.
+ * <p>
+ * Templates are stored by checksum: a template is unpacked once to a temporary
+ * directory, which is then atomically published. A file lock prevents concurrent
+ * builds from unpacking the same template at the same time.
+ * <p>
+ * Files from a cached template must never be modified in place:
+ * working directories are populated with copies of cached files.
+ *
+ * @author Stamina Framework developers
+ */
+final class TemplateCache {
+    private static final String MARKER_FILE = ".stamina-template";
+    private static final Map<String, Object> LOCKS = new ConcurrentHashMap<>();
+
+    private final File directory;
+
+    TemplateCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Get an unpacked template directory, unpacking the template if required.
+     *
+     * @param templateFile template file (zip, or tar archive compressed with gzip, xz or zstd)
+     * @param coordinate   template artifact coordinate
+     * @param checksum     template file checksum
+     */
+    File getTemplate(File templateFile, String coordinate, String checksum) throws IOException {
+        final File templateDir = new File(directory, checksum);
+        if (new File(templateDir, MARKER_FILE).exists()) {
+            return templateDir;
+        }
+
+        directory.mkdirs();
+        // File locks are held by the JVM: threads from this JVM must be synchronized first.
+        final Object lock = LOCKS.computeIfAbsent(checksum, k -> new Object());
+        synchronized (lock) {
+            try (final FileChannel lockChannel = FileChannel.open(new File(directory, checksum + ".lock").toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                 final FileLock fileLock = lockChannel.lock()) {
+                if (new File(templateDir, MARKER_FILE).exists()) {
+                    return templateDir;
+                }
+                final File tmpDir = Files.createTempDirectory(directory.toPath(), checksum + ".tmp").toFile();
+                try {
+                    // Temporary directories are private: cached templates may be shared between users.
+                    tmpDir.setReadable(true, false);
+                    tmpDir.setExecutable(true, false);
+                    if (templateFile.getName().endsWith(".zip")) {
+                        unpackZip(templateFile, tmpDir);
+                    } else {
+                        unpackTar(templateFile, tmpDir);
+                    }
+                    try (final Writer out = new OutputStreamWriter(
+                            new FileOutputStream(new File(tmpDir, MARKER_FILE)), "UTF-8")) {
+                        out.write(coordinate);
+                    }
+                    deleteDirectory(templateDir);
+                    Files.move(tmpDir.toPath(), templateDir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                } finally {
+                    deleteDirectory(tmpDir);
+                }
+            }
+        }
+        return templateDir;
+    }
+
+    /**
+     * Populate a directory with copies of files from a cached template directory:
+     * copied files may be modified (by running the distribution, for example).
+     */
+    static void copy(File templateDir, File targetDir) throws IOException {
+        final Path source = templateDir.toPath();
+        final Path target = targetDir.toPath();
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(target.resolve(source.relativize(dir).toString()));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (MARKER_FILE.equals(file.getFileName().toString())) {
+                    return FileVisitResult.CONTINUE;
+                }
+                final Path targetFile = target.resolve(source.relativize(file).toString());
+                Files.deleteIfExists(targetFile);
+                if (attrs.isSymbolicLink()) {
+                    Files.createSymbolicLink(targetFile, Files.readSymbolicLink(file));
+                } else {
+                    Files.copy(file, targetFile, StandardCopyOption.COPY_ATTRIBUTES);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static void unpackZip(File templateFile, File targetDir) throws IOException {
+        try (final ZipFile zip = new ZipFile(templateFile)) {
+            for (final Enumeration<ZipArchiveEntry> i = zip.getEntriesInPhysicalOrder(); i.hasMoreElements(); ) {
+                final ZipArchiveEntry entry = i.nextElement();
+                final File file = toFile(targetDir, entry.getName());
+                if (entry.isDirectory()) {
+                    file.mkdirs();
+                    continue;
+                }
+                file.getParentFile().mkdirs();
+                if (entry.isUnixSymlink()) {
+                    Files.createSymbolicLink(file.toPath(), Paths.get(zip.getUnixSymlink(entry)));
+                    continue;
+                }
+                try (final InputStream in = zip.getInputStream(entry)) {
+                    Files.copy(in, file.toPath());
+                }
+                setAttributes(file, entry.getTime(), entry.getPlatform() == ZipArchiveEntry.PLATFORM_UNIX
+                        ? entry.getUnixMode() : 0);
+            }
+        }
+    }
+
+    private static void unpackTar(File templateFile, File targetDir) throws IOException {
+        try (final TarArchiveInputStream in = new TarArchiveInputStream(TarCompression.newInputStream(templateFile))) {
+            for (TarArchiveEntry entry; (entry = in.getNextTarEntry()) != null; ) {
+                final File file = toFile(targetDir, entry.getName());
+                if (entry.isDirectory()) {
+                    file.mkdirs();
+                    continue;
+                }
+                file.getParentFile().mkdirs();
+                if (entry.isSymbolicLink()) {
+                    Files.createSymbolicLink(file.toPath(), Paths.get(entry.getLinkName()));
+                    continue;
+                }
+                if (entry.isLink()) {
+                    Files.createLink(file.toPath(), toFile(targetDir, entry.getLinkName()).toPath());
+                    continue;
+                }
+                Files.copy(in, file.toPath());
+                setAttributes(file, entry.getModTime().getTime(), entry.getMode());
+            }
+        }
+    }
+
+    private static File toFile(File dir, String entryName) throws IOException {
+        final File file = new File(dir, entryName);
+        if (!file.getCanonicalPath().startsWith(dir.getCanonicalPath() + File.separator)) {
+            throw new IOException("Invalid template entry: " + entryName);
+        }
+        return file;
+    }
+
+    private static void setAttributes(File file, long time, int mode) {
+        if ((mode & 0100) != 0) {
+            file.setExecutable(true, (mode & 0011) == 0);
+        }
+        file.setLastModified(time);
+    }
+
+    static void deleteDirectory(File dir) throws IOException {
+        if (!dir.exists()) {
+            return;
+        }
+        Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.mojo;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mojo used for watching addon dependencies: when a dependency file changes (for example when
+ * a reactor module is rebuilt), the addon is packaged again and deployed to a local distribution.
+ * Dependency directories (such as reactor module output directories) are watched with all their content,
+ * and watched dependencies are updated each time the addon is packaged.
+ * <p>
+ * This goal runs until the build is stopped.
+ *
+ * @author Stamina Framework developers
+ */
+@Mojo(name = "watch", requiresDependencyResolution = ResolutionScope.RUNTIME, threadSafe = true)
+public class WatchAddonMojo extends PackageAddonMojo {
+    private static final long POLL_INTERVAL_MILLIS = 1000;
+
+    /**
+     * Distribution directory where the addon is deployed: an exploded distribution
+     * (see <code>package-dist</code>) or an installed distribution, which may be running.
+     */
+    @Parameter(property = "stamina.distributionDirectory", required = true)
+    private File distributionDirectory;
+    /**
+     * Time without changes (in milliseconds) before packaging the addon again:
+     * changes made during this delay are batched.
+     */
+    @Parameter(property = "stamina.watchDelay", defaultValue = "500", required = true)
+    private long watchDelay = 500;
+
+    @Override
+    public void execute() throws MojoExecutionException, MojoFailureException {
+        final File addonsDir = new File(distributionDirectory, "addons");
+        if (!addonsDir.isDirectory()) {
+            throw new MojoFailureException("Not a Stamina distribution directory: " + distributionDirectory);
+        }
+
+        final Set<File> dependencyFiles = new HashSet<>();
+        deployAddon(packageAddon(dependencyFiles), addonsDir);
+
+        try (final DependencyWatcher watcher = new DependencyWatcher(getLog())) {
+            watcher.setDependencies(dependencyFiles);
+            getLog().info("Watching " + watcher.getFileCount() + " addon dependency file(s) and "
+                    + watcher.getDirectoryCount() + " addon dependency directory(ies): press Ctrl-C to stop");
+
+            for (; ; ) {
+                final WatchKey key = watcher.poll(POLL_INTERVAL_MILLIS);
+                boolean changed = key != null && watcher.processEvents(key);
+                // Directories may be deleted and created again (when a module is cleaned):
+                // files may have changed before the directory was watched again.
+                changed |= watcher.registerDirectories();
+                if (!changed) {
+                    continue;
+                }
+                // Wait until no change is made during the watch delay.
+                for (WatchKey next; (next = watcher.poll(watchDelay)) != null; ) {
+                    watcher.processEvents(next);
+                }
+                getLog().info("Addon dependencies changed: packaging addon");
+                dependencyFiles.clear();
+                try {
+                    deployAddon(packageAddon(dependencyFiles), addonsDir);
+                } catch (MojoFailureException e) {
+                    // Keep watching: the next change may fix this error.
+                    getLog().error("Cannot package addon: " + e.getMessage(), e);
+                }
+                // Dependency files may change between builds (for example when a snapshot
+                // is resolved to another file): keep watching previous files if dependencies
+                // could not be resolved.
+                if (!dependencyFiles.isEmpty()) {
+                    watcher.setDependencies(dependencyFiles);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            getLog().info("Stopped watching addon dependencies");
+        } catch (IOException e) {
+            throw new MojoFailureException("Cannot watch addon dependencies", e);
+        }
+    }
+
+    /**
+     * Deploy the addon to the distribution: the addon file is replaced with an atomic move,
+     * so that a running distribution never reads a partially written file.
+     */
+    private void deployAddon(File addonFile, File addonsDir) throws MojoFailureException {
+        final Path target = addonsDir.toPath().resolve(addonFile.getName());
+        final Path tmpFile = addonsDir.toPath().resolve("." + addonFile.getName() + ".tmp");
+        try {
+            if (Files.isRegularFile(target) && Checksums.sha1(addonFile).equals(Checksums.sha1(target.toFile()))) {
+                getLog().info("Deployed addon is up-to-date: " + target);
+                return;
+            }
+            // The target file may be a link to a local repository file: the link is replaced.
+            Files.copy(addonFile.toPath(), tmpFile, StandardCopyOption.REPLACE_EXISTING);
+            try {
+                Files.move(tmpFile, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmpFile, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            throw new MojoFailureException("Cannot deploy addon to distribution: " + target, e);
+        } finally {
+            tmpFile.toFile().delete();
+        }
+        getLog().info("Addon deployed to distribution: " + target);
+    }
+
+    /**
+     * Watch addon dependencies: dependency files are watched through their parent directory,
+     * and dependency directories (such as <code>target/classes</code> for reactor modules)
+     * are watched with all their subdirectories.
+     */
+    private static final class DependencyWatcher implements Closeable {
+        private final Log log;
+        private final WatchService watcher;
+        /**
+         * Watched directories: a directory which was deleted has no key, until it is created again.
+         */
+        private final Map<Path, WatchKey> keys = new HashMap<>();
+        private final Set<Path> files = new HashSet<>();
+        private final Set<Path> directories = new HashSet<>();
+
+        DependencyWatcher(Log log) throws IOException {
+            this.log = log;
+            this.watcher = FileSystems.getDefault().newWatchService();
+        }
+
+        /**
+         * Set watched dependencies, replacing previous dependencies.
+         */
+        void setDependencies(Set<File> dependencyFiles) throws IOException {
+            files.clear();
+            directories.clear();
+            for (final File file : dependencyFiles) {
+                final Path path = file.toPath().toAbsolutePath().normalize();
+                if (Files.isDirectory(path)) {
+                    directories.add(path);
+                } else {
+                    files.add(path);
+                }
+            }
+            for (final Iterator<Map.Entry<Path, WatchKey>> i = keys.entrySet().iterator(); i.hasNext(); ) {
+                final Map.Entry<Path, WatchKey> e = i.next();
+                if (!isParentDirectory(e.getKey()) && getDependencyDirectory(e.getKey()) == null) {
+                    if (e.getValue() != null) {
+                        e.getValue().cancel();
+                    }
+                    i.remove();
+                }
+            }
+            registerDirectories();
+            log.debug("Watching " + files.size() + " addon dependency file(s) and "
+                    + directories.size() + " addon dependency directory(ies)");
+        }
+
+        int getFileCount() {
+            return files.size();
+        }
+
+        int getDirectoryCount() {
+            return directories.size();
+        }
+
+        WatchKey poll(long timeoutMillis) throws InterruptedException {
+            return watcher.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Register watched directories which are not already registered.
+         *
+         * @return <code>true</code> if a directory was registered again
+         */
+        boolean registerDirectories() throws IOException {
+            boolean registeredAgain = false;
+            for (final Path file : files) {
+                final Path dir = file.getParent();
+                if (dir == null || keys.get(dir) != null || !Files.isDirectory(dir)) {
+                    continue;
+                }
+                registeredAgain |= keys.containsKey(dir);
+                register(dir);
+            }
+            for (final Path dir : directories) {
+                if (keys.get(dir) != null || !Files.isDirectory(dir)) {
+                    continue;
+                }
+                registeredAgain |= keys.containsKey(dir);
+                registerTree(dir);
+            }
+            return registeredAgain;
+        }
+
+        /**
+         * Process events from a watched directory.
+         *
+         * @return <code>true</code> if a watched file changed
+         */
+        boolean processEvents(WatchKey key) throws IOException {
+            final Path dir = (Path) key.watchable();
+            if (keys.get(dir) != key) {
+                // This directory is no longer watched.
+                key.pollEvents();
+                key.cancel();
+                return false;
+            }
+            final Path dependencyDir = getDependencyDirectory(dir);
+            boolean changed = false;
+            for (final WatchEvent<?> event : key.pollEvents()) {
+                if (StandardWatchEventKinds.OVERFLOW.equals(event.kind())) {
+                    changed = true;
+                    continue;
+                }
+                final Path path = dir.resolve((Path) event.context());
+                if (dependencyDir != null) {
+                    log.debug("Addon dependency changed: " + dependencyDir + " (" + path + ")");
+                    changed = true;
+                    if (StandardWatchEventKinds.ENTRY_CREATE.equals(event.kind()) && Files.isDirectory(path)) {
+                        registerTree(path);
+                    }
+                } else if (files.contains(path)) {
+                    log.debug("Addon dependency changed: " + path);
+                    changed = true;
+                }
+            }
+            if (!key.reset()) {
+                if (isParentDirectory(dir) || directories.contains(dir)) {
+                    // Directory was deleted: it is registered again once it is created.
+                    keys.put(dir, null);
+                } else {
+                    // A subdirectory is registered again with its parent directory.
+                    keys.remove(dir);
+                }
+            }
+            return changed;
+        }
+
+        @Override
+        public void close() throws IOException {
+            watcher.close();
+        }
+
+        private boolean isParentDirectory(Path dir) {
+            for (final Path file : files) {
+                if (dir.equals(file.getParent())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Get the dependency directory including a directory.
+         *
+         * @return <code>null</code> if this directory is not part of a dependency directory
+         */
+        private Path getDependencyDirectory(Path dir) {
+            for (final Path dependencyDir : directories) {
+                if (dir.startsWith(dependencyDir)) {
+                    return dependencyDir;
+                }
+            }
+            return null;
+        }
+
+        private void register(Path dir) throws IOException {
+            keys.put(dir, dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE));
+        }
+
+        /**
+         * Register a directory with all its subdirectories.
+         */
+        private void registerTree(Path root) throws IOException {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    if (keys.get(dir) == null) {
+                        register(dir);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+    }
+}
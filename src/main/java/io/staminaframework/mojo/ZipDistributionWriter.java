@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.staminaframework.mojo;
+
+import org.apache.commons.compress.archivers.zip.UnixStat;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Write a zip distribution archive.
+ * Template entries are copied as is, without being inflated and deflated again
+ * (unless the compression policy requires another compression method),
+ * and other entries are compressed in parallel.
+ * <p>
+ * Entries are written sorted by name when this writer is closed, so that
+ * archive content does not depend on the order entries were added in.
+ *
+ * @author Stamina Framework developers
+ */
+final class ZipDistributionWriter extends DistributionWriter {
+    private final ParallelZipWriter out;
+    private final CompressionOptions compression;
+    private final List<ZipFile> templates = new ArrayList<>(1);
+    private final Map<String, Object> entries = new TreeMap<>();
+    private boolean closed;
+
+    ZipDistributionWriter(File destFile, CompressionOptions compression) throws IOException {
+        out = new ParallelZipWriter(destFile, compression);
+        this.compression = compression;
+    }
+
+    @Override
+    List<String> copyTemplate(File templateFile, String templateRoot, String root) throws IOException {
+        final List<String> entryNames = new ArrayList<>(64);
+        final ZipFile template = new ZipFile(templateFile);
+        templates.add(template);
+        for (final Enumeration<ZipArchiveEntry> i = template.getEntriesInPhysicalOrder(); i.hasMoreElements(); ) {
+            final ZipArchiveEntry entry = i.nextElement();
+            final ZipArchiveEntry newEntry = new ZipArchiveEntry(
+                    toEntryName(entry.getName(), templateRoot, root));
+            newEntry.setMethod(entry.getMethod());
+            newEntry.setCrc(entry.getCrc());
+            newEntry.setSize(entry.getSize());
+            newEntry.setCompressedSize(entry.getCompressedSize());
+            newEntry.setInternalAttributes(entry.getInternalAttributes());
+            if (compression.isReproducible()) {
+                newEntry.setTime(OutputTimestamp.toZipTime(compression.getOutputTimestamp()));
+                final int mode = entry.getPlatform() == ZipArchiveEntry.PLATFORM_UNIX ? entry.getUnixMode()
+                        : (entry.isDirectory() ? UnixStat.DIR_FLAG : UnixStat.FILE_FLAG);
+                newEntry.setUnixMode(toReproducibleMode(mode, entry.isDirectory()));
+            } else {
+                newEntry.setTime(entry.getTime());
+                if (entry.getPlatform() == ZipArchiveEntry.PLATFORM_UNIX) {
+                    newEntry.setUnixMode(entry.getUnixMode());
+                } else {
+                    newEntry.setExternalAttributes(entry.getExternalAttributes());
+                }
+            }
+            entries.put(newEntry.getName(), new TemplateEntry(template, entry, newEntry));
+            if (!entry.isDirectory()) {
+                entryNames.add(newEntry.getName());
+            }
+        }
+        return entryNames;
+    }
+
+    @Override
+    void addFile(File file, String entryName, int mode) throws IOException {
+        entries.put(entryName, new FileEntry(file, toFileMode(mode, compression.isReproducible())));
+    }
+
+    @Override
+    int getEntryCount() {
+        return out.getEntryCount();
+    }
+
+    @Override
+    long getBytesIn() {
+        return out.getBytesIn();
+    }
+
+    @Override
+    long getCompressionTime() {
+        return out.getCompressionTime();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try (final ParallelZipWriter writer = out) {
+            for (final Map.Entry<String, Object> e : entries.entrySet()) {
+                if (e.getValue() instanceof FileEntry) {
+                    final FileEntry entry = (FileEntry) e.getValue();
+                    writer.addFile(entry.file, e.getKey(), entry.mode);
+                } else {
+                    final TemplateEntry entry = (TemplateEntry) e.getValue();
+                    writer.copyEntry(entry.template, entry.sourceEntry, entry.entry);
+                }
+            }
+        } finally {
+            for (final ZipFile template : templates) {
+                template.close();
+            }
+        }
+    }
+
+    private static final class FileEntry {
+        final File file;
+        final int mode;
+
+        FileEntry(File file, int mode) {
+            this.file = file;
+            this.mode = mode;
+        }
+    }
+
+    private static final class TemplateEntry {
+        final ZipFile template;
+        final ZipArchiveEntry sourceEntry;
+        final ZipArchiveEntry entry;
+
+        TemplateEntry(ZipFile template, ZipArchiveEntry sourceEntry, ZipArchiveEntry entry) {
+            this.template = template;
+            this.sourceEntry = sourceEntry;
+            this.entry = entry;
+        }
+    }
+}
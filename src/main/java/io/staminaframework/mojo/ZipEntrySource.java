@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.mojo;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+
+/**
+ * Archive entry copied from another zip file.
+ *
+ * @author Stamina Framework developers
+ */
+final class ZipEntrySource {
+    final ZipFile zip;
+    final ZipArchiveEntry entry;
+
+    ZipEntrySource(ZipFile zip, ZipArchiveEntry entry) {
+        this.zip = zip;
+        this.entry = entry;
+    }
+}
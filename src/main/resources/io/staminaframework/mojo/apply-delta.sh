@@ -0,0 +1,135 @@
+#!/bin/sh
+#
+# Copyright (c) 2017 Stamina Framework developers.
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+
+# Apply a Stamina distribution delta.
+#
+# Usage: apply.sh [--check | --verify] <distribution directory>
+#   (no option)  check the baseline distribution, apply this delta, then verify the result
+#   --check      check that the distribution matches the baseline of this delta
+#   --verify     check that this delta was applied to the distribution
+
+usage() {
+    echo "Usage: $0 [--check | --verify] <distribution directory>" >&2
+    exit 2
+}
+
+MODE=apply
+case "$1" in
+    --check) MODE=check; shift ;;
+    --verify) MODE=verify; shift ;;
+    -*) usage ;;
+esac
+[ $# -eq 1 ] && [ -d "$1" ] || usage
+DIST_DIR=$1
+DELTA_DIR=$(cd "$(dirname "$0")" && pwd)
+
+if command -v sha1sum >/dev/null 2>&1; then
+    SHA1="sha1sum"
+else
+    SHA1="shasum -a 1"
+fi
+
+# Check files against checksums from the delta manifest
+# (symbolic links are checked against their target, prefixed by @).
+# $1: "old" (baseline) or "new" (delta applied)
+check_files() {
+    failed=0
+    while read -r op old new mode path; do
+        case "$op" in
+            ''|\#*) continue ;;
+        esac
+        if [ "$1" = old ]; then
+            expected=$old
+        else
+            expected=$new
+        fi
+        file="$DIST_DIR/$path"
+        case "$expected" in
+            -)
+                if [ -e "$file" ] || [ -L "$file" ]; then
+                    echo "Unexpected file: $path" >&2
+                    failed=1
+                fi
+                ;;
+            @*)
+                if [ ! -L "$file" ]; then
+                    echo "Missing link: $path" >&2
+                    failed=1
+                elif [ "@$(readlink "$file")" != "$expected" ]; then
+                    echo "Link target mismatch: $path" >&2
+                    failed=1
+                fi
+                ;;
+            *)
+                if [ -L "$file" ] || [ ! -f "$file" ]; then
+                    echo "Missing file: $path" >&2
+                    failed=1
+                elif [ "$($SHA1 "$file" | cut -d ' ' -f 1)" != "$expected" ]; then
+                    echo "Checksum mismatch: $path" >&2
+                    failed=1
+                fi
+                ;;
+        esac
+    done < "$DELTA_DIR/DELTA"
+    return $failed
+}
+
+apply_files() {
+    while read -r op old new mode path; do
+        file="$DIST_DIR/$path"
+        case "$op" in
+            A|M)
+                mkdir -p "$(dirname "$file")" || return 1
+                rm -f "$file.delta-tmp" || return 1
+                case "$new" in
+                    @*)
+                        ln -s "${new#@}" "$file.delta-tmp" || return 1
+                        ;;
+                    *)
+                        cp "$DELTA_DIR/files/$path" "$file.delta-tmp" || return 1
+                        chmod "$mode" "$file.delta-tmp" || return 1
+                        ;;
+                esac
+                # A link to a directory is replaced, not followed.
+                if [ -L "$file" ]; then
+                    rm -f "$file" || return 1
+                fi
+                mv -f "$file.delta-tmp" "$file" || return 1
+                ;;
+            D)
+                rm -f "$file" || return 1
+                ;;
+        esac
+    done < "$DELTA_DIR/DELTA"
+}
+
+case "$MODE" in
+    check)
+        check_files old && echo "Distribution matches delta baseline"
+        ;;
+    verify)
+        check_files new && echo "Distribution delta is applied"
+        ;;
+    apply)
+        if ! check_files old; then
+            echo "Distribution does not match delta baseline: delta not applied" >&2
+            exit 1
+        fi
+        apply_files || { echo "Failed to apply distribution delta" >&2; exit 1; }
+        check_files new && echo "Distribution delta applied"
+        ;;
+esac
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.mojo;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Index resolved artifacts, with metadata read from artifact files.
+ *
+ * @author Stamina Framework developers
+ */
+public class ArtifactIndexTest {
+    private static final String COORDINATE = "org.example:bundle:1.0";
+    private static final int BUILDS = 8;
+    private static final int METADATA_COUNT = 20;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testMetadata() throws Exception {
+        final File indexDir = tmp.newFolder("index");
+        final File file = createFile("bundle.jar", "content");
+        final ArtifactIndex index = new ArtifactIndex(indexDir);
+        assertNull(index.getFile(COORDINATE));
+        assertNull(index.getMetadata(COORDINATE, file, "name"));
+        index.putMetadata(COORDINATE, file, "name", "value");
+        assertEquals("value", index.getMetadata(COORDINATE, file, "name"));
+
+        // Entries are shared between builds.
+        final ArtifactIndex otherIndex = new ArtifactIndex(indexDir);
+        assertEquals(file.getAbsoluteFile(), otherIndex.getFile(COORDINATE));
+        assertEquals(Checksums.sha1(file), otherIndex.getChecksum(COORDINATE, file));
+        assertEquals("value", otherIndex.getMetadata(COORDINATE, file, "name"));
+    }
+
+    @Test
+    public void testChangedFile() throws Exception {
+        final File indexDir = tmp.newFolder("index");
+        final File file = createFile("bundle.jar", "content");
+        final ArtifactIndex index = new ArtifactIndex(indexDir);
+        index.putMetadata(COORDINATE, file, "name", "value");
+
+        // Metadata is kept if only file attributes changed.
+        assertTrue(file.setLastModified(file.lastModified() - 10000));
+        assertNull(index.getFile(COORDINATE));
+        assertEquals("value", index.getMetadata(COORDINATE, file, "name"));
+        assertEquals(file.getAbsoluteFile(), new ArtifactIndex(indexDir).getFile(COORDINATE));
+
+        Files.write(file.toPath(), "new content".getBytes(StandardCharsets.UTF_8));
+        assertNull(index.getMetadata(COORDINATE, file, "name"));
+        assertEquals(Checksums.sha1(file), index.getChecksum(COORDINATE, file));
+        assertNull(new ArtifactIndex(indexDir).getMetadata(COORDINATE, file, "name"));
+    }
+
+    @Test
+    public void testConcurrentMetadata() throws Exception {
+        final File indexDir = tmp.newFolder("index");
+        final File file = createFile("bundle.jar", "content");
+        final ExecutorService executor = Executors.newFixedThreadPool(BUILDS);
+        try {
+            final CountDownLatch start = new CountDownLatch(1);
+            final List<Future<?>> builds = new ArrayList<>(BUILDS);
+            for (int i = 0; i < BUILDS; ++i) {
+                final String build = "build-" + i;
+                builds.add(executor.submit(() -> {
+                    // Each build has its own index instance, sharing the same directory.
+                    final ArtifactIndex index = new ArtifactIndex(indexDir);
+                    start.await();
+                    for (int j = 0; j < METADATA_COUNT; ++j) {
+                        index.putMetadata(COORDINATE, file, build + "-" + j, String.valueOf(j));
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (final Future<?> build : builds) {
+                build.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // No metadata is lost.
+        final ArtifactIndex index = new ArtifactIndex(indexDir);
+        for (int i = 0; i < BUILDS; ++i) {
+            for (int j = 0; j < METADATA_COUNT; ++j) {
+                assertEquals(String.valueOf(j), index.getMetadata(COORDINATE, file, "build-" + i + "-" + j));
+            }
+        }
+    }
+
+    private File createFile(String name, String content) throws Exception {
+        final File file = tmp.newFile(name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+}
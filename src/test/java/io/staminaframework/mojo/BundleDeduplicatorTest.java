@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.mojo;
+
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Deduplicate bundles embedded in several addons.
+ *
+ * @author Stamina Framework developers
+ */
+public class BundleDeduplicatorTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testSharedBundleIsStoredInRepository() throws Exception {
+        final File shared = createBundle(tmp.newFile("shared.jar"), "com.example.shared", "1.2.0", null);
+        final File a = createBundle(tmp.newFile("a.jar"), "com.example.a", "1.0.0", null);
+        final File b = createBundle(tmp.newFile("b.jar"), "com.example.b", "1.0.0", null);
+        final File addonA = createSubsystem(tmp.newFile("addon-a.esa"), "com.example.addon.a", shared, a);
+        final File addonB = createSubsystem(tmp.newFile("addon-b.esa"), "com.example.addon.b", shared, b);
+        final String sharedChecksum = Checksums.sha1(shared);
+
+        final BundleDeduplicator dedup = new BundleDeduplicator(tmp.newFolder("dedup"), "dist/bundles/");
+        dedup.addSubsystem("dist/addons/addon-a.esa", addonA, Checksums.sha1(addonA),
+                BundleDeduplicator.scan(addonA));
+        dedup.addSubsystem("dist/addons/addon-b.esa", addonB, Checksums.sha1(addonB),
+                BundleDeduplicator.scan(addonB));
+        final Map<String, String> checksums = dedup.plan();
+        assertEquals(1, dedup.getSharedBundleCount());
+        assertEquals(2, dedup.getRemovedBundleCount());
+        assertEquals(sharedChecksum, checksums.get("dist/bundles/" + sharedChecksum + ".jar"));
+
+        final Map<String, File> files = dedup.write(new CompressionOptions(1, 0, -1, 1024 * 1024,
+                CompressionPolicy.create(null, -1), OutputTimestamp.DISABLED));
+        assertEquals(checksums.keySet(), files.keySet());
+        assertEquals(sharedChecksum, Checksums.sha1(files.get("dist/bundles/" + sharedChecksum + ".jar")));
+
+        // Addons keep their own bundles and their manifest, without the shared bundle.
+        assertEntries(files.get("dist/addons/addon-a.esa"), "OSGI-INF/SUBSYSTEM.MF", "a.jar");
+        assertEntries(files.get("dist/addons/addon-b.esa"), "OSGI-INF/SUBSYSTEM.MF", "b.jar");
+        try (final ZipFile zip = new ZipFile(files.get("dist/addons/addon-b.esa"))) {
+            assertNull(zip.getEntry("shared.jar"));
+            assertEquals(Checksums.sha1(b), Checksums.sha1(zip.getInputStream(zip.getEntry("b.jar"))));
+        }
+
+        final String index = new String(Files.readAllBytes(files.get("dist/bundles/index.xml").toPath()),
+                StandardCharsets.UTF_8);
+        assertTrue(index.contains("<attribute name=\"osgi.identity\" value=\"com.example.shared\"/>"));
+        assertTrue(index.contains("<attribute name=\"version\" type=\"Version\" value=\"1.2.0\"/>"));
+        assertTrue(index.contains("<attribute name=\"url\" value=\"" + sharedChecksum + ".jar\"/>"));
+        assertTrue(index.contains("<attribute name=\"osgi.content\" value=\"" + Checksums.sha256(shared) + "\"/>"));
+        assertFalse(index.contains("com.example.a\""));
+    }
+
+    @Test
+    public void testBundleIncludedInDistributionIsNotCopied() throws Exception {
+        final File shared = createBundle(tmp.newFile("shared.jar"), "com.example.shared", "1.0.0", null);
+        final File addon = createSubsystem(tmp.newFile("addon.esa"), "com.example.addon", shared);
+        final String sharedChecksum = Checksums.sha1(shared);
+
+        final BundleDeduplicator dedup = new BundleDeduplicator(tmp.newFolder("dedup"), "dist/bundles/");
+        dedup.addBundle("dist/addons/shared.jar", shared, sharedChecksum);
+        dedup.addSubsystem("dist/addons/addon.esa", addon, Checksums.sha1(addon), BundleDeduplicator.scan(addon));
+        dedup.plan();
+        final Map<String, File> files = dedup.write(new CompressionOptions(1, 0, -1, 1024 * 1024,
+                CompressionPolicy.create(null, -1), OutputTimestamp.DISABLED));
+
+        assertNull(files.get("dist/bundles/" + sharedChecksum + ".jar"));
+        assertEntries(files.get("dist/addons/addon.esa"), "OSGI-INF/SUBSYSTEM.MF");
+        final String index = new String(Files.readAllBytes(files.get("dist/bundles/index.xml").toPath()),
+                StandardCharsets.UTF_8);
+        assertTrue(index.contains("<attribute name=\"url\" value=\"../addons/shared.jar\"/>"));
+    }
+
+    @Test
+    public void testProvidesRepository() throws Exception {
+        final BundleResource repository = BundleResource.read(createBundle(tmp.newFile("repository.jar"),
+                "com.example.repository", "1.0.0",
+                "osgi.service;objectClass:List<String>=\"org.osgi.service.repository.Repository\""));
+        assertTrue(BundleDeduplicator.providesRepository(repository));
+        final BundleResource other = BundleResource.read(createBundle(tmp.newFile("other.jar"),
+                "com.example.other", "1.0.0", "osgi.service;objectClass:List<String>=\"com.example.Service\""));
+        assertFalse(BundleDeduplicator.providesRepository(other));
+    }
+
+    private static void assertEntries(File file, String... names) throws IOException {
+        try (final ZipFile zip = new ZipFile(file)) {
+            final List<?> entries = Collections.list(zip.getEntries());
+            assertEquals(names.length, entries.size());
+            for (final String name : names) {
+                assertNotNull("Missing entry: " + name, zip.getEntry(name));
+            }
+        }
+    }
+
+    private static File createBundle(File file, String symbolicName, String version,
+                                     String provideCapability) throws IOException {
+        final Manifest manifest = new Manifest();
+        final Attributes atts = manifest.getMainAttributes();
+        atts.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        atts.putValue("Bundle-ManifestVersion", "2");
+        atts.putValue("Bundle-SymbolicName", symbolicName);
+        atts.putValue("Bundle-Version", version);
+        atts.putValue("Export-Package", symbolicName + ";version=\"" + version + "\"");
+        if (provideCapability != null) {
+            atts.putValue("Provide-Capability", provideCapability);
+        }
+        try (final JarOutputStream out = new JarOutputStream(new FileOutputStream(file), manifest)) {
+            out.putNextEntry(new ZipEntry(symbolicName.replace('.', '/') + "/data.txt"));
+            out.write(symbolicName.getBytes(StandardCharsets.UTF_8));
+            out.closeEntry();
+        }
+        return file;
+    }
+
+    private static File createSubsystem(File file, String symbolicName, File... bundles) throws IOException {
+        try (final ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file))) {
+            out.putNextEntry(new ZipEntry("OSGI-INF/SUBSYSTEM.MF"));
+            out.write(("Subsystem-ManifestVersion: 1\r\nSubsystem-SymbolicName: " + symbolicName
+                    + "\r\nSubsystem-Type: osgi.subsystem.feature\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+            out.closeEntry();
+            for (final File bundle : bundles) {
+                out.putNextEntry(new ZipEntry(bundle.getName()));
+                Files.copy(bundle.toPath(), out);
+                out.closeEntry();
+            }
+        }
+        return file;
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.mojo;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.*;
+
+/**
+ * Strip debug attributes from compiled classes, then load and run stripped classes.
+ *
+ * @author Stamina Framework developers
+ */
+public class ClassDebugStripperTest {
+    private static final String FIXTURE_CLASS = "fixture.Fixture";
+    /**
+     * Fixture with branches and loops (stack map frames), generic local variables (local variable type table),
+     * exception handlers, lambdas (bootstrap methods), an inner class, and long and double constants.
+     */
+    private static final String FIXTURE_SOURCE = "package fixture;\n"
+            + "import java.util.*;\n"
+            + "import java.util.concurrent.Callable;\n"
+            + "import java.util.function.Function;\n"
+            + "public class Fixture implements Callable<String> {\n"
+            + "    private static final long LONG_VALUE = 1234567890123L;\n"
+            + "    private static final double DOUBLE_VALUE = 3.5;\n"
+            + "    private final List<String> items = new ArrayList<>();\n"
+            + "    public String call() throws Exception {\n"
+            + "        final Map<String, List<Integer>> lengths = new TreeMap<>();\n"
+            + "        for (String item : Arrays.asList(\"alpha\", \"beta\", \"gamma\", \"delta\")) {\n"
+            + "            final List<Integer> list = lengths.computeIfAbsent(item.substring(0, 1), k -> new ArrayList<>());\n"
+            + "            list.add(item.length());\n"
+            + "            items.add(item);\n"
+            + "        }\n"
+            + "        long total = LONG_VALUE;\n"
+            + "        double ratio = DOUBLE_VALUE;\n"
+            + "        int i = 0;\n"
+            + "        while (i < items.size()) {\n"
+            + "            switch (items.get(i).length()) {\n"
+            + "                case 4: total += 4; break;\n"
+            + "                case 5: total += 5; ratio *= 2; break;\n"
+            + "                default: total -= 1;\n"
+            + "            }\n"
+            + "            ++i;\n"
+            + "        }\n"
+            + "        String parsed;\n"
+            + "        try {\n"
+            + "            parsed = String.valueOf(Integer.parseInt(\"not a number\"));\n"
+            + "        } catch (NumberFormatException e) {\n"
+            + "            parsed = \"error\";\n"
+            + "        } finally {\n"
+            + "            total += 1;\n"
+            + "        }\n"
+            + "        final Function<Integer, String> format = new Inner().formatter(\"#\");\n"
+            + "        return lengths + \" \" + total + \" \" + ratio + \" \" + parsed + \" \" + format.apply(items.size());\n"
+            + "    }\n"
+            + "    public static void fail() {\n"
+            + "        throw new IllegalStateException(\"failure\");\n"
+            + "    }\n"
+            + "    class Inner {\n"
+            + "        <T> Function<T, String> formatter(String prefix) {\n"
+            + "            final List<T> seen = new ArrayList<>();\n"
+            + "            return value -> { seen.add(value); return prefix + value + seen.size() + items.size(); };\n"
+            + "        }\n"
+            + "    }\n"
+            + "}\n";
+    private static final String EXPECTED_RESULT = "{a=[5], b=[4], d=[5], g=[5]} 1234567890143 28.0 error #414";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testStrippedClassesRun() throws Exception {
+        final Map<String, byte[]> classes = compileFixture();
+        assertEquals(2, classes.size());
+        assertEquals(EXPECTED_RESULT, run(classes));
+        // Make sure the fixture covers the attributes we care about.
+        final byte[] fixture = classes.get(FIXTURE_CLASS);
+        assertTrue(contains(fixture, "StackMapTable"));
+        assertTrue(contains(fixture, "LocalVariableTypeTable"));
+        assertTrue(contains(fixture, "BootstrapMethods"));
+
+        final Map<String, byte[]> strippedClasses = new HashMap<>();
+        for (final Map.Entry<String, byte[]> e : classes.entrySet()) {
+            final byte[] stripped = ClassDebugStripper.strip(e.getValue());
+            assertTrue("Debug attributes not removed: " + e.getKey(), stripped.length < e.getValue().length);
+            // Stripping is idempotent: there are no debug attributes left.
+            assertArrayEquals(stripped, ClassDebugStripper.strip(stripped));
+            strippedClasses.put(e.getKey(), stripped);
+        }
+        // Stripped classes are checked by the bytecode verifier when loaded.
+        assertEquals(EXPECTED_RESULT, run(strippedClasses));
+    }
+
+    @Test
+    public void testLineNumbersAreRemoved() throws Exception {
+        final Map<String, byte[]> classes = compileFixture();
+        assertTrue(getFailureLine(classes) > 0);
+        final Map<String, byte[]> strippedClasses = new HashMap<>();
+        for (final Map.Entry<String, byte[]> e : classes.entrySet()) {
+            strippedClasses.put(e.getKey(), ClassDebugStripper.strip(e.getValue()));
+        }
+        assertTrue(getFailureLine(strippedClasses) < 0);
+    }
+
+    @Test
+    public void testInvalidClassFile() throws Exception {
+        try {
+            ClassDebugStripper.strip(new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+            fail("Invalid class file stripped");
+        } catch (IOException expected) {
+        }
+        final byte[] classFile = compileFixture().get(FIXTURE_CLASS);
+        try {
+            ClassDebugStripper.strip(java.util.Arrays.copyOf(classFile, classFile.length - 3));
+            fail("Truncated class file stripped");
+        } catch (IOException expected) {
+        }
+    }
+
+    private Map<String, byte[]> compileFixture() throws IOException {
+        final File srcDir = tmp.newFolder();
+        final File classesDir = tmp.newFolder();
+        final File srcFile = new File(srcDir, "Fixture.java");
+        Files.write(srcFile.toPath(), FIXTURE_SOURCE.getBytes(StandardCharsets.UTF_8));
+        final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        assertNotNull("Tests require a JDK", compiler);
+        assertEquals(0, compiler.run(null, null, null, "-g", "-nowarn", "-d", classesDir.getPath(),
+                srcFile.getPath()));
+
+        final Map<String, byte[]> classes = new HashMap<>();
+        final File[] files = new File(classesDir, "fixture").listFiles();
+        assertNotNull(files);
+        for (final File file : files) {
+            final String name = file.getName();
+            classes.put("fixture." + name.substring(0, name.length() - ".class".length()),
+                    Files.readAllBytes(file.toPath()));
+        }
+        return classes;
+    }
+
+    private static String run(Map<String, byte[]> classes) throws Exception {
+        final Class<?> fixtureClass = new FixtureClassLoader(classes).loadClass(FIXTURE_CLASS);
+        return ((Callable<?>) fixtureClass.newInstance()).call().toString();
+    }
+
+    private static boolean contains(byte[] classFile, String attributeName) {
+        final byte[] name = attributeName.getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i + name.length <= classFile.length; ++i) {
+            int j = 0;
+            while (j < name.length && classFile[i + j] == name[j]) {
+                ++j;
+            }
+            if (j == name.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int getFailureLine(Map<String, byte[]> classes) throws Exception {
+        final Method fail = new FixtureClassLoader(classes).loadClass(FIXTURE_CLASS).getMethod("fail");
+        try {
+            fail.invoke(null);
+        } catch (InvocationTargetException e) {
+            return e.getCause().getStackTrace()[0].getLineNumber();
+        }
+        throw new AssertionError("Fixture did not fail");
+    }
+
+    /**
+     * Load fixture classes from bytes, in a new class loader.
+     */
+    private static final class FixtureClassLoader extends ClassLoader {
+        private final Map<String, byte[]> classes;
+
+        FixtureClassLoader(Map<String, byte[]> classes) {
+            super(ClassDebugStripperTest.class.getClassLoader());
+            this.classes = classes;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            final byte[] bytes = classes.get(name);
+            if (bytes == null) {
+                throw new ClassNotFoundException(name);
+            }
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
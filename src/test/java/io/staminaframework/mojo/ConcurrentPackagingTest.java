@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.mojo;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Run packaging executions concurrently, as in a parallel reactor build (<code>mvn -T</code>):
+ * executions share the same cache directory (template cache, artifact index and optimized bundles),
+ * and must produce identical archives.
+ *
+ * @author Stamina Framework developers
+ */
+public class ConcurrentPackagingTest {
+    private static final int EXECUTIONS = 8;
+    private static final int ROUNDS = 5;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testConcurrentDistributionPackaging() throws Exception {
+        final File template = createZip(tmp.newFile("template.zip"), "runtime-1.0/", 50);
+        final File bundle = createZip(tmp.newFile("bundle.jar"), "", 20);
+        final String templateChecksum = Checksums.sha1(template);
+        final String bundleChecksum = Checksums.sha1(bundle);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(EXECUTIONS);
+        try {
+            for (int round = 0; round < ROUNDS; ++round) {
+                // Each round starts with an empty cache, shared by all executions.
+                final File cacheDir = tmp.newFolder("cache-" + round);
+                final CountDownLatch start = new CountDownLatch(1);
+                final List<Future<File>> distributions = new ArrayList<>(EXECUTIONS);
+                for (int i = 0; i < EXECUTIONS; ++i) {
+                    final File outputDir = tmp.newFolder("round-" + round + "-module-" + i);
+                    distributions.add(executor.submit(() -> {
+                        start.await();
+                        return packageDistribution(cacheDir, outputDir, template, templateChecksum,
+                                bundle, bundleChecksum);
+                    }));
+                }
+                start.countDown();
+
+                final Set<String> checksums = new HashSet<>();
+                for (final Future<File> distribution : distributions) {
+                    checksums.add(Checksums.sha1(distribution.get(60, TimeUnit.SECONDS)));
+                }
+                assertEquals("Concurrent executions must produce identical distributions", 1, checksums.size());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Package a distribution as <code>package-dist</code> does, using a shared cache directory.
+     */
+    private static File packageDistribution(File cacheDir, File outputDir, File template, String templateChecksum,
+                                            File bundle, String bundleChecksum) throws IOException {
+        final ArtifactIndex index = new ArtifactIndex(new File(cacheDir, "artifacts"));
+        assertEquals(bundleChecksum, index.getChecksum("org.example:bundle:1.0", bundle));
+        index.putMetadata("org.example:bundle:1.0", bundle, "test", "value");
+        assertEquals("value", index.getMetadata("org.example:bundle:1.0", bundle, "test"));
+
+        final File templateDir = new TemplateCache(new File(cacheDir, "templates"))
+                .getTemplate(template, "org.example:runtime:zip:1.0", templateChecksum);
+        final File copyDir = new File(outputDir, "dist");
+        TemplateCache.copy(templateDir, copyDir);
+        assertTrue(new File(copyDir, "runtime-1.0/file-49.txt").isFile());
+
+        final BundleOptimizer optimizer = new BundleOptimizer(new SystemStreamLog(),
+                new File(cacheDir, "optimized-bundles"), 0, false, null);
+        final File optimized = optimizer.optimize(bundle, bundleChecksum);
+        assertEquals(Checksums.sha1(optimized), BundleOptimizer.getChecksum(optimized));
+
+        final File distFile = new File(outputDir, "dist.zip");
+        final CompressionOptions compression = new CompressionOptions(2, 0, -1, 1024 * 1024,
+                CompressionPolicy.create(null, -1), 1500000000000L);
+        try (final ZipDistributionWriter writer = new ZipDistributionWriter(distFile, compression)) {
+            writer.copyTemplate(template, "runtime-1.0/", "dist/");
+            writer.addFile(optimized, "dist/bundle/bundle.jar");
+        }
+        return distFile;
+    }
+
+    private static File createZip(File file, String root, int entryCount) throws IOException {
+        try (final ZipArchiveOutputStream out = new ZipArchiveOutputStream(file)) {
+            for (int i = 0; i < entryCount; ++i) {
+                final ZipArchiveEntry entry = new ZipArchiveEntry(root + "file-" + i + ".txt");
+                entry.setTime(1500000000000L);
+                out.putArchiveEntry(entry);
+                final StringBuilder content = new StringBuilder();
+                for (int j = 0; j < 1000; ++j) {
+                    content.append("entry ").append(i).append(" line ").append(j).append('\n');
+                }
+                out.write(content.toString().getBytes(StandardCharsets.UTF_8));
+                out.closeArchiveEntry();
+            }
+        }
+        return file;
+    }
+}
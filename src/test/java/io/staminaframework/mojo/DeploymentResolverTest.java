@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.mojo;
+
+import org.apache.maven.plugin.MojoFailureException;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+
+import static org.junit.Assert.*;
+
+/**
+ * Resolve addon content against a target platform.
+ *
+ * @author Stamina Framework developers
+ */
+public class DeploymentResolverTest {
+    @Test
+    public void testHighestVersionIsSelected() throws Exception {
+        final BundleResource api1 = bundle("com.example.api", "1.0.0", "Export-Package", "com.example.api;version=1.0.0");
+        final BundleResource api15 = bundle("com.example.api", "1.5.0", "Export-Package", "com.example.api;version=1.5.0");
+        final BundleResource api2 = bundle("com.example.api", "2.0.0", "Export-Package", "com.example.api;version=2.0.0");
+        final List<BundleResource> platform = Arrays.asList(api1, api2, api15);
+
+        final BundleResource ranged = bundle("com.example.ranged", "1.0.0",
+                "Import-Package", "com.example.api;version=\"[1.0,2.0)\"");
+        assertEquals(Collections.singletonList(api15), resolve(platform, ranged));
+
+        final BundleResource unranged = bundle("com.example.unranged", "1.0.0",
+                "Import-Package", "com.example.api");
+        assertEquals(Collections.singletonList(api2), resolve(platform, unranged));
+    }
+
+    @Test
+    public void testContentIsPreferred() throws Exception {
+        final BundleResource platformApi = bundle("com.example.api", "2.0.0",
+                "Export-Package", "com.example.api;version=2.0.0");
+        final BundleResource contentApi = bundle("com.example.api", "1.0.0",
+                "Export-Package", "com.example.api;version=1.0.0");
+        final BundleResource consumer = bundle("com.example.consumer", "1.0.0",
+                "Import-Package", "com.example.api");
+        assertEquals(Collections.emptyList(),
+                resolve(Collections.singletonList(platformApi), consumer, contentApi));
+    }
+
+    @Test
+    public void testProvisionedResourcesAreResolved() throws Exception {
+        final BundleResource api = bundle("com.example.api", "1.0.0",
+                "Export-Package", "com.example.api;version=1.0.0", "Import-Package", "com.example.util");
+        final BundleResource util = bundle("com.example.util", "1.0.0",
+                "Export-Package", "com.example.util;version=1.0.0");
+        final BundleResource cap = bundle("com.example.cap", "1.0.0",
+                "Provide-Capability", "com.example.feature;com.example.feature=logging");
+        final BundleResource a = bundle("com.example.a", "1.0.0", "Import-Package", "com.example.api",
+                "Require-Capability", "com.example.feature;filter:=\"(com.example.feature=logging)\"");
+        final BundleResource b = bundle("com.example.b", "1.0.0", "Require-Bundle", "com.example.api");
+        // Providers are selected once, in resolution order.
+        assertEquals(Arrays.asList(api, cap, util), resolve(Arrays.asList(util, cap, api), a, b));
+    }
+
+    @Test
+    public void testOptionalRequirements() throws Exception {
+        final BundleResource api = bundle("com.example.api", "1.0.0",
+                "Export-Package", "com.example.api;version=1.0.0");
+        final BundleResource optional = bundle("com.example.optional", "1.0.0",
+                "Import-Package", "com.example.api;resolution:=optional,com.example.missing;resolution:=optional",
+                "Require-Bundle", "com.example.missing;resolution:=optional");
+        // Optional requirements are never provisioned, and never fail resolution.
+        assertEquals(Collections.emptyList(), resolve(Collections.singletonList(api), optional));
+    }
+
+    @Test
+    public void testDefaultSystemPackages() throws Exception {
+        final BundleResource system = bundle("com.example.system", "1.0.0",
+                "Import-Package", "javax.xml.parsers,org.osgi.framework;version=\"[1.8,2)\",org.osgi.util.tracker",
+                "Require-Bundle", "system.bundle",
+                "Require-Capability", "osgi.ee;filter:=\"(&(osgi.ee=JavaSE)(version=1.8))\"");
+        assertEquals(Collections.emptyList(), resolve(Collections.emptyList(), system));
+    }
+
+    @Test
+    public void testSystemPackages() throws Exception {
+        final List<String> systemPackages = Arrays.asList("com.example.sys", "com.example.tree.*");
+        final BundleResource system = bundle("com.example.system", "1.0.0",
+                "Import-Package", "com.example.sys,com.example.tree,com.example.tree.sub");
+        assertEquals(Collections.emptyList(),
+                new DeploymentResolver(Collections.emptyList(), systemPackages).resolve(Collections.singletonList(system)));
+
+        // Package names are not prefixes.
+        for (final String pkg : Arrays.asList("com.example.sys.sub", "com.example.treetop", "javax.xml.parsers")) {
+            final BundleResource notSystem = bundle("com.example.notsystem", "1.0.0", "Import-Package", pkg);
+            try {
+                new DeploymentResolver(Collections.emptyList(), systemPackages)
+                        .resolve(Collections.singletonList(notSystem));
+                fail("Package provided by the system: " + pkg);
+            } catch (MojoFailureException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void testUnresolvableRequirement() throws Exception {
+        final BundleResource api = bundle("com.example.api", "1.0.0",
+                "Export-Package", "com.example.api;version=1.0.0", "Import-Package", "com.example.missing");
+        final BundleResource oldApi = bundle("com.example.old", "1.0.0",
+                "Export-Package", "com.example.old;version=1.0.0");
+        final BundleResource consumer = bundle("com.example.consumer", "1.0.0",
+                "Import-Package", "com.example.api,com.example.old;version=\"[2.0,3.0)\"");
+        try {
+            resolve(Arrays.asList(api, oldApi), consumer);
+            fail("Unresolvable requirements");
+        } catch (MojoFailureException e) {
+            // All unresolved requirements are reported, including those of provisioned resources.
+            assertTrue(e.getMessage(), e.getMessage().contains("com.example.missing"));
+            assertTrue(e.getMessage(), e.getMessage().contains("com.example.old"));
+        }
+    }
+
+    private static List<BundleResource> resolve(List<BundleResource> platform,
+                                                BundleResource... content) throws MojoFailureException {
+        return new DeploymentResolver(platform, DeploymentResolver.DEFAULT_SYSTEM_PACKAGES)
+                .resolve(Arrays.asList(content));
+    }
+
+    private static BundleResource bundle(String symbolicName, String version, String... headers) throws IOException {
+        final Manifest man = new Manifest();
+        final Attributes attrs = man.getMainAttributes();
+        attrs.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attrs.putValue("Bundle-ManifestVersion", "2");
+        attrs.putValue("Bundle-SymbolicName", symbolicName);
+        attrs.putValue("Bundle-Version", version);
+        for (int i = 0; i < headers.length; i += 2) {
+            attrs.putValue(headers[i], headers[i + 1]);
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        man.write(out);
+        return BundleResource.read(new File(symbolicName + "-" + version + ".jar"), out.toByteArray());
+    }
+}
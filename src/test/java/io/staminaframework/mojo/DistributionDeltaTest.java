@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.mojo;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.UnixStat;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.apache.commons.compress.utils.IOUtils;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Build distribution deltas, and apply them with the delta script.
+ *
+ * @author Stamina Framework developers
+ */
+public class DistributionDeltaTest {
+    /**
+     * Archive entries: path, then file content or link target (prefixed by <code>@</code>).
+     */
+    private static final String[] BASELINE = {
+            "bin/run.sh", "echo v1",
+            "lib/a.jar", "a",
+            "lib/current", "@a.jar",
+            "lib/old.txt", "old",
+            "conf/lib", "@../lib",
+            "docs/readme", "readme",
+    };
+    private static final String[] DISTRIBUTION = {
+            "bin/run.sh", "echo v2",
+            "lib/a.jar", "a",
+            "lib/b.jar", "b",
+            "lib/current", "@b.jar",
+            "lib/alias", "@a.jar",
+            "conf/lib", "@../bin",
+            "docs/readme", "@../lib/a.jar",
+    };
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testApplyZipDelta() throws Exception {
+        final File deltaDir = tmp.newFolder("delta");
+        final DistributionDelta delta = new DistributionDelta();
+        delta.readBaseline(createZip(tmp.newFile("baseline.zip"), BASELINE));
+        delta.compare(createZip(tmp.newFile("dist.zip"), DISTRIBUTION), new File(deltaDir, "files"));
+        assertEquals(2, delta.getAddedCount());
+        assertEquals(4, delta.getChangedCount());
+        assertEquals(1, delta.getRemovedCount());
+        assertEquals(1, delta.getUnchangedCount());
+        // Symbolic links are recorded in the delta manifest, not as files.
+        assertEquals(Arrays.asList("bin/run.sh", "lib/b.jar"), Arrays.asList(delta.getFiles().keySet().toArray()));
+        assertEquals(0755, delta.getMode("bin/run.sh"));
+
+        final File manifestFile = new File(deltaDir, DistributionDelta.MANIFEST);
+        delta.writeManifest(manifestFile, "Test delta");
+        final List<String> manifest = Files.readAllLines(manifestFile.toPath(), StandardCharsets.UTF_8);
+        assertTrue(manifest.contains("M @a.jar @b.jar - lib/current"));
+        assertTrue(manifest.contains("A - @a.jar - lib/alias"));
+        assertTrue(manifest.contains("M " + Checksums.sha1("readme") + " @../lib/a.jar - docs/readme"));
+        assertTrue(manifest.contains("D " + Checksums.sha1("old") + " - - lib/old.txt"));
+        DistributionDelta.writeApplyScript(new File(deltaDir, DistributionDelta.APPLY_SCRIPT));
+
+        final File distDir = tmp.newFolder("dist");
+        extract(distDir, BASELINE);
+        assertEquals(0, runScript(deltaDir, "--check", distDir.getPath()));
+        assertEquals(0, runScript(deltaDir, distDir.getPath()));
+        assertEquals(0, runScript(deltaDir, "--verify", distDir.getPath()));
+
+        assertEquals("echo v2", read(new File(distDir, "bin/run.sh")));
+        assertTrue(new File(distDir, "bin/run.sh").canExecute());
+        assertEquals("b", read(new File(distDir, "lib/b.jar")));
+        assertEquals(Paths.get("b.jar"), Files.readSymbolicLink(distDir.toPath().resolve("lib/current")));
+        assertEquals(Paths.get("a.jar"), Files.readSymbolicLink(distDir.toPath().resolve("lib/alias")));
+        assertEquals(Paths.get("../bin"), Files.readSymbolicLink(distDir.toPath().resolve("conf/lib")));
+        assertEquals(Paths.get("../lib/a.jar"), Files.readSymbolicLink(distDir.toPath().resolve("docs/readme")));
+        assertFalse(new File(distDir, "lib/old.txt").exists());
+        // The directory the previous link pointed to is left unchanged.
+        assertEquals(Arrays.asList("a.jar", "alias", "b.jar", "current"), list(new File(distDir, "lib")));
+
+        // The delta is not applied again.
+        assertNotEquals(0, runScript(deltaDir, distDir.getPath()));
+    }
+
+    @Test
+    public void testChangedLinkIsNotApplied() throws Exception {
+        final File deltaDir = tmp.newFolder("delta");
+        final DistributionDelta delta = new DistributionDelta();
+        delta.readBaseline(createZip(tmp.newFile("baseline.zip"), BASELINE));
+        delta.compare(createZip(tmp.newFile("dist.zip"), DISTRIBUTION), new File(deltaDir, "files"));
+        delta.writeManifest(new File(deltaDir, DistributionDelta.MANIFEST), "Test delta");
+        DistributionDelta.writeApplyScript(new File(deltaDir, DistributionDelta.APPLY_SCRIPT));
+
+        final File distDir = tmp.newFolder("dist");
+        extract(distDir, BASELINE);
+        final Path link = distDir.toPath().resolve("lib/current");
+        Files.delete(link);
+        Files.createSymbolicLink(link, Paths.get("old.txt"));
+        assertNotEquals(0, runScript(deltaDir, distDir.getPath()));
+        assertEquals("echo v1", read(new File(distDir, "bin/run.sh")));
+    }
+
+    @Test
+    public void testTarLinks() throws Exception {
+        final File baselineFile = createTar(tmp.newFile("baseline.tar.gz"),
+                "lib/a.jar", "a", "lib/same.jar", "=lib/a.jar", "lib/current", "@a.jar");
+        final File deltaDir = tmp.newFolder("delta");
+        final DistributionDelta delta = new DistributionDelta();
+        delta.readBaseline(baselineFile);
+        // Hard links are compared as the file they link to.
+        delta.compare(createTar(tmp.newFile("dist.tar.gz"),
+                "lib/a.jar", "a2", "lib/same.jar", "=lib/a.jar", "lib/current", "@a.jar"),
+                new File(deltaDir, "files"));
+        assertEquals(0, delta.getAddedCount());
+        assertEquals(2, delta.getChangedCount());
+        assertEquals(1, delta.getUnchangedCount());
+        assertEquals("a2", read(delta.getFiles().get("lib/same.jar")));
+
+        // Content of a hard link to an unchanged file is not available.
+        try {
+            delta.compare(createTar(tmp.newFile("dist2.tar.gz"),
+                    "lib/a.jar", "a", "lib/same.jar", "=lib/a.jar", "lib/other.jar", "=lib/a.jar",
+                    "lib/current", "@a.jar"), new File(deltaDir, "files2"));
+            fail("Hard link to unchanged file included in delta");
+        } catch (IOException expected) {
+        }
+    }
+
+    private static File createZip(File file, String... entries) throws IOException {
+        try (final ZipArchiveOutputStream out = new ZipArchiveOutputStream(file)) {
+            for (int i = 0; i < entries.length; i += 2) {
+                final ZipArchiveEntry entry = new ZipArchiveEntry("dist/" + entries[i]);
+                final String content = entries[i + 1];
+                if (content.startsWith("@")) {
+                    entry.setUnixMode(UnixStat.LINK_FLAG | 0777);
+                    out.putArchiveEntry(entry);
+                    out.write(bytes(content.substring(1)));
+                } else {
+                    entry.setUnixMode(UnixStat.FILE_FLAG | (entries[i].endsWith(".sh") ? 0755 : 0644));
+                    out.putArchiveEntry(entry);
+                    out.write(bytes(content));
+                }
+                out.closeArchiveEntry();
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Create a compressed tar archive: a hard link target is prefixed by <code>=</code>.
+     */
+    private static File createTar(File file, String... entries) throws IOException {
+        try (final TarArchiveOutputStream out = new TarArchiveOutputStream(
+                new GzipCompressorOutputStream(new FileOutputStream(file)))) {
+            for (int i = 0; i < entries.length; i += 2) {
+                final String content = entries[i + 1];
+                final TarArchiveEntry entry;
+                if (content.startsWith("@")) {
+                    entry = new TarArchiveEntry("dist/" + entries[i], TarArchiveEntry.LF_SYMLINK);
+                    entry.setLinkName(content.substring(1));
+                } else if (content.startsWith("=")) {
+                    entry = new TarArchiveEntry("dist/" + entries[i], TarArchiveEntry.LF_LINK);
+                    entry.setLinkName("dist/" + content.substring(1));
+                } else {
+                    entry = new TarArchiveEntry("dist/" + entries[i]);
+                    entry.setSize(content.length());
+                }
+                out.putArchiveEntry(entry);
+                if (entry.getSize() != 0) {
+                    out.write(bytes(content));
+                }
+                out.closeArchiveEntry();
+            }
+        }
+        return file;
+    }
+
+    private static void extract(File dir, String... entries) throws IOException {
+        for (int i = 0; i < entries.length; i += 2) {
+            final Path path = dir.toPath().resolve(entries[i]);
+            Files.createDirectories(path.getParent());
+            final String content = entries[i + 1];
+            if (content.startsWith("@")) {
+                Files.createSymbolicLink(path, Paths.get(content.substring(1)));
+            } else {
+                Files.write(path, bytes(content));
+                path.toFile().setExecutable(entries[i].endsWith(".sh"), false);
+            }
+        }
+    }
+
+    private static int runScript(File deltaDir, String... args) throws Exception {
+        Assume.assumeTrue("Delta script requires a Unix shell", File.separatorChar == '/');
+        final String[] command = new String[args.length + 2];
+        command[0] = "sh";
+        command[1] = new File(deltaDir, DistributionDelta.APPLY_SCRIPT).getPath();
+        System.arraycopy(args, 0, command, 2, args.length);
+        final Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (final InputStream in = process.getInputStream()) {
+            IOUtils.copy(in, output);
+        }
+        final int exitCode = process.waitFor();
+        System.out.print(new String(output.toByteArray(), StandardCharsets.UTF_8));
+        return exitCode;
+    }
+
+    private static List<String> list(File dir) {
+        final String[] names = dir.list();
+        Arrays.sort(names);
+        return Arrays.asList(names);
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
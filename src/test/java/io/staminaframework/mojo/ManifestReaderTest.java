@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.mojo;
+
+import org.apache.commons.compress.archivers.zip.Zip64Mode;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Read manifest attributes from zip files.
+ *
+ * @author Stamina Framework developers
+ */
+public class ManifestReaderTest {
+    private static final List<String> HEADERS = Arrays.asList("Bundle-SymbolicName", "Bundle-Version");
+    private static final byte[] MANIFEST = ("Manifest-Version: 1.0\r\nBundle-SymbolicName: com.example.bundle\r\n"
+            + "Bundle-Version: 1.2.3\r\n\r\nName: com/example/\r\nBundle-Version: 9\r\n")
+            .getBytes(StandardCharsets.UTF_8);
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testDeflatedManifest() throws Exception {
+        final File file = createZip(tmp.newFile("deflated.jar"), ZipEntry.DEFLATED, null);
+        assertHeaders(ManifestReader.read(file, ManifestReader.BUNDLE_MANIFEST, HEADERS));
+    }
+
+    @Test
+    public void testStoredManifest() throws Exception {
+        final File file = createZip(tmp.newFile("stored.jar"), ZipEntry.STORED, null);
+        assertHeaders(ManifestReader.read(file, ManifestReader.BUNDLE_MANIFEST, HEADERS));
+    }
+
+    @Test
+    public void testArchiveComment() throws Exception {
+        final char[] comment = new char[1000];
+        Arrays.fill(comment, 'c');
+        final File file = createZip(tmp.newFile("comment.jar"), ZipEntry.DEFLATED, new String(comment));
+        assertHeaders(ManifestReader.read(file, ManifestReader.BUNDLE_MANIFEST, HEADERS));
+    }
+
+    @Test
+    public void testMissingManifest() throws Exception {
+        final File file = createZip(tmp.newFile("bundle.jar"), ZipEntry.DEFLATED, null);
+        assertNull(ManifestReader.read(file, ManifestReader.SUBSYSTEM_MANIFEST, HEADERS));
+    }
+
+    @Test
+    public void testPrependedData() throws Exception {
+        final File zip = createZip(tmp.newFile("bundle.jar"), ZipEntry.DEFLATED, null);
+        final File file = tmp.newFile("launcher.sh");
+        try (final OutputStream out = new FileOutputStream(file)) {
+            out.write("#!/bin/sh\nexec java -jar \"$0\" \"$@\"\n".getBytes(StandardCharsets.UTF_8));
+            Files.copy(zip.toPath(), out);
+        }
+        assertHeaders(ManifestReader.read(file, ManifestReader.BUNDLE_MANIFEST, HEADERS));
+    }
+
+    @Test
+    public void testZip64Entries() throws Exception {
+        final File file = tmp.newFile("zip64.jar");
+        try (final ZipArchiveOutputStream out = new ZipArchiveOutputStream(file)) {
+            out.setUseZip64(Zip64Mode.Always);
+            out.putArchiveEntry(new ZipArchiveEntry("com/example/Foo.class"));
+            out.write(new byte[100]);
+            out.closeArchiveEntry();
+            out.putArchiveEntry(new ZipArchiveEntry(ManifestReader.BUNDLE_MANIFEST));
+            out.write(MANIFEST);
+            out.closeArchiveEntry();
+        }
+        assertHeaders(ManifestReader.read(file, ManifestReader.BUNDLE_MANIFEST, HEADERS));
+    }
+
+    @Test
+    public void testZip64EndOfCentralDirectory() throws Exception {
+        final File file = toZip64(createZip(tmp.newFile("bundle.jar"), ZipEntry.DEFLATED, "comment"));
+        assertHeaders(ManifestReader.read(file, ManifestReader.BUNDLE_MANIFEST, HEADERS));
+    }
+
+    @Test
+    public void testEntryNameIsCaseSensitive() throws Exception {
+        final File file = tmp.newFile("case.jar");
+        try (final ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file))) {
+            out.putNextEntry(new ZipEntry("meta-inf/manifest.mf"));
+            out.write("Bundle-SymbolicName: wrong\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+            out.closeEntry();
+            out.putNextEntry(new ZipEntry(ManifestReader.BUNDLE_MANIFEST));
+            out.write(MANIFEST);
+            out.closeEntry();
+        }
+        assertHeaders(ManifestReader.read(file, ManifestReader.BUNDLE_MANIFEST, HEADERS));
+        assertNull(ManifestReader.read(file, "OSGI-INF/subsystem.mf", HEADERS));
+    }
+
+    @Test
+    public void testContinuationLines() throws Exception {
+        final String name = "com.example.a.very.long.bundle.symbolic.name.which.does.not.fit.on.one.line";
+        final Map<String, String> atts = ManifestReader.parse(wrap("Manifest-Version: 1.0\n"
+                + "bundle-symbolicname: " + name + "\nBundle-Version: 1.0\n\n"), HEADERS);
+        assertEquals(name, atts.get("Bundle-SymbolicName"));
+        assertEquals("1.0", atts.get("Bundle-Version"));
+    }
+
+    @Test
+    public void testMultiByteCharacterSplitOnContinuationLine() throws Exception {
+        // 70 ASCII bytes, then 2-byte characters: the first one is split at the 72 byte line limit.
+        final char[] prefix = new char[70 - "Bundle-Name: ".length()];
+        Arrays.fill(prefix, 'a');
+        final String value = new String(prefix) + "\u00e9\u00e9\u00e9 bundle";
+        final byte[] line = ("Bundle-Name: " + value).getBytes(StandardCharsets.UTF_8);
+        final ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+        manifest.write(line, 0, 71);
+        manifest.write("\r\n ".getBytes(StandardCharsets.UTF_8));
+        manifest.write(line, 71, line.length - 71);
+        manifest.write("\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+        final Map<String, String> atts = ManifestReader.parse(manifest.toByteArray(),
+                Arrays.asList("Bundle-Name"));
+        assertEquals(value, atts.get("Bundle-Name"));
+    }
+
+    private static void assertHeaders(Map<String, String> atts) {
+        assertNotNull(atts);
+        assertEquals(2, atts.size());
+        assertEquals("com.example.bundle", atts.get("Bundle-SymbolicName"));
+        assertEquals("1.2.3", atts.get("Bundle-Version"));
+    }
+
+    /**
+     * Wrap manifest lines at 72 bytes, as manifest writers do.
+     */
+    private static byte[] wrap(String manifest) {
+        final StringBuilder buf = new StringBuilder();
+        for (final String line : manifest.split("\n", -1)) {
+            String remaining = line;
+            while (remaining.length() > 72) {
+                buf.append(remaining, 0, 72).append("\r\n ");
+                remaining = remaining.substring(72);
+            }
+            buf.append(remaining).append("\r\n");
+        }
+        return buf.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static File createZip(File file, int method, String comment) throws IOException {
+        try (final ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file))) {
+            if (comment != null) {
+                out.setComment(comment);
+            }
+            putEntry(out, "com/example/Foo.class", new byte[1000], method);
+            putEntry(out, ManifestReader.BUNDLE_MANIFEST, MANIFEST, method);
+        }
+        return file;
+    }
+
+    private static void putEntry(ZipOutputStream out, String name, byte[] data, int method) throws IOException {
+        final ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(method);
+        if (method == ZipEntry.STORED) {
+            final CRC32 crc = new CRC32();
+            crc.update(data);
+            entry.setCrc(crc.getValue());
+            entry.setSize(data.length);
+        }
+        out.putNextEntry(entry);
+        out.write(data);
+        out.closeEntry();
+    }
+
+    /**
+     * Add a zip64 end of central directory record to a zip file,
+     * and mark end of central directory values as stored in this record.
+     */
+    private static File toZip64(File file) throws IOException {
+        final byte[] data = Files.readAllBytes(file.toPath());
+        int eocdPos = data.length - 22;
+        final ByteBuffer in = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        while (in.getInt(eocdPos) != 0x06054b50) {
+            --eocdPos;
+        }
+        final int entryCount = in.getShort(eocdPos + 10) & 0xffff;
+        final long cenSize = in.getInt(eocdPos + 12) & 0xffffffffL;
+        final long cenOffset = in.getInt(eocdPos + 16) & 0xffffffffL;
+
+        final ByteBuffer out = ByteBuffer.allocate(data.length + 56 + 20).order(ByteOrder.LITTLE_ENDIAN);
+        out.put(data, 0, eocdPos);
+        out.putInt(0x06064b50).putLong(44).putShort((short) 45).putShort((short) 45).putInt(0).putInt(0)
+                .putLong(entryCount).putLong(entryCount).putLong(cenSize).putLong(cenOffset);
+        out.putInt(0x07064b50).putInt(0).putLong(eocdPos).putInt(1);
+        out.put(data, eocdPos, data.length - eocdPos);
+        final int newEocdPos = eocdPos + 56 + 20;
+        out.putShort(newEocdPos + 8, (short) 0xffff).putShort(newEocdPos + 10, (short) 0xffff)
+                .putInt(newEocdPos + 12, -1).putInt(newEocdPos + 16, -1);
+
+        final File zip64File = new File(file.getParentFile(), "zip64-" + file.getName());
+        Files.write(zip64File.toPath(), out.array());
+        // The zip64 record is valid: the JDK reads the same manifest.
+        try (final java.util.zip.ZipFile zip = new java.util.zip.ZipFile(zip64File)) {
+            assertNotNull(zip.getEntry(ManifestReader.BUNDLE_MANIFEST));
+        }
+        return zip64File;
+    }
+}
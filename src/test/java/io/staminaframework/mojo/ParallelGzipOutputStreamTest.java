@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.mojo;
+
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compress data with parallel gzip streams, and read it with standard gzip decoders.
+ *
+ * @author Stamina Framework developers
+ */
+public class ParallelGzipOutputStreamTest {
+    private static final int[] THREADS = {1, 2, 3, 8};
+    private static final int[] BLOCK_SIZES = {32 * 1024, 64 * 1024, 100000};
+
+    @Test
+    public void testEmptyInput() throws Exception {
+        for (final int blockSize : BLOCK_SIZES) {
+            assertRoundTrip(new byte[0], blockSize);
+        }
+    }
+
+    @Test
+    public void testSmallInput() throws Exception {
+        assertRoundTrip(new byte[]{42}, 32 * 1024);
+        assertRoundTrip(createData(1000), 32 * 1024);
+    }
+
+    @Test
+    public void testExactMultipleOfBlockSize() throws Exception {
+        for (final int blockSize : BLOCK_SIZES) {
+            assertRoundTrip(createData(blockSize), blockSize);
+            assertRoundTrip(createData(blockSize * 3), blockSize);
+        }
+    }
+
+    @Test
+    public void testSeveralBlocks() throws Exception {
+        for (final int blockSize : BLOCK_SIZES) {
+            assertRoundTrip(createData(blockSize * 5 + 17), blockSize);
+            assertRoundTrip(createData(blockSize * 2 - 1), blockSize);
+        }
+    }
+
+    @Test
+    public void testSingleByteWrites() throws Exception {
+        final byte[] data = createData(100000);
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (final ParallelGzipOutputStream out = new ParallelGzipOutputStream(compressed, newOptions(3, 32 * 1024))) {
+            for (final byte b : data) {
+                out.write(b);
+            }
+        }
+        assertArrayEquals(compress(data, 1, 32 * 1024), compressed.toByteArray());
+    }
+
+    @Test
+    public void testInputOver4GB() throws Exception {
+        // Input size is stored modulo 2^32 in the gzip trailer.
+        final long size = (1L << 32) + 12345;
+        final byte[] chunk = new byte[1024 * 1024];
+        for (int i = 0; i < chunk.length; ++i) {
+            chunk[i] = (byte) (i % 251);
+        }
+        final CRC32 crc = new CRC32();
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (final ParallelGzipOutputStream out = new ParallelGzipOutputStream(compressed,
+                new CompressionOptions(4, chunk.length, Deflater.BEST_SPEED, 0, null, OutputTimestamp.DISABLED))) {
+            for (long remaining = size; remaining > 0; ) {
+                final int count = (int) Math.min(chunk.length, remaining);
+                out.write(chunk, 0, count);
+                crc.update(chunk, 0, count);
+                remaining -= count;
+            }
+        }
+        final byte[] gzip = compressed.toByteArray();
+        assertEquals(crc.getValue(), readInt(gzip, gzip.length - 8));
+        assertEquals(size & 0xffffffffL, readInt(gzip, gzip.length - 4));
+        // Decoders check the CRC and the input size modulo 2^32.
+        assertEquals(size, count(new GZIPInputStream(new ByteArrayInputStream(gzip))));
+        assertEquals(size, count(new GzipCompressorInputStream(new ByteArrayInputStream(gzip))));
+    }
+
+    /**
+     * Check that data compressed with any number of threads can be decompressed,
+     * and that compressed data does not depend on the number of threads.
+     */
+    private static void assertRoundTrip(byte[] data, int blockSize) throws IOException {
+        byte[] expected = null;
+        for (final int threads : THREADS) {
+            final byte[] compressed = compress(data, threads, blockSize);
+            assertArrayEquals(data, read(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+            assertArrayEquals(data, read(new GzipCompressorInputStream(new ByteArrayInputStream(compressed))));
+            if (expected == null) {
+                expected = compressed;
+            } else {
+                assertArrayEquals("Output depends on the number of threads: " + threads, expected, compressed);
+            }
+        }
+    }
+
+    private static byte[] compress(byte[] data, int threads, int blockSize) throws IOException {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (final ParallelGzipOutputStream out = new ParallelGzipOutputStream(compressed,
+                newOptions(threads, blockSize))) {
+            // Writes do not match block boundaries.
+            for (int off = 0; off < data.length; off += 7919) {
+                out.write(data, off, Math.min(7919, data.length - off));
+            }
+        }
+        return compressed.toByteArray();
+    }
+
+    private static CompressionOptions newOptions(int threads, int blockSize) {
+        return new CompressionOptions(threads, blockSize, -1, 0, null, OutputTimestamp.DISABLED);
+    }
+
+    /**
+     * Create compressible data, with repeated sequences spanning block boundaries.
+     */
+    private static byte[] createData(int size) {
+        final Random random = new Random(size);
+        final byte[] data = new byte[size];
+        for (int i = 0; i < size; ++i) {
+            data[i] = i >= 1000 && random.nextInt(4) != 0 ? data[i - 1000 + random.nextInt(3)]
+                    : (byte) ('a' + random.nextInt(26));
+        }
+        return data;
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        try (final InputStream input = in) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buf = new byte[8192];
+            for (int count; (count = input.read(buf)) != -1; ) {
+                out.write(buf, 0, count);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static long count(InputStream in) throws IOException {
+        try (final InputStream input = in) {
+            final byte[] buf = new byte[1024 * 1024];
+            long size = 0;
+            for (int count; (count = input.read(buf)) != -1; ) {
+                size += count;
+            }
+            return size;
+        }
+    }
+
+    private static long readInt(byte[] buf, int off) {
+        return (buf[off] & 0xffL) | (buf[off + 1] & 0xffL) << 8 | (buf[off + 2] & 0xffL) << 16
+                | (buf[off + 3] & 0xffL) << 24;
+    }
+}
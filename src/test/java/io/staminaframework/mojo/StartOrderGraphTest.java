@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.mojo;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compute start orders from the wiring between addon content resources.
+ *
+ * @author Stamina Framework developers
+ */
+public class StartOrderGraphTest {
+    @Test
+    public void testIndependentBundles() throws Exception {
+        final StartOrderGraph graph = new StartOrderGraph(Arrays.asList(
+                bundle("com.example.a", "Export-Package", "com.example.a"),
+                bundle("com.example.b", "Import-Package", "javax.xml.parsers"),
+                null,
+                bundle("com.example.c")));
+        assertStartOrders(graph, 1, 1, 1, 1);
+        assertEquals(1, graph.getLevelCount());
+        assertTrue(graph.getCycles().isEmpty());
+    }
+
+    @Test
+    public void testChain() throws Exception {
+        // A -> B -> C: C starts first, even if it is listed last.
+        final StartOrderGraph graph = new StartOrderGraph(Arrays.asList(
+                bundle("com.example.a", "Import-Package", "com.example.b"),
+                bundle("com.example.b", "Export-Package", "com.example.b", "Require-Bundle", "com.example.c"),
+                bundle("com.example.c"),
+                bundle("com.example.d", "Import-Package", "com.example.b")));
+        assertStartOrders(graph, 3, 2, 1, 3);
+        assertEquals(3, graph.getLevelCount());
+        assertTrue(graph.getCycles().isEmpty());
+    }
+
+    @Test
+    public void testCycle() throws Exception {
+        final BundleResource a = bundle("com.example.a",
+                "Export-Package", "com.example.a", "Import-Package", "com.example.b,com.example.base");
+        final BundleResource b = bundle("com.example.b",
+                "Export-Package", "com.example.b", "Import-Package", "com.example.a");
+        final StartOrderGraph graph = new StartOrderGraph(Arrays.asList(
+                bundle("com.example.client", "Import-Package", "com.example.a"),
+                a, b,
+                bundle("com.example.base", "Export-Package", "com.example.base")));
+        // Bundles in a cycle share the same start order, after their dependencies.
+        assertStartOrders(graph, 3, 2, 2, 1);
+        assertEquals(3, graph.getLevelCount());
+        assertEquals(1, graph.getCycles().size());
+        assertEquals(new HashSet<>(Arrays.asList(a, b)), new HashSet<>(graph.getCycles().get(0)));
+    }
+
+    @Test
+    public void testFragmentTakesHostStartOrder() throws Exception {
+        // Fragment requirements are host requirements: the host starts after the fragment dependencies.
+        final StartOrderGraph graph = new StartOrderGraph(Arrays.asList(
+                bundle("com.example.fragment", "Fragment-Host", "com.example.host;bundle-version=\"[1.0,2.0)\"",
+                        "Import-Package", "com.example.base"),
+                bundle("com.example.base", "Export-Package", "com.example.base"),
+                bundle("com.example.host", "Export-Package", "com.example.host"),
+                bundle("com.example.client", "Import-Package", "com.example.host")));
+        assertStartOrders(graph, 2, 1, 2, 3);
+        assertEquals(3, graph.getLevelCount());
+        assertTrue(graph.getCycles().isEmpty());
+    }
+
+    @Test
+    public void testFragmentHostOutsideContent() throws Exception {
+        final StartOrderGraph graph = new StartOrderGraph(Arrays.asList(
+                bundle("com.example.fragment", "Fragment-Host", "com.example.missing",
+                        "Import-Package", "com.example.base"),
+                bundle("com.example.base", "Export-Package", "com.example.base"),
+                // A host version outside the fragment range is not its host.
+                bundle("com.example.other", "Fragment-Host", "com.example.host;bundle-version=\"[2.0,3.0)\""),
+                bundle("com.example.host")));
+        assertStartOrders(graph, 2, 1, 1, 1);
+        assertEquals(2, graph.getLevelCount());
+    }
+
+    private static void assertStartOrders(StartOrderGraph graph, int... startOrders) {
+        final int[] actual = new int[startOrders.length];
+        for (int i = 0; i < startOrders.length; ++i) {
+            actual[i] = graph.getStartOrder(i);
+        }
+        assertEquals(Arrays.toString(startOrders), Arrays.toString(actual));
+    }
+
+    private static BundleResource bundle(String symbolicName, String... headers) throws IOException {
+        final Manifest man = new Manifest();
+        final Attributes attrs = man.getMainAttributes();
+        attrs.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attrs.putValue("Bundle-ManifestVersion", "2");
+        attrs.putValue("Bundle-SymbolicName", symbolicName);
+        attrs.putValue("Bundle-Version", "1.0.0");
+        for (int i = 0; i < headers.length; i += 2) {
+            attrs.putValue(headers[i], headers[i + 1]);
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        man.write(out);
+        return BundleResource.read(new File(symbolicName + ".jar"), out.toByteArray());
+    }
+}